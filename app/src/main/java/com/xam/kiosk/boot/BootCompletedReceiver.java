@@ -7,6 +7,10 @@ import android.os.Build;
 import android.os.UserManager;
 import android.util.Log;
 
+import com.xam.kiosk.provision.Checkpoint;
+import com.xam.kiosk.provision.CheckpointStore;
+import com.xam.kiosk.ui.BootSplashActivity;
+
 public class BootCompletedReceiver extends BroadcastReceiver {
 
     private static final String TAG = "BootCompletedReceiver";
@@ -17,12 +21,11 @@ public class BootCompletedReceiver extends BroadcastReceiver {
 
         String action = intent.getAction();
         Log.i(TAG, "onReceive action=" + action);
+        BootTimeline.mark(BootTimeline.Phase.RECEIVER);
 
         // We only want to launch the real boot flow when the user is UNLOCKED.
         if (Intent.ACTION_LOCKED_BOOT_COMPLETED.equals(action)) {
-            Log.w(TAG, "LOCKED_BOOT_COMPLETED: device in Direct Boot, not launching kiosk yet.");
-            // Optionally start a Direct-Boot-safe service here ONLY if you truly need it.
-            // But do NOT touch /storage/emulated/0 or CE storage, and do NOT trigger MTP-dependent stuff.
+            onLockedBoot(context);
             return;
         }
 
@@ -45,6 +48,28 @@ public class BootCompletedReceiver extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Direct Boot: do NOT touch /storage/emulated/0 or CE storage, and do NOT trigger
+     * MTP-dependent stuff. Only the device-protected checkpoint is readable here.
+     */
+    private void onLockedBoot(Context context) {
+        Checkpoint cp = new CheckpointStore(context).load();
+        if (!cp.has(Checkpoint.Step.PROVISIONED)) {
+            Log.w(TAG, "LOCKED_BOOT_COMPLETED: not provisioned yet, waiting for unlock.");
+            return;
+        }
+
+        // Provisioned: put content on screen now; it hands off to the kiosk on unlock.
+        try {
+            Intent splash = new Intent(context, BootSplashActivity.class);
+            splash.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            context.startActivity(splash);
+            Log.i(TAG, "LOCKED_BOOT_COMPLETED: splash shown for provisioned device");
+        } catch (Throwable t) {
+            Log.e(TAG, "Failed to start BootSplashActivity", t);
+        }
+    }
+
     private boolean isUserUnlocked(Context context) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return true;
         try {
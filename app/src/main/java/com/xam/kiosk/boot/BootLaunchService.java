@@ -9,17 +9,11 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.UserManager;
+import android.os.SystemClock;
 import android.util.Log;
 
-import android.os.storage.StorageManager;
-import android.os.storage.StorageVolume;
-
 import com.xam.kiosk.ui.KioskActivity;
 
-import java.io.File;
-import java.util.List;
-
 public class BootLaunchService extends Service {
 
     private static final String TAG = "BootLaunchService";
@@ -27,16 +21,23 @@ public class BootLaunchService extends Service {
     private static final int NOTIF_ID = 1001;
 
     // Tuning
-    private static final long POLL_EVERY_MS = 700;
     private static final long TIMEOUT_MS = 60_000;  // 60s max wait
 
+    // Process-wide, main thread only: KioskActivity instances alive, and whether
+    // the Direct Boot splash already started one. Launching the kiosk again then
+    // would only pull it in front of NodeApp.
+    private static int liveKiosks = 0;
+    private static boolean splashHandedOff = false;
+
     private final Handler h = new Handler(Looper.getMainLooper());
     private long startTs;
+    private ReadinessGate gate;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        startTs = System.currentTimeMillis();
+        startTs = SystemClock.elapsedRealtime();
+        BootTimeline.mark(BootTimeline.Phase.SERVICE);
         try {
             startForegroundCompat();
         } catch (Throwable t) {
@@ -46,92 +47,58 @@ public class BootLaunchService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.i(TAG, "onStartCommand: waiting for user unlock + storage ready...");
-        h.post(checkReadyRunnable);
+        if (gate == null) {
+            Log.i(TAG, "onStartCommand: waiting for user unlock + storage ready...");
+            gate = new ReadinessGate(this, h, this::onReady);
+            gate.start();
+            h.postDelayed(timeoutRunnable, TIMEOUT_MS);
+        }
         return START_NOT_STICKY;
     }
 
-    private final Runnable checkReadyRunnable = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                boolean unlocked = isUserUnlocked();
-                boolean storageReady = isStorageReady();
-
-                Log.i(TAG, "readyCheck: unlocked=" + unlocked + " storageReady=" + storageReady);
-
-                if (unlocked && storageReady) {
-                    launchKiosk();
-                    return;
-                }
-
-                if (System.currentTimeMillis() - startTs > TIMEOUT_MS) {
-                    Log.w(TAG, "Timeout waiting for storage. Launching kiosk anyway.");
-                    launchKiosk();
-                    return;
-                }
+    @Override
+    public void onDestroy() {
+        h.removeCallbacks(timeoutRunnable);
+        if (gate != null) gate.stop();
+        super.onDestroy();
+    }
 
-            } catch (Throwable t) {
-                Log.e(TAG, "readyCheck failed", t);
-                // keep retrying
-            }
+    private void onReady() {
+        h.removeCallbacks(timeoutRunnable);
+        BootTimeline.mark(BootTimeline.Phase.READY);
+        Log.i(TAG, "Ready after " + (SystemClock.elapsedRealtime() - startTs) + "ms");
+        launchKiosk();
+    }
 
-            h.postDelayed(this, POLL_EVERY_MS);
-        }
+    private final Runnable timeoutRunnable = () -> {
+        Log.w(TAG, "Timeout waiting for storage. Launching kiosk anyway.");
+        if (gate != null) gate.stop();
+        launchKiosk();
     };
 
-    private boolean isUserUnlocked() {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return true;
-        try {
-            UserManager um = (UserManager) getSystemService(USER_SERVICE);
-            return um != null && um.isUserUnlocked();
-        } catch (Throwable t) {
-            Log.w(TAG, "isUserUnlocked check failed", t);
-            return false;
-        }
+    /** KioskActivity.onCreate. */
+    public static void onKioskCreated() {
+        liveKiosks++;
+        splashHandedOff = false;
     }
 
-    /**
-     * Storage "ready" means:
-     * - emulated storage exists and is readable
-     * AND/OR
-     * - StorageManager reports at least one usable public volume
-     */
-    private boolean isStorageReady() {
-        // 1) Quick filesystem check (works across many builds)
-        try {
-            File emu0 = new File("/storage/emulated/0");
-            if (emu0.exists() && emu0.canRead()) {
-                return true;
-            }
-        } catch (Throwable ignored) {}
-
-        // 2) StorageManager check (API 24+)
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            try {
-                StorageManager sm = (StorageManager) getSystemService(STORAGE_SERVICE);
-                if (sm != null) {
-                    List<StorageVolume> vols = sm.getStorageVolumes();
-                    if (vols != null) {
-                        for (StorageVolume v : vols) {
-                            // We just need at least one mounted-ish volume visible to the framework.
-                            // getState() is hidden on some APIs; so we rely on directory existence where possible.
-                            File dir = v.getDirectory();
-                            if (dir != null && dir.exists() && dir.canRead()) {
-                                return true;
-                            }
-                        }
-                    }
-                }
-            } catch (Throwable t) {
-                Log.w(TAG, "StorageManager check failed", t);
-            }
-        }
+    /** KioskActivity.onDestroy. */
+    public static void onKioskDestroyed() {
+        if (liveKiosks > 0) liveKiosks--;
+    }
 
-        return false;
+    /** BootSplashActivity started the kiosk on unlock. */
+    public static void onSplashHandedOff() {
+        splashHandedOff = true;
     }
 
     private void launchKiosk() {
+        if (liveKiosks > 0 || splashHandedOff) {
+            Log.i(TAG, "Kiosk already " + (liveKiosks > 0 ? "running" : "starting from splash") + "; not relaunching");
+            try { stopForeground(true); } catch (Throwable ignored) {}
+            stopSelf();
+            return;
+        }
         try {
             Intent i = new Intent(getApplicationContext(), KioskActivity.class);
             i.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK
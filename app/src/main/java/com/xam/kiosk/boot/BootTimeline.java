@@ -0,0 +1,69 @@
+package com.xam.kiosk.boot;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.xam.kiosk.telemetry.Telemetry;
+
+import java.util.Locale;
+
+/**
+ * Boot-to-kiosk timeline for this process, in ms since boot (elapsedRealtime).
+ * Only the first mark of each phase counts. The readiness wait and, for processes
+ * started by the boot broadcast, boot-to-kiosk are recorded as {@link Telemetry}
+ * latencies so they are checked against their budgets.
+ */
+public final class BootTimeline {
+
+    private static final String TAG = "BootTimeline";
+
+    public enum Phase {
+        RECEIVER,        // BootCompletedReceiver got the broadcast
+        SPLASH_SHOWN,    // Direct Boot splash first got window focus (provisioned devices)
+        SERVICE,         // BootLaunchService created
+        READY,           // user unlocked + storage ready
+        ACTIVITY_SHOWN   // KioskActivity first got window focus
+    }
+
+    private static final long[] marks = new long[Phase.values().length];
+
+    private BootTimeline() {}
+
+    public static void mark(Phase phase) {
+        long now = SystemClock.elapsedRealtime();
+        long service;
+        long receiver;
+        synchronized (marks) {
+            if (marks[phase.ordinal()] != 0) return;
+            marks[phase.ordinal()] = now;
+            service = marks[Phase.SERVICE.ordinal()];
+            receiver = marks[Phase.RECEIVER.ordinal()];
+        }
+
+        if (phase == Phase.READY && service != 0) {
+            Telemetry.event(Telemetry.Kind.LATENCY, Telemetry.Span.BOOT_READY, now - service);
+        } else if (phase == Phase.ACTIVITY_SHOWN) {
+            if (receiver != 0) Telemetry.event(Telemetry.Kind.LATENCY, Telemetry.Span.BOOT_TO_KIOSK, now);
+            Log.i(TAG, summary());
+        }
+    }
+
+    /** @return ms since boot, or 0 if the phase has not been reached in this process. */
+    public static long get(Phase phase) {
+        synchronized (marks) {
+            return marks[phase.ordinal()];
+        }
+    }
+
+    public static String summary() {
+        StringBuilder sb = new StringBuilder("boot timeline (ms since boot):");
+        synchronized (marks) {
+            for (Phase p : Phase.values()) {
+                sb.append(' ').append(p.name().toLowerCase(Locale.ROOT)).append('=');
+                long t = marks[p.ordinal()];
+                sb.append(t == 0 ? "-" : Long.toString(t));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,184 @@
+package com.xam.kiosk.boot;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.UserManager;
+import android.os.storage.StorageManager;
+import android.os.storage.StorageVolume;
+import android.util.Log;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Fires once when the user is unlocked AND storage is usable.
+ *
+ * Conditions are re-evaluated only when something changes: ACTION_USER_UNLOCKED,
+ * ACTION_MEDIA_MOUNTED and (API 30+) StorageManager volume callbacks.
+ */
+class ReadinessGate {
+
+    private static final String TAG = "ReadinessGate";
+
+    interface Listener {
+        void onReady();
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Listener listener;
+
+    private BroadcastReceiver receiver;
+    private StorageManager.StorageVolumeCallback volumeCallback;
+    private boolean fired = false;
+
+    ReadinessGate(Context context, Handler handler, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    /** Must be called on the handler thread. */
+    void start() {
+        registerReceivers();
+        registerVolumeCallback();
+
+        // Either condition may already hold.
+        evaluate("start");
+    }
+
+    void stop() {
+        if (receiver != null) {
+            try {
+                context.unregisterReceiver(receiver);
+            } catch (Exception ignored) {}
+            receiver = null;
+        }
+        if (volumeCallback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            try {
+                StorageManager sm = context.getSystemService(StorageManager.class);
+                if (sm != null) sm.unregisterStorageVolumeCallback(volumeCallback);
+            } catch (Exception ignored) {}
+            volumeCallback = null;
+        }
+    }
+
+    private void evaluate(String trigger) {
+        if (fired) return;
+
+        boolean unlocked = isUserUnlocked();
+        boolean storageReady = unlocked && isStorageReady();
+
+        Log.i(TAG, "readyCheck(" + trigger + "): unlocked=" + unlocked + " storageReady=" + storageReady);
+
+        if (unlocked && storageReady) {
+            fired = true;
+            stop();
+            listener.onReady();
+        }
+    }
+
+    // =========================
+    // Triggers
+    // =========================
+
+    private void registerReceivers() {
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context c, Intent intent) {
+                evaluate(intent != null ? intent.getAction() : "broadcast");
+            }
+        };
+
+        IntentFilter unlock = new IntentFilter(Intent.ACTION_USER_UNLOCKED);
+
+        // Media broadcasts carry a file:// data Uri; they need their own filter.
+        IntentFilter media = new IntentFilter(Intent.ACTION_MEDIA_MOUNTED);
+        media.addDataScheme("file");
+
+        try {
+            context.registerReceiver(receiver, unlock, null, handler);
+            context.registerReceiver(receiver, media, null, handler);
+        } catch (Exception e) {
+            Log.w(TAG, "registerReceiver failed: " + e.getMessage());
+        }
+    }
+
+    private void registerVolumeCallback() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) return;
+        try {
+            StorageManager sm = context.getSystemService(StorageManager.class);
+            if (sm == null) return;
+
+            volumeCallback = new StorageManager.StorageVolumeCallback() {
+                @Override
+                public void onStateChanged(StorageVolume volume) {
+                    evaluate("volume " + volume.getState());
+                }
+            };
+            sm.registerStorageVolumeCallback(handler::post, volumeCallback);
+        } catch (Exception e) {
+            Log.w(TAG, "registerStorageVolumeCallback failed: " + e.getMessage());
+            volumeCallback = null;
+        }
+    }
+
+    // =========================
+    // Conditions
+    // =========================
+
+    private boolean isUserUnlocked() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return true;
+        try {
+            UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+            return um != null && um.isUserUnlocked();
+        } catch (Throwable t) {
+            Log.w(TAG, "isUserUnlocked check failed", t);
+            return false;
+        }
+    }
+
+    /**
+     * Storage "ready" means:
+     * - emulated storage exists and is readable
+     * AND/OR
+     * - StorageManager reports at least one usable public volume
+     */
+    private boolean isStorageReady() {
+        // 1) Quick filesystem check (works across many builds)
+        try {
+            File emu0 = new File("/storage/emulated/0");
+            if (emu0.exists() && emu0.canRead()) {
+                return true;
+            }
+        } catch (Throwable ignored) {}
+
+        // 2) StorageManager check (API 24+)
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            try {
+                StorageManager sm = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
+                if (sm != null) {
+                    List<StorageVolume> vols = sm.getStorageVolumes();
+                    if (vols != null) {
+                        for (StorageVolume v : vols) {
+                            // We just need at least one mounted-ish volume visible to the framework.
+                            // getState() is hidden on some APIs; so we rely on directory existence where possible.
+                            File dir = v.getDirectory();
+                            if (dir != null && dir.exists() && dir.canRead()) {
+                                return true;
+                            }
+                        }
+                    }
+                }
+            } catch (Throwable t) {
+                Log.w(TAG, "StorageManager check failed", t);
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,375 @@
+package com.xam.kiosk.bundle;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import com.xam.kiosk.config.ConfigRepository;
+import com.xam.kiosk.install.ApkCache;
+import com.xam.kiosk.telemetry.Telemetry;
+import com.xam.kiosk.util.Clock;
+import com.xam.kiosk.util.HexUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Single-file provisioning: a zip pushed next to config.json that carries the
+ * config, the NodeApp APK set and any assets.
+ *
+ * Layout, in archive order:
+ *   manifest.json   - see {@link BundleManifest}
+ *   manifest.sig    - optional; signature over manifest.json (required when a key is configured)
+ *   config.json     - parsed like the loose config; APK paths name bundle entries
+ *   *.apk, assets   - each listed in the manifest
+ *
+ * The archive is read once, front to back. Every entry is hashed while it is
+ * written to its final place: APKs straight into the {@link ApkCache}, everything
+ * else into a staging directory. The bundle is accepted only after every entry
+ * matched its manifest digest and size; then the staging directory replaces the
+ * previous bundle and {@link ConfigRepository} switches to the bundle's config.
+ * A rejected archive is not read again until it changes.
+ *
+ * Worker thread only.
+ */
+public class BundleExtractor {
+
+    private static final String TAG = "BundleExtractor";
+
+    /** Bundle file name, in the directory of the loose config.json. */
+    public static final String BUNDLE_NAME = "provision.kbundle";
+
+    private static final String MANIFEST = BundleManifest.MANIFEST;
+    private static final String SIGNATURE = BundleManifest.SIGNATURE;
+    private static final String CONFIG = "config.json";
+    private static final String STAMP = BundleManifest.STAMP;
+
+    private static final String DIR = "bundle";
+    private static final String STAGING_DIR = "bundle.staging";
+
+    private static final int MAX_MANIFEST_BYTES = 64 * 1024;
+    private static final int MAX_SIGNATURE_BYTES = 1024;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    // Size and mtime must hold still this long before the archive is read
+    private static final long STABLE_MS = 2000;
+
+    private final ConfigRepository repository;
+    private final ApkCache apkCache;
+    private final PublicKey trustedKey;
+    private final Clock clock;
+    private final File source;
+    private final File dir;
+    private final File stagingDir;
+
+    private BundleManifest accepted;
+    private String acceptedStamp;
+    private String rejectedStamp;
+    private boolean restored;
+
+    // Last observed stamp and when it was first seen
+    private String seenStamp;
+    private long seenMs;
+
+    /** @param trustedKey key bundles must be signed with, or null to accept unsigned bundles */
+    public BundleExtractor(Context context, ConfigRepository repository, ApkCache apkCache,
+                           PublicKey trustedKey, Clock clock) {
+        this.repository = repository;
+        this.apkCache = apkCache;
+        this.trustedKey = trustedKey;
+        this.clock = clock;
+        this.source = new File(repository.getFile().getParentFile(), BUNDLE_NAME);
+        File files = context.getApplicationContext().getFilesDir();
+        this.dir = new File(files, DIR);
+        this.stagingDir = new File(files, STAGING_DIR);
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    /**
+     * Looks at the bundle file and extracts it if it is new and has settled.
+     *
+     * @return true while a bundle is present but still arriving: check again later,
+     *         and don't act on a loose config meanwhile
+     */
+    public boolean check() {
+        restore();
+
+        if (!source.isFile()) {
+            if (accepted != null) {
+                Log.i(TAG, "Bundle removed; back to the loose config");
+                accepted = null;
+                acceptedStamp = null;
+                deleteTree(dir);
+                repository.useOverride(null);
+            }
+            return false;
+        }
+
+        String stamp = source.length() + " " + source.lastModified();
+        if (stamp.equals(acceptedStamp) || stamp.equals(rejectedStamp)) return false;
+
+        long now = clock.uptimeMillis();
+        if (!stamp.equals(seenStamp)) {
+            seenStamp = stamp;
+            seenMs = now;
+        }
+        boolean settled = System.currentTimeMillis() - source.lastModified() >= STABLE_MS
+                || now - seenMs >= STABLE_MS;
+        if (!settled) return true;
+
+        long t0 = clock.uptimeMillis();
+        try {
+            BundleManifest manifest = extract();
+            if (!stamp.equals(source.length() + " " + source.lastModified())) {
+                Log.i(TAG, "Bundle changed while extracting; waiting");
+                deleteTree(stagingDir);
+                return true;
+            }
+            commit(manifest, stamp);
+            Telemetry.event(Telemetry.Kind.LATENCY, Telemetry.Span.BUNDLE_EXTRACT, clock.uptimeMillis() - t0);
+            Log.i(TAG, "Bundle accepted: " + manifest.entries.size() + " entries, " + source.length()
+                    + " bytes in " + (clock.uptimeMillis() - t0) + "ms");
+        } catch (IOException | RuntimeException e) {
+            Telemetry.count(Telemetry.Counter.BUNDLE_REJECTS);
+            Log.e(TAG, "Bundle rejected: " + e.getMessage(), e);
+            rejectedStamp = stamp;
+            deleteTree(stagingDir);
+        }
+        return false;
+    }
+
+    /** The accepted bundle's copy of entry {@code name}, or null if it has none. */
+    public File resolve(String name) {
+        restore();
+        BundleManifest m = accepted;
+        if (m == null) return null;
+        BundleManifest.Entry e = m.entries.get(name);
+        if (e == null) return null;
+        return e.isApk() ? apkCache.get(e.sha256) : new File(dir, e.name);
+    }
+
+    /** Cache copies of the accepted bundle's APKs; pass them to {@link ApkCache#evict}. */
+    public List<File> apkFiles() {
+        restore();
+        List<File> files = new ArrayList<>();
+        BundleManifest m = accepted;
+        if (m == null) return files;
+        for (BundleManifest.Entry e : m.entries.values()) {
+            if (!e.isApk()) continue;
+            File f = apkCache.get(e.sha256);
+            if (f != null) files.add(f);
+        }
+        return files;
+    }
+
+    // =========================
+    // Extraction
+    // =========================
+
+    private BundleManifest extract() throws IOException {
+        deleteTree(stagingDir);
+        if (!stagingDir.mkdirs()) throw new IOException("cannot create " + stagingDir);
+
+        try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(
+                new FileInputStream(source), BUFFER_BYTES))) {
+
+            ZipEntry ze = zip.getNextEntry();
+            if (ze == null || !MANIFEST.equals(ze.getName())) throw new IOException("first entry must be " + MANIFEST);
+            byte[] manifestBytes = readBounded(zip, MAX_MANIFEST_BYTES);
+            BundleManifest manifest = BundleManifest.parse(manifestBytes);
+            if (!manifest.entries.containsKey(CONFIG)) throw new IOException("manifest lists no " + CONFIG);
+
+            ze = zip.getNextEntry();
+            if (ze != null && SIGNATURE.equals(ze.getName())) {
+                verifySignature(manifestBytes, readBounded(zip, MAX_SIGNATURE_BYTES));
+                ze = zip.getNextEntry();
+            } else if (trustedKey != null) {
+                throw new IOException("unsigned bundle");
+            }
+
+            Set<String> seen = new HashSet<>();
+            for (; ze != null; ze = zip.getNextEntry()) {
+                String name = ze.getName();
+                BundleManifest.Entry e = manifest.entries.get(name);
+                if (e == null || ze.isDirectory()) throw new IOException("entry not in manifest: " + name);
+                if (!seen.add(name)) throw new IOException("duplicate entry " + name);
+
+                if (e.isApk()) {
+                    apkCache.put(new NonClosing(zip), e.sha256, e.size);
+                } else {
+                    writeVerified(zip, new File(stagingDir, name), e);
+                }
+            }
+
+            if (seen.size() != manifest.entries.size()) {
+                Set<String> missing = new HashSet<>(manifest.entries.keySet());
+                missing.removeAll(seen);
+                throw new IOException("missing entries " + missing);
+            }
+
+            writeFile(new File(stagingDir, MANIFEST), manifestBytes);
+            return manifest;
+        }
+    }
+
+    private void commit(BundleManifest manifest, String stamp) throws IOException {
+        writeFile(new File(stagingDir, STAMP), stamp.getBytes(StandardCharsets.UTF_8));
+        deleteTree(dir);
+        if (!stagingDir.renameTo(dir)) throw new IOException("cannot rename " + stagingDir + " to " + dir);
+
+        accepted = manifest;
+        acceptedStamp = stamp;
+        rejectedStamp = null;
+        repository.useOverride(new File(dir, CONFIG));
+    }
+
+    /** Picks up a bundle accepted before a restart. */
+    private void restore() {
+        if (restored) return;
+        restored = true;
+
+        File manifestFile = new File(dir, MANIFEST);
+        if (!manifestFile.isFile()) return;
+        try {
+            accepted = BundleManifest.parse(readFile(manifestFile, MAX_MANIFEST_BYTES));
+            acceptedStamp = new String(readFile(new File(dir, STAMP), 64), StandardCharsets.UTF_8);
+            repository.useOverride(new File(dir, CONFIG));
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable extracted bundle: " + e.getMessage());
+            accepted = null;
+            deleteTree(dir);
+        }
+    }
+
+    private void verifySignature(byte[] manifest, byte[] signature) throws IOException {
+        if (trustedKey == null) {
+            Log.w(TAG, "Bundle is signed but no key is configured; signature not checked");
+            return;
+        }
+        try {
+            String algorithm = "EC".equals(trustedKey.getAlgorithm()) ? "SHA256withECDSA" : "SHA256withRSA";
+            Signature s = Signature.getInstance(algorithm);
+            s.initVerify(trustedKey);
+            s.update(manifest);
+            if (!s.verify(signature)) throw new IOException("bad manifest signature");
+        } catch (java.security.GeneralSecurityException e) {
+            throw new IOException("signature check failed: " + e.getMessage(), e);
+        }
+    }
+
+    /** Copies one entry into {@code to}, hashing on the way; deletes it on mismatch. */
+    private static void writeVerified(InputStream in, File to, BundleManifest.Entry e) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+
+        long total = 0;
+        try (FileOutputStream out = new FileOutputStream(to)) {
+            byte[] buf = new byte[BUFFER_BYTES];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                total += n;
+                if (total > e.size) throw new IOException(e.name + ": longer than " + e.size + " bytes");
+                md.update(buf, 0, n);
+                out.write(buf, 0, n);
+            }
+            out.getFD().sync();
+        }
+        String digest = HexUtil.toHex(md.digest());
+        if (total != e.size || !e.sha256.equals(digest)) {
+            to.delete();
+            throw new IOException(e.name + ": size/sha256 mismatch");
+        }
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    /**
+     * Decodes a base64 X.509 SubjectPublicKeyInfo (EC or RSA); null/empty -> null.
+     *
+     * @throws IllegalArgumentException if a key is given but unusable
+     */
+    public static PublicKey parsePublicKey(String base64) {
+        if (base64 == null || base64.trim().isEmpty()) return null;
+        byte[] der = Base64.decode(base64.trim(), Base64.DEFAULT);
+        for (String algorithm : new String[]{"EC", "RSA"}) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(der));
+            } catch (Exception ignored) {
+                // try the next one
+            }
+        }
+        throw new IllegalArgumentException("bundle public key is neither EC nor RSA");
+    }
+
+    private static byte[] readBounded(InputStream in, int max) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            if (out.size() + n > max) throw new IOException("entry larger than " + max + " bytes");
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readFile(File f, int max) throws IOException {
+        try (InputStream in = new FileInputStream(f)) {
+            return readBounded(in, max);
+        }
+    }
+
+    private static void writeFile(File f, byte[] bytes) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(bytes);
+            out.getFD().sync();
+        }
+    }
+
+    private static void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteTree(c);
+        }
+        f.delete();
+    }
+
+    /** Lets a consumer read one zip entry without closing the archive. */
+    private static final class NonClosing extends FilterInputStream {
+        NonClosing(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+            // The zip stream stays open for the next entry.
+        }
+    }
+}
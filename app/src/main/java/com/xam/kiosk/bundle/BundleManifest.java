@@ -0,0 +1,138 @@
+package com.xam.kiosk.bundle;
+
+import android.util.JsonReader;
+
+import com.xam.kiosk.util.HexUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * manifest.json of a provisioning bundle:
+ *
+ * <pre>
+ * {"format": 1,
+ *  "entries": [{"name": "config.json", "sha256": "...", "size": 123}, ...]}
+ * </pre>
+ *
+ * Every other entry of the archive must be listed here exactly once.
+ */
+final class BundleManifest {
+
+    static final int FORMAT = 1;
+
+    // Written by BundleExtractor next to the entries, so no entry may take these names
+    static final String MANIFEST = "manifest.json";
+    static final String SIGNATURE = "manifest.sig";
+    static final String STAMP = "source.stamp";
+
+    private static final int MAX_ENTRIES = 64;
+    private static final int MAX_NAME_CHARS = 128;
+
+    static final class Entry {
+        final String name;
+        final String sha256;
+        final long size;
+
+        Entry(String name, String sha256, long size) {
+            this.name = name;
+            this.sha256 = sha256;
+            this.size = size;
+        }
+
+        boolean isApk() {
+            return name.endsWith(".apk");
+        }
+    }
+
+    /** By name, in manifest order. */
+    final Map<String, Entry> entries;
+
+    private BundleManifest(Map<String, Entry> entries) {
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    static BundleManifest parse(byte[] json) throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        int format = -1;
+
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(json), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "format":
+                        format = reader.nextInt();
+                        break;
+                    case "entries":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Entry e = readEntry(reader);
+                            if (entries.put(e.name, e) != null) throw new IOException("duplicate entry " + e.name);
+                            if (entries.size() > MAX_ENTRIES) throw new IOException("more than " + MAX_ENTRIES + " entries");
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("malformed manifest: " + e.getMessage(), e);
+        }
+
+        if (format != FORMAT) throw new IOException("unsupported manifest format " + format);
+        return new BundleManifest(entries);
+    }
+
+    private static Entry readEntry(JsonReader reader) throws IOException {
+        String name = null;
+        String sha256 = null;
+        long size = -1;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "sha256":
+                    sha256 = reader.nextString().toLowerCase();
+                    break;
+                case "size":
+                    size = reader.nextLong();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (!isSafeName(name)) throw new IOException("bad entry name " + name);
+        if (sha256 == null || !HexUtil.isHex(sha256, 64)) throw new IOException(name + ": bad sha256");
+        if (size < 0) throw new IOException(name + ": bad size");
+        return new Entry(name, sha256, size);
+    }
+
+    /** Flat names only: no directories, no traversal, none of the reserved names. */
+    static boolean isSafeName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_NAME_CHARS) return false;
+        if (name.startsWith(".")) return false;
+        if (name.equals(MANIFEST) || name.equals(SIGNATURE) || name.equals(STAMP)) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '_' || c == '-';
+            if (!ok) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,26 @@
+package com.xam.kiosk.config;
+
+/**
+ * Config file rejected. {@link #getField()} names the offending key,
+ * or "$" when the problem is the document itself (size, truncation, syntax).
+ */
+public class ConfigException extends Exception {
+
+    public static final String DOCUMENT = "$";
+
+    private final String field;
+
+    public ConfigException(String field, String reason) {
+        super(field + ": " + reason);
+        this.field = field;
+    }
+
+    public ConfigException(String field, String reason, Throwable cause) {
+        super(field + ": " + reason, cause);
+        this.field = field;
+    }
+
+    public String getField() {
+        return field;
+    }
+}
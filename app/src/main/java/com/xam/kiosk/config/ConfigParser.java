@@ -0,0 +1,499 @@
+package com.xam.kiosk.config;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.model.DisplayWindow;
+import com.xam.kiosk.model.WifiNetwork;
+import com.xam.kiosk.util.HexUtil;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming config parser.
+ *
+ * Reads through a fixed-size buffer, hashes the bytes as they go by and only
+ * materializes the keys we know about; everything else is skipped. The file is
+ * rejected when it is over {@link #MAX_CONFIG_BYTES}, truncated, or changed
+ * while being read (MTP push still in progress).
+ */
+public final class ConfigParser {
+
+    public static final int MAX_CONFIG_BYTES = 64 * 1024;
+
+    private static final int BUFFER_BYTES = 4096;
+
+    // 802.11 limit
+    private static final int MAX_SSID_BYTES = 32;
+
+    private static final int MAX_SPLITS = 32;
+    private static final int MAX_NETWORKS = 16;
+    private static final int MAX_POLICY_ENTRIES = 32;
+    private static final int MAX_DISPLAY_WINDOWS = 8;
+
+    // UserManager restriction keys ("no_adjust_volume") and package names
+    private static final Pattern RESTRICTION_KEY = Pattern.compile("[a-z][a-z0-9_]*");
+    private static final Pattern PACKAGE_NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_]*(\\.[A-Za-z][A-Za-z0-9_]*)+");
+
+    // Local time of day, 24h
+    private static final Pattern TIME_OF_DAY = Pattern.compile("([01][0-9]|2[0-3]):([0-5][0-9])");
+
+    // WPA-PSK passphrase length, IEEE 802.11i
+    private static final int MIN_PASSPHRASE = 8;
+    private static final int MAX_PASSPHRASE = 63;
+
+    static final String KEY_SSID = "ssid";
+    static final String KEY_WIFI_NETWORKS = "wifi_networks";
+    static final String KEY_SECURITY = "security";
+    static final String KEY_PASSWORD = "password";
+    static final String KEY_NODEAPP_APK_PATH = "nodeapp_apk_path";
+    static final String KEY_NODEAPP_APK_SHA256 = "nodeapp_apk_sha256";
+    static final String KEY_NODEAPP_VERSION_CODE = "nodeapp_version_code";
+    static final String KEY_NODEAPP_CERT_SHA256 = "nodeapp_cert_sha256";
+    static final String KEY_NODEAPP_SPLITS = "nodeapp_splits";
+    static final String KEY_POLICY_USER_RESTRICTIONS = "policy_user_restrictions";
+    static final String KEY_POLICY_LOCKDOWN_RESTRICTIONS = "policy_lockdown_restrictions";
+    static final String KEY_POLICY_LOCK_TASK_PACKAGES = "policy_lock_task_packages";
+    static final String KEY_DISPLAY_SCHEDULE = "display_schedule";
+    static final String KEY_START = "start";
+    static final String KEY_END = "end";
+    static final String KEY_BRIGHTNESS = "brightness";
+    static final String KEY_CONFIG_VERSION = "config_version";
+
+    private ConfigParser() {}
+
+    public static Config parse(File f) throws IOException, ConfigException {
+        long size = f.length();
+        long mtime = f.lastModified();
+
+        Config config;
+        try (InputStream in = new FileInputStream(f)) {
+            config = parse(in, size);
+        }
+
+        if (f.length() != size || f.lastModified() != mtime) {
+            throw new ConfigException(ConfigException.DOCUMENT, "file changed while reading (partial write?)");
+        }
+        return config;
+    }
+
+    /**
+     * @param expectedBytes size the stream must have; -1 to skip the check.
+     */
+    public static Config parse(InputStream raw, long expectedBytes) throws IOException, ConfigException {
+        if (expectedBytes > MAX_CONFIG_BYTES) {
+            throw new ConfigException(ConfigException.DOCUMENT,
+                    "too large: " + expectedBytes + " > " + MAX_CONFIG_BYTES + " bytes");
+        }
+        if (expectedBytes == 0) {
+            throw new ConfigException(ConfigException.DOCUMENT, "empty (partial write?)");
+        }
+
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        CountingInputStream counted = new CountingInputStream(raw, MAX_CONFIG_BYTES);
+        DigestInputStream digest = new DigestInputStream(counted, sha256);
+
+        String ssid = null;
+        List<WifiNetwork> networks = new ArrayList<>();
+        String apkPath = null;
+        String apkSha256 = null;
+        Long versionCode = null;
+        String certSha256 = null;
+        List<String> splits = null;
+        List<String> userRestrictions = null;
+        List<String> lockdownRestrictions = null;
+        List<String> lockTaskPackages = null;
+        List<DisplayWindow> displaySchedule = null;
+        Long version = null;
+
+        // JsonReader only ever holds one token; InputStreamReader holds BUFFER_BYTES.
+        JsonReader reader = new JsonReader(new InputStreamReader(digest, StandardCharsets.UTF_8));
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new ConfigException(ConfigException.DOCUMENT, "expected a JSON object");
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case KEY_SSID:
+                        ssid = readOptionalString(reader, name);
+                        break;
+                    case KEY_WIFI_NETWORKS:
+                        readNetworks(reader, networks);
+                        break;
+                    case KEY_NODEAPP_APK_PATH:
+                        apkPath = readOptionalString(reader, name);
+                        break;
+                    case KEY_NODEAPP_APK_SHA256:
+                        apkSha256 = readOptionalString(reader, name);
+                        break;
+                    case KEY_NODEAPP_VERSION_CODE:
+                        versionCode = readOptionalCount(reader, name);
+                        break;
+                    case KEY_NODEAPP_CERT_SHA256:
+                        certSha256 = readOptionalString(reader, name);
+                        break;
+                    case KEY_NODEAPP_SPLITS:
+                        splits = readStringArray(reader, name, MAX_SPLITS);
+                        break;
+                    case KEY_POLICY_USER_RESTRICTIONS:
+                        userRestrictions = readStringArray(reader, name, MAX_POLICY_ENTRIES);
+                        break;
+                    case KEY_POLICY_LOCKDOWN_RESTRICTIONS:
+                        lockdownRestrictions = readStringArray(reader, name, MAX_POLICY_ENTRIES);
+                        break;
+                    case KEY_POLICY_LOCK_TASK_PACKAGES:
+                        lockTaskPackages = readStringArray(reader, name, MAX_POLICY_ENTRIES);
+                        break;
+                    case KEY_DISPLAY_SCHEDULE:
+                        displaySchedule = readDisplaySchedule(reader);
+                        break;
+                    case KEY_CONFIG_VERSION:
+                        version = readOptionalCount(reader, name);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new ConfigException(ConfigException.DOCUMENT, "trailing data after object");
+            }
+        } catch (EOFException e) {
+            throw new ConfigException(ConfigException.DOCUMENT, "truncated (partial write?)", e);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new ConfigException(ConfigException.DOCUMENT, "malformed JSON: " + e.getMessage(), e);
+        } catch (SizeLimitException e) {
+            throw new ConfigException(ConfigException.DOCUMENT, "too large: > " + MAX_CONFIG_BYTES + " bytes", e);
+        } catch (IOException e) {
+            // JsonReader reports some syntax errors ("[" or "{" expected) as a plain IOException
+            if (counted.readError != null) throw e;
+            throw new ConfigException(ConfigException.DOCUMENT, "malformed JSON: " + e.getMessage(), e);
+        } finally {
+            reader.close();
+        }
+
+        if (expectedBytes >= 0 && counted.count != expectedBytes) {
+            throw new ConfigException(ConfigException.DOCUMENT,
+                    "read " + counted.count + " of " + expectedBytes + " bytes (partial write?)");
+        }
+
+        // Validation
+        if (apkPath == null || apkPath.trim().isEmpty()) {
+            throw new ConfigException(KEY_NODEAPP_APK_PATH, "required");
+        }
+        if (ssid != null && ssid.getBytes(StandardCharsets.UTF_8).length > MAX_SSID_BYTES) {
+            throw new ConfigException(KEY_SSID, "longer than " + MAX_SSID_BYTES + " bytes");
+        }
+        // Legacy "ssid" is an open network ranked after the explicit list.
+        if (ssid != null && !ssid.trim().isEmpty()) {
+            String plain = ssid.trim();
+            boolean listed = false;
+            for (WifiNetwork n : networks) listed |= n.ssid.equals(plain);
+            if (!listed) networks.add(new WifiNetwork(plain, WifiNetwork.Security.OPEN, null));
+        }
+        if (apkSha256 != null && !HexUtil.isHex(apkSha256, 64)) {
+            throw new ConfigException(KEY_NODEAPP_APK_SHA256, "expected 64 hex characters");
+        }
+        if (certSha256 != null && !HexUtil.isHex(certSha256, 64)) {
+            throw new ConfigException(KEY_NODEAPP_CERT_SHA256, "expected 64 hex characters");
+        }
+
+        requireAll(KEY_POLICY_USER_RESTRICTIONS, userRestrictions, RESTRICTION_KEY, "restriction key");
+        requireAll(KEY_POLICY_LOCKDOWN_RESTRICTIONS, lockdownRestrictions, RESTRICTION_KEY, "restriction key");
+        requireAll(KEY_POLICY_LOCK_TASK_PACKAGES, lockTaskPackages, PACKAGE_NAME, "package name");
+
+        return new Config(ssid, networks, apkPath, apkSha256, versionCode != null ? versionCode : -1,
+                certSha256, splits, userRestrictions, lockdownRestrictions, lockTaskPackages, displaySchedule,
+                version != null ? version : 0,
+                HexUtil.toHex(sha256.digest()));
+    }
+
+    private static void requireAll(String field, List<String> values, Pattern pattern, String what)
+            throws ConfigException {
+        if (values == null) return;
+        for (String v : values) {
+            if (!pattern.matcher(v).matches()) throw new ConfigException(field, "not a " + what + ": " + v);
+        }
+    }
+
+    private static String readOptionalString(JsonReader reader, String field) throws IOException, ConfigException {
+        JsonToken t = reader.peek();
+        if (t == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (t != JsonToken.STRING) {
+            throw new ConfigException(field, "expected string but was " + t);
+        }
+        return reader.nextString();
+    }
+
+    /** [{"ssid": "...", "security": "OPEN|WPA2|WPA3", "password": "..."}], best first. */
+    private static void readNetworks(JsonReader reader, List<WifiNetwork> out) throws IOException, ConfigException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            throw new ConfigException(KEY_WIFI_NETWORKS, "expected array but was " + reader.peek());
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (out.size() == MAX_NETWORKS) {
+                throw new ConfigException(KEY_WIFI_NETWORKS, "more than " + MAX_NETWORKS + " entries");
+            }
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new ConfigException(KEY_WIFI_NETWORKS, "expected object entries");
+            }
+
+            String field = KEY_WIFI_NETWORKS + "[" + out.size() + "]";
+            String ssid = null;
+            String security = null;
+            String password = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case KEY_SSID:
+                        ssid = readOptionalString(reader, field + "." + name);
+                        break;
+                    case KEY_SECURITY:
+                        security = readOptionalString(reader, field + "." + name);
+                        break;
+                    case KEY_PASSWORD:
+                        password = readOptionalString(reader, field + "." + name);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+
+            out.add(toNetwork(field, ssid, security, password));
+        }
+        reader.endArray();
+    }
+
+    private static List<DisplayWindow> readDisplaySchedule(JsonReader reader) throws IOException, ConfigException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            throw new ConfigException(KEY_DISPLAY_SCHEDULE, "expected array but was " + reader.peek());
+        }
+
+        List<DisplayWindow> out = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (out.size() == MAX_DISPLAY_WINDOWS) {
+                throw new ConfigException(KEY_DISPLAY_SCHEDULE, "more than " + MAX_DISPLAY_WINDOWS + " entries");
+            }
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new ConfigException(KEY_DISPLAY_SCHEDULE, "expected object entries");
+            }
+
+            String field = KEY_DISPLAY_SCHEDULE + "[" + out.size() + "]";
+            String start = null;
+            String end = null;
+            double brightness = Double.NaN;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case KEY_START:
+                        start = readOptionalString(reader, field + "." + name);
+                        break;
+                    case KEY_END:
+                        end = readOptionalString(reader, field + "." + name);
+                        break;
+                    case KEY_BRIGHTNESS:
+                        if (reader.peek() != JsonToken.NUMBER) {
+                            throw new ConfigException(field + "." + name, "expected number but was " + reader.peek());
+                        }
+                        brightness = reader.nextDouble();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+
+            int startMinute = minuteOfDay(field + "." + KEY_START, start);
+            int endMinute = minuteOfDay(field + "." + KEY_END, end);
+            if (startMinute == endMinute) throw new ConfigException(field, "start equals end");
+            if (!(brightness >= 0 && brightness <= 1)) {
+                throw new ConfigException(field + "." + KEY_BRIGHTNESS, "expected 0..1 (0 = screen off)");
+            }
+            out.add(new DisplayWindow(startMinute, endMinute, (float) brightness));
+        }
+        reader.endArray();
+        return out;
+    }
+
+    private static int minuteOfDay(String field, String hhmm) throws ConfigException {
+        if (hhmm == null) throw new ConfigException(field, "required");
+        Matcher m = TIME_OF_DAY.matcher(hhmm.trim());
+        if (!m.matches()) throw new ConfigException(field, "expected HH:MM");
+        return Integer.parseInt(m.group(1)) * 60 + Integer.parseInt(m.group(2));
+    }
+
+    private static WifiNetwork toNetwork(String field, String ssid, String security, String password)
+            throws ConfigException {
+        if (ssid == null || ssid.trim().isEmpty()) {
+            throw new ConfigException(field + "." + KEY_SSID, "required");
+        }
+        ssid = ssid.trim();
+        if (ssid.getBytes(StandardCharsets.UTF_8).length > MAX_SSID_BYTES) {
+            throw new ConfigException(field + "." + KEY_SSID, "longer than " + MAX_SSID_BYTES + " bytes");
+        }
+
+        WifiNetwork.Security sec;
+        if (security == null) {
+            sec = password == null ? WifiNetwork.Security.OPEN : WifiNetwork.Security.WPA2;
+        } else {
+            try {
+                sec = WifiNetwork.Security.valueOf(security.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ConfigException(field + "." + KEY_SECURITY, "expected OPEN, WPA2 or WPA3");
+            }
+        }
+
+        if (sec == WifiNetwork.Security.OPEN) {
+            if (password != null) throw new ConfigException(field + "." + KEY_PASSWORD, "not allowed for OPEN");
+        } else if (password == null || password.length() < MIN_PASSPHRASE || password.length() > MAX_PASSPHRASE) {
+            throw new ConfigException(field + "." + KEY_PASSWORD,
+                    "expected " + MIN_PASSPHRASE + ".." + MAX_PASSPHRASE + " characters");
+        }
+        return new WifiNetwork(ssid, sec, password);
+    }
+
+    /** Non-negative integer ("42", "42.0" and "4.2e1" alike), or null when absent. */
+    private static Long readOptionalCount(JsonReader reader, String field) throws IOException, ConfigException {
+        JsonToken t = reader.peek();
+        if (t == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (t != JsonToken.NUMBER) {
+            throw new ConfigException(field, "expected number but was " + t);
+        }
+        // Read as text: nextLong() leaves a fractional number unconsumed and
+        // throws NumberFormatException, which would read as a syntax error.
+        String literal = reader.nextString();
+        long value;
+        try {
+            value = new BigDecimal(literal).longValueExact();
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new ConfigException(field, "expected an integer but was " + literal);
+        }
+        if (value < 0) throw new ConfigException(field, "must not be negative");
+        return value;
+    }
+
+    private static List<String> readStringArray(JsonReader reader, String field, int max)
+            throws IOException, ConfigException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            throw new ConfigException(field, "expected array but was " + reader.peek());
+        }
+
+        List<String> out = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.STRING) {
+                throw new ConfigException(field, "expected string entries");
+            }
+            String s = reader.nextString().trim();
+            if (s.isEmpty()) throw new ConfigException(field, "empty entry");
+            if (out.size() == max) throw new ConfigException(field, "more than " + max + " entries");
+            out.add(s);
+        }
+        reader.endArray();
+        return out;
+    }
+
+    // =========================
+    // Bounded stream
+    // =========================
+
+    private static final class SizeLimitException extends IOException {
+        SizeLimitException() {
+            super("size limit exceeded");
+        }
+    }
+
+    /** Counts bytes and fails fast past the limit, so a huge file is never buffered. */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final long limit;
+        long count;
+        IOException readError;   // from the underlying stream, as opposed to the JSON
+
+        CountingInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b;
+            try {
+                b = super.read();
+            } catch (IOException e) {
+                readError = e;
+                throw e;
+            }
+            if (b >= 0) advance(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+            try {
+                n = super.read(b, off, Math.min(len, BUFFER_BYTES));
+            } catch (IOException e) {
+                readError = e;
+                throw e;
+            }
+            if (n > 0) advance(n);
+            return n;
+        }
+
+        private void advance(int n) throws SizeLimitException {
+            count += n;
+            if (count > limit) throw new SizeLimitException();
+        }
+    }
+}
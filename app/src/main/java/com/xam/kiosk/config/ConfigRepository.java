@@ -0,0 +1,187 @@
+package com.xam.kiosk.config;
+
+import android.util.Log;
+
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.telemetry.Telemetry;
+
+import java.io.File;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Single source of the provisioning {@link Config}.
+ *
+ * The file is parsed once per change. {@link #load()} first compares mtime/size
+ * with the last read and, when the bytes do get re-read (see {@link ConfigParser}),
+ * compares the content hash with the current snapshot, so an unchanged file never
+ * produces a new instance or a listener callback.
+ *
+ * An accepted provisioning bundle supplies its own config file, which then takes
+ * precedence over the loose one (see {@link #useOverride}).
+ *
+ * Other {@link ConfigSource}s (e.g. a fleet server) may be added. The snapshot is
+ * whichever of the file and the sources carries the highest config_version; on a
+ * tie the file wins, since someone pushed it to this very device.
+ */
+public class ConfigRepository {
+
+    private static final String TAG = "ConfigRepository";
+
+    // Provisioning file pushed via MTP
+    public static final String CONFIG_PATH = "/sdcard/config.json";
+
+    // mtime on FUSE/FAT can be coarse: a write in the same tick as our read
+    // would keep the same mtime, so only trust the stat key once it is older.
+    private static final long MTIME_GRANULARITY_MS = 2000;
+
+    public interface Listener {
+        /** Called on the thread that ran {@link #load()}. */
+        void onConfigChanged(Config config);
+    }
+
+    private static ConfigRepository instance;
+
+    public static synchronized ConfigRepository getInstance() {
+        if (instance == null) instance = new ConfigRepository(new File(CONFIG_PATH));
+        return instance;
+    }
+
+    private final File file;
+    private File override;  // guarded by this
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<ConfigSource> sources = new CopyOnWriteArrayList<>();
+
+    private volatile Config current;
+    private Config fileConfig;  // last good config from the file; guarded by this
+
+    // Stat key of the last read (valid or not)
+    private long seenMtime = -1;
+    private long seenSize = -1;
+    private long seenAtMs = -1;
+
+    public ConfigRepository(File file) {
+        this.file = file;
+    }
+
+    /** The loose config file on shared storage (what watchers observe). */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads {@code f} instead of the loose file from now on; null goes back to it.
+     * The next {@link #load()} re-reads.
+     */
+    public synchronized void useOverride(File f) {
+        if (f == null ? override == null : f.equals(override)) return;
+        override = f;
+        seenMtime = -1;
+        seenSize = -1;
+        seenAtMs = -1;
+    }
+
+    /** Current snapshot without touching storage; null until a valid config was loaded. */
+    public Config get() {
+        return current;
+    }
+
+    public void addSource(ConfigSource s) {
+        sources.addIfAbsent(s);
+    }
+
+    public void removeSource(ConfigSource s) {
+        sources.remove(s);
+    }
+
+    /** Registered sources besides the file. */
+    public Iterable<ConfigSource> sources() {
+        return sources;
+    }
+
+    public void addListener(Listener l) {
+        listeners.addIfAbsent(l);
+    }
+
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Re-checks the file and the sources and returns the current snapshot (cached
+     * if unchanged). An invalid file keeps its last good config. A missing file
+     * drops it, so the sources decide from then on; the snapshot itself stays
+     * until a config replaces it.
+     */
+    public Config load() {
+        Config changed;
+        synchronized (this) {
+            changed = reloadLocked();
+        }
+        if (changed != null) {
+            for (Listener l : listeners) l.onConfigChanged(changed);
+        }
+        return current;
+    }
+
+    /** @return the new snapshot if it changed, else null. */
+    private Config reloadLocked() {
+        reloadFileLocked();
+
+        // Sources only hand out what they already parsed: no I/O here.
+        Config best = fileConfig;
+        for (ConfigSource s : sources) {
+            Config c = s.current();
+            if (c != null && (best == null || c.version > best.version)) best = c;
+        }
+
+        Config cur = current;
+        if (best == null || (cur != null && best.hash.equals(cur.hash))) return null;
+
+        current = best;
+        Log.i(TAG, "Config v" + best.version + (best == fileConfig ? " from file" : " from remote")
+                + ": wifi_networks=" + best.wifiNetworks + ", nodeapp_apk_path=" + best.nodeappApkPath);
+        return best;
+    }
+
+    private void reloadFileLocked() {
+        File file = override != null ? override : this.file;
+        if (!file.isFile()) {
+            // Gone: stop preferring it, and read it afresh if it comes back as it was.
+            fileConfig = null;
+            seenMtime = -1;
+            seenSize = -1;
+            seenAtMs = -1;
+            return;
+        }
+
+        long mtime = file.lastModified();
+        long size = file.length();
+        if (mtime == seenMtime && size == seenSize && seenAtMs - mtime > MTIME_GRANULARITY_MS) {
+            Telemetry.count(Telemetry.Counter.CONFIG_CACHE_HITS);
+            return;
+        }
+        seenMtime = mtime;
+        seenSize = size;
+        seenAtMs = System.currentTimeMillis();
+
+        Telemetry.count(Telemetry.Counter.CONFIG_READS);
+        long t0 = Telemetry.startCall();
+        try {
+            Config parsed = ConfigParser.parse(file);
+            Telemetry.call(Telemetry.Span.CONFIG_PARSE, t0);
+
+            Config prev = fileConfig;
+            if (prev != null && parsed.hash.equals(prev.hash)) {
+                Telemetry.count(Telemetry.Counter.CONFIG_CACHE_HITS);
+                return;
+            }
+            fileConfig = parsed;
+
+        } catch (ConfigException e) {
+            Telemetry.count(Telemetry.Counter.CONFIG_REJECTS);
+            Log.w(TAG, "Config rejected: " + e.getMessage());
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read " + file + ": " + e.getMessage(), e);
+        }
+    }
+}
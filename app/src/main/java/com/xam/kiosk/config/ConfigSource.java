@@ -0,0 +1,29 @@
+package com.xam.kiosk.config;
+
+import com.xam.kiosk.model.Config;
+
+/**
+ * A place a provisioning config can come from besides the file on shared storage.
+ *
+ * {@link ConfigRepository} asks every registered source for its latest snapshot
+ * on each {@link ConfigRepository#load()} and keeps the one with the highest
+ * {@link Config#version}. Sources fetch on their own schedule and parse once per
+ * change; {@link #current()} only hands out what they already have.
+ */
+public interface ConfigSource {
+
+    interface Listener {
+        /** {@link #current()} changed; may be called on any thread. */
+        void onSourceChanged(ConfigSource source);
+    }
+
+    /** For logs. */
+    String name();
+
+    /** Latest valid config from this source, or null; never blocks. */
+    Config current();
+
+    void start(Listener listener);
+
+    void stop();
+}
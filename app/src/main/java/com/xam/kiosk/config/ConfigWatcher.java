@@ -0,0 +1,254 @@
+package com.xam.kiosk.config;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Build;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import com.xam.kiosk.bundle.BundleExtractor;
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.util.RetryScheduler;
+
+import java.io.File;
+
+/**
+ * Watches for the provisioning config to land on shared storage and delivers the
+ * {@link ConfigRepository} snapshot on the given handler.
+ *
+ * Triggers (any of them schedules a single coalesced read):
+ * - FileObserver CLOSE_WRITE / MOVED_TO on the parent directory
+ * - MediaStore change notifications (MTP pushes are indexed by MediaProvider)
+ * - USB detach (the host is done pushing files)
+ * - a {@link ConfigSource} of the repository reporting a new config
+ *
+ * Backoff polling is used only while the directory cannot be watched
+ * (e.g. storage not mounted yet).
+ *
+ * With a {@link BundleExtractor}, a provisioning bundle in the same directory is
+ * extracted first; while it is still being pushed the loose config is not read.
+ */
+public class ConfigWatcher {
+
+    private static final String TAG = "ConfigWatcher";
+    private static final String ACTION_USB_STATE = "android.hardware.usb.action.USB_STATE";
+
+    private static final int WATCH_MASK = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+
+    // Coalesce bursts (MediaStore fires several notifications per push)
+    private static final long SETTLE_MS = 50;
+
+    // Re-check while a bundle is still being written
+    private static final long BUNDLE_RECHECK_MS = 2000;
+
+    // Fallback polling when the directory cannot be watched
+    private static final RetryScheduler.Policy POLL = RetryScheduler.Policy.exponential(1000, 30_000);
+
+    public interface Listener {
+        void onConfigAvailable(Config config);
+    }
+
+    private final Context context;
+    private final ConfigRepository repository;
+    private final File configFile;
+    private final Handler handler;
+    private final RetryScheduler retries;
+    private final Listener listener;
+    private final BundleExtractor bundles;
+
+    private FileObserver fileObserver;
+    private ContentObserver mediaObserver;
+    private BroadcastReceiver usbReceiver;
+
+    private volatile boolean running = false;
+    private Config lastDelivered;
+
+    /** @param retries must run on {@code handler} */
+    public ConfigWatcher(Context context, ConfigRepository repository, Handler handler,
+                         RetryScheduler retries, Listener listener) {
+        this(context, repository, handler, retries, listener, null);
+    }
+
+    /** @param bundles extractor for provisioning bundles, or null to read the loose config only */
+    public ConfigWatcher(Context context, ConfigRepository repository, Handler handler,
+                         RetryScheduler retries, Listener listener, BundleExtractor bundles) {
+        this.context = context.getApplicationContext();
+        this.repository = repository;
+        this.configFile = repository.getFile();
+        this.handler = handler;
+        this.retries = retries;
+        this.listener = listener;
+        this.bundles = bundles;
+    }
+
+    public void start() {
+        if (running) return;
+        running = true;
+
+        if (!startFileObserver()) {
+            Log.w(TAG, "Cannot watch " + configFile.getParent() + "; falling back to polling");
+            handler.post(pollRunnable);
+        }
+        registerMediaObserver();
+        registerUsbReceiver();
+        for (ConfigSource s : repository.sources()) s.start(sourceListener);
+
+        // The file may already be there.
+        requestCheck();
+    }
+
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(checkRunnable);
+        handler.removeCallbacks(pollRunnable);
+        retries.reset(pollRunnable);
+        for (ConfigSource s : repository.sources()) s.stop();
+
+        if (fileObserver != null) {
+            fileObserver.stopWatching();
+            fileObserver = null;
+        }
+        if (mediaObserver != null) {
+            try {
+                context.getContentResolver().unregisterContentObserver(mediaObserver);
+            } catch (Exception ignored) {}
+            mediaObserver = null;
+        }
+        if (usbReceiver != null) {
+            try {
+                context.unregisterReceiver(usbReceiver);
+            } catch (Exception ignored) {}
+            usbReceiver = null;
+        }
+    }
+
+    /** Schedules a single read; safe to call from any thread. */
+    public void requestCheck() {
+        if (!running) return;
+        handler.removeCallbacks(checkRunnable);
+        handler.postDelayed(checkRunnable, SETTLE_MS);
+    }
+
+    private final Runnable checkRunnable = this::check;
+
+    private final ConfigSource.Listener sourceListener = s -> requestCheck();
+
+    private final Runnable pollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+
+            // Directory showed up (storage mounted): switch to event-driven mode.
+            if (startFileObserver()) {
+                Log.i(TAG, "Directory watch registered; polling stopped");
+                retries.reset(this);
+                requestCheck();
+                return;
+            }
+
+            check();
+            if (!running) return;
+
+            retries.retry(this, POLL);
+        }
+    };
+
+    private void check() {
+        if (!running) return;
+
+        if (bundles != null && bundles.check()) {
+            // Half-pushed bundle: its config would supersede the loose one.
+            handler.removeCallbacks(checkRunnable);
+            handler.postDelayed(checkRunnable, BUNDLE_RECHECK_MS);
+            return;
+        }
+
+        // Unchanged file -> same cached instance -> nothing to deliver.
+        Config config = repository.load();
+        if (config == null || config == lastDelivered) return;
+
+        lastDelivered = config;
+        if (running) listener.onConfigAvailable(config);
+    }
+
+    // =========================
+    // Triggers
+    // =========================
+
+    private boolean startFileObserver() {
+        if (fileObserver != null) return true;
+
+        File dir = configFile.getParentFile();
+        if (dir == null || !dir.isDirectory() || !dir.canRead()) return false;
+
+        final String name = configFile.getName();
+        final String bundleName = bundles != null ? bundles.getSource().getName() : null;
+        try {
+            FileObserver fo;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                fo = new FileObserver(dir, WATCH_MASK) {
+                    @Override
+                    public void onEvent(int event, String path) {
+                        if (name.equals(path) || (path != null && path.equals(bundleName))) requestCheck();
+                    }
+                };
+            } else {
+                fo = new FileObserver(dir.getAbsolutePath(), WATCH_MASK) {
+                    @Override
+                    public void onEvent(int event, String path) {
+                        if (name.equals(path) || (path != null && path.equals(bundleName))) requestCheck();
+                    }
+                };
+            }
+            fo.startWatching();
+            fileObserver = fo;
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "FileObserver failed: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private void registerMediaObserver() {
+        try {
+            Uri files = MediaStore.Files.getContentUri("external");
+            mediaObserver = new ContentObserver(handler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    requestCheck();
+                }
+            };
+            context.getContentResolver().registerContentObserver(files, true, mediaObserver);
+        } catch (Exception e) {
+            Log.w(TAG, "MediaStore observer not registered: " + e.getMessage());
+            mediaObserver = null;
+        }
+    }
+
+    private void registerUsbReceiver() {
+        usbReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context c, Intent intent) {
+                if (intent == null) return;
+                if (!intent.getBooleanExtra("connected", false)) requestCheck();
+            }
+        };
+        try {
+            IntentFilter filter = new IntentFilter(ACTION_USB_STATE);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                context.registerReceiver(usbReceiver, filter, null, handler, Context.RECEIVER_NOT_EXPORTED);
+            } else {
+                context.registerReceiver(usbReceiver, filter, null, handler);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "USB receiver not registered: " + e.getMessage());
+            usbReceiver = null;
+        }
+    }
+}
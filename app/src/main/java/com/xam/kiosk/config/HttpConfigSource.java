@@ -0,0 +1,245 @@
+package com.xam.kiosk.config;
+
+import android.util.Log;
+
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.telemetry.Telemetry;
+import com.xam.kiosk.util.Clock;
+import com.xam.kiosk.util.RetryScheduler;
+import com.xam.kiosk.util.Scheduler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Pulls config.json from a fleet server with conditional GETs.
+ *
+ * Every request carries the ETag of the last accepted body (If-None-Match) and
+ * asks for gzip. An unchanged config is answered with 304 and costs one round
+ * trip: nothing is read, parsed or written. A changed body is parsed once
+ * (bounded by {@link ConfigParser#MAX_CONFIG_BYTES}) and, if valid, saved with
+ * its ETag in the cache directory, so the last good remote config survives a
+ * reboot without network. Successful fetches repeat every refresh interval;
+ * failures back off exponentially.
+ *
+ * Network I/O blocks: give it its own scheduler thread, not the provisioning one.
+ */
+public class HttpConfigSource implements ConfigSource {
+
+    private static final String TAG = "HttpConfigSource";
+
+    private static final String CACHE_BODY = "remote_config.json";
+    private static final String CACHE_ETAG = "remote_config.etag";
+
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final int READ_TIMEOUT_MS = 15_000;
+    private static final int MAX_ETAG_CHARS = 256;
+
+    private static final RetryScheduler.Policy BACKOFF = RetryScheduler.Policy.exponential(5000, 300_000);
+
+    private final URL url;
+    private final File cacheDir;
+    private final Scheduler scheduler;
+    private final RetryScheduler retries;
+    private final long refreshMs;
+
+    private volatile Config current;
+    private volatile Listener listener;
+
+    // Scheduler-thread state
+    private String etag;
+    private boolean cacheLoaded;
+    private boolean running;
+
+    /**
+     * @param cacheDir  where the last good body and its ETag are kept
+     * @param scheduler runs the fetches; blocking I/O happens on its thread
+     */
+    public HttpConfigSource(URL url, File cacheDir, Scheduler scheduler, Clock clock, long refreshMs) {
+        this.url = url;
+        this.cacheDir = cacheDir;
+        this.scheduler = scheduler;
+        this.retries = new RetryScheduler(scheduler, clock);
+        this.refreshMs = refreshMs;
+    }
+
+    @Override
+    public String name() {
+        return url.toString();
+    }
+
+    @Override
+    public Config current() {
+        return current;
+    }
+
+    @Override
+    public void start(Listener l) {
+        listener = l;
+        scheduler.post(() -> {
+            if (running) return;
+            running = true;
+            loadCache();
+            fetch.run();
+        });
+    }
+
+    @Override
+    public void stop() {
+        listener = null;
+        scheduler.post(() -> {
+            running = false;
+            scheduler.cancel(fetch);
+            retries.reset(fetch);
+        });
+    }
+
+    private final Runnable fetch = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+            try {
+                fetchOnce();
+                retries.reset(this);
+                scheduler.postDelayed(this, refreshMs);
+            } catch (IOException | ConfigException e) {
+                Log.w(TAG, "Fetch from " + url + " failed: " + e.getMessage());
+                long delay = retries.retry(this, BACKOFF);
+                if (delay >= 0) Telemetry.event(Telemetry.Kind.RETRY, Telemetry.Span.CONFIG_FETCH, delay);
+            }
+        }
+    };
+
+    // =========================
+    // HTTP
+    // =========================
+
+    private void fetchOnce() throws IOException, ConfigException {
+        Telemetry.count(Telemetry.Counter.CONFIG_FETCHES);
+        long t0 = Telemetry.startCall();
+        HttpURLConnection c = (HttpURLConnection) url.openConnection();
+        try {
+            c.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            c.setReadTimeout(READ_TIMEOUT_MS);
+            c.setUseCaches(false);
+            c.setInstanceFollowRedirects(true);
+            c.setRequestProperty("Accept", "application/json");
+            c.setRequestProperty("Accept-Encoding", "gzip");
+            // Only claim the ETag while we still hold the body it stands for.
+            if (etag != null && current != null) c.setRequestProperty("If-None-Match", etag);
+
+            int code = c.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Telemetry.count(Telemetry.Counter.CONFIG_NOT_MODIFIED);
+                return;
+            }
+            if (code != HttpURLConnection.HTTP_OK) throw new IOException("HTTP " + code);
+
+            byte[] body;
+            try (InputStream in = "gzip".equalsIgnoreCase(c.getContentEncoding())
+                    ? new GZIPInputStream(c.getInputStream()) : c.getInputStream()) {
+                body = readBounded(in);
+            }
+            String newEtag = c.getHeaderField("ETag");
+            if (newEtag != null && newEtag.length() > MAX_ETAG_CHARS) newEtag = null;
+
+            accept(body, newEtag);
+        } finally {
+            c.disconnect();
+            Telemetry.call(Telemetry.Span.CONFIG_FETCH, t0);
+        }
+    }
+
+    private void accept(byte[] body, String newEtag) throws IOException, ConfigException {
+        Config parsed;
+        try {
+            parsed = ConfigParser.parse(new ByteArrayInputStream(body), body.length);
+        } catch (ConfigException e) {
+            Telemetry.count(Telemetry.Counter.CONFIG_REJECTS);
+            throw e;
+        }
+
+        Config cur = current;
+        if (cur == null || !parsed.hash.equals(cur.hash)) {
+            writeAtomically(new File(cacheDir, CACHE_BODY), body);
+            current = parsed;
+            Log.i(TAG, "Remote config v" + parsed.version + " from " + url + " (" + body.length + " bytes)");
+        }
+        if (newEtag == null ? etag != null : !newEtag.equals(etag)) {
+            etag = newEtag;
+            File f = new File(cacheDir, CACHE_ETAG);
+            if (etag == null) {
+                f.delete();
+            } else {
+                writeAtomically(f, etag.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        Listener l = listener;
+        if (cur != current && l != null) l.onSourceChanged(this);
+    }
+
+    // =========================
+    // Disk cache
+    // =========================
+
+    private void loadCache() {
+        if (cacheLoaded) return;
+        cacheLoaded = true;
+
+        File body = new File(cacheDir, CACHE_BODY);
+        if (!body.isFile()) return;
+        try {
+            current = ConfigParser.parse(body);
+            File e = new File(cacheDir, CACHE_ETAG);
+            if (e.isFile()) {
+                try (InputStream in = new FileInputStream(e)) {
+                    String s = new String(readBounded(in), StandardCharsets.UTF_8).trim();
+                    etag = s.isEmpty() || s.length() > MAX_ETAG_CHARS ? null : s;
+                }
+            }
+            Log.i(TAG, "Cached remote config v" + current.version + " restored");
+            Listener l = listener;
+            if (l != null) l.onSourceChanged(this);
+        } catch (IOException | ConfigException e) {
+            Log.w(TAG, "Dropping cached remote config: " + e.getMessage());
+            body.delete();
+            new File(cacheDir, CACHE_ETAG).delete();
+        }
+    }
+
+    private void writeAtomically(File f, byte[] bytes) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) throw new IOException("cannot create " + cacheDir);
+        File tmp = new File(cacheDir, f.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(bytes);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("cannot rename into " + f);
+        }
+    }
+
+    private static byte[] readBounded(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            if (out.size() + n > ConfigParser.MAX_CONFIG_BYTES) {
+                throw new IOException("body larger than " + ConfigParser.MAX_CONFIG_BYTES + " bytes");
+            }
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,311 @@
+package com.xam.kiosk.display;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.Log;
+
+import com.xam.kiosk.config.ConfigRepository;
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.model.DisplayWindow;
+import com.xam.kiosk.policy.PolicyEngine;
+import com.xam.kiosk.telemetry.KioskStatus;
+import com.xam.kiosk.telemetry.Telemetry;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps screen brightness and power in line with a {@link DisplayPolicy}.
+ *
+ * Inputs: the thermal status listener (battery temperature on Android 9), the
+ * sticky battery broadcast and the config's display_schedule. Brightness steps
+ * down as soon as the thermal status rises and back up only after it has stayed
+ * lower for STEP_UP_DELAY_MS, so a device at the edge does not flicker. While
+ * cool and plugged in outside any window it stays at full brightness.
+ *
+ * As device owner the system brightness is set (so it holds over NodeApp too),
+ * stay-on-while-plugged is managed, and screen-off windows lock the screen and
+ * wake it at the end. Without device owner only the kiosk window is adjusted.
+ * Settings are read first and written only when they differ.
+ *
+ * Runs on its own thread; window changes are handed to the ui executor.
+ */
+public class DisplayController {
+
+    private static final String TAG = "DisplayController";
+
+    private static final long STEP_UP_DELAY_MS = 120_000;
+
+    // Re-evaluate at least this often so wall-clock changes are noticed
+    private static final long MAX_RECHECK_MS = 15 * 60_000;
+
+    private static final long WAKE_MS = 5000;
+
+    private static final int STAY_ON_PLUGGED = BatteryManager.BATTERY_PLUGGED_AC
+            | BatteryManager.BATTERY_PLUGGED_USB | BatteryManager.BATTERY_PLUGGED_WIRELESS;
+
+    /** Kiosk window side. Called on the ui executor only. */
+    public interface Window {
+        void applyWindow(float brightness, boolean keepScreenOn);
+    }
+
+    private final Context context;
+    private final PolicyEngine policyEngine;
+    private final ComponentName admin;
+    private final DevicePolicyManager dpm;
+    private final PowerManager pm;
+    private final ConfigRepository repository;
+    private final Executor ui;
+    private final Window window;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    // Display-thread state
+    private int rawThermal = 0;
+    private int thermal = 0;            // effective status, after step-up delay
+    private long throttledSinceMs = -1;
+    private boolean plugged = true;
+    private int batteryPercent = -1;
+    private List<DisplayWindow> schedule = Collections.emptyList();
+    private DisplayPolicy applied;
+    private boolean started;
+
+    private Object thermalListener;     // PowerManager.OnThermalStatusChangedListener on Q+
+    private BroadcastReceiver batteryReceiver;
+
+    public DisplayController(Context context, PolicyEngine policyEngine, ConfigRepository repository,
+                             Executor ui, Window window) {
+        this.context = context.getApplicationContext();
+        this.policyEngine = policyEngine;
+        this.admin = policyEngine.getAdmin();
+        this.dpm = (DevicePolicyManager) this.context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+        this.pm = (PowerManager) this.context.getSystemService(Context.POWER_SERVICE);
+        this.repository = repository;
+        this.ui = ui;
+        this.window = window;
+        this.thread = new HandlerThread("display");
+        this.thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    public void start() {
+        handler.post(() -> {
+            if (started) return;
+            started = true;
+
+            Config config = repository.get();
+            if (config != null) schedule = config.displaySchedule;
+            repository.addListener(configListener);
+
+            registerThermalListener();
+            registerBatteryReceiver();
+            evaluate();
+        });
+    }
+
+    /** Safe to call from any thread; the thread is gone afterwards. */
+    public void stop() {
+        repository.removeListener(configListener);
+        handler.post(() -> {
+            started = false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && thermalListener != null && pm != null) {
+                pm.removeThermalStatusListener((PowerManager.OnThermalStatusChangedListener) thermalListener);
+            }
+            thermalListener = null;
+            if (batteryReceiver != null) {
+                try {
+                    context.unregisterReceiver(batteryReceiver);
+                } catch (Exception ignored) {}
+                batteryReceiver = null;
+            }
+            handler.removeCallbacksAndMessages(null);
+            thread.quitSafely();
+        });
+    }
+
+    private final ConfigRepository.Listener configListener = this::onConfigChanged;
+
+    // Called on whatever thread loaded the config
+    private void onConfigChanged(Config config) {
+        handler.post(() -> {
+            if (!started || config.displaySchedule.equals(schedule)) return;
+            schedule = config.displaySchedule;
+            Log.i(TAG, "Display schedule " + schedule);
+            evaluate();
+        });
+    }
+
+    private final Runnable evaluateRunnable = this::evaluate;
+
+    private final Runnable stepUpRunnable = () -> {
+        if (rawThermal >= thermal) return;
+        Log.i(TAG, "Thermal status " + thermal + " -> " + rawThermal + " (cooled down)");
+        thermal = rawThermal;
+        if (thermal == 0 && throttledSinceMs >= 0) {
+            Telemetry.event(Telemetry.Kind.LATENCY, Telemetry.Span.THERMAL_THROTTLE,
+                    SystemClock.uptimeMillis() - throttledSinceMs);
+            throttledSinceMs = -1;
+        }
+        evaluate();
+    };
+
+    // =========================
+    // Inputs (display thread)
+    // =========================
+
+    private void onThermalStatus(int status) {
+        if (!started) return;
+        rawThermal = status;
+        KioskStatus.thermalStatus = status;
+
+        if (status > thermal) {
+            handler.removeCallbacks(stepUpRunnable);
+            Log.w(TAG, "Thermal status " + thermal + " -> " + status + "; stepping brightness down");
+            Telemetry.count(Telemetry.Counter.THERMAL_THROTTLES);
+            if (throttledSinceMs < 0) throttledSinceMs = SystemClock.uptimeMillis();
+            thermal = status;
+            evaluate();
+        } else if (status < thermal) {
+            handler.removeCallbacks(stepUpRunnable);
+            handler.postDelayed(stepUpRunnable, STEP_UP_DELAY_MS);
+        } else {
+            handler.removeCallbacks(stepUpRunnable);
+        }
+    }
+
+    private void registerThermalListener() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || pm == null) return;
+        try {
+            PowerManager.OnThermalStatusChangedListener l = this::onThermalStatus;
+            pm.addThermalStatusListener(handler::post, l);
+            thermalListener = l;
+            onThermalStatus(pm.getCurrentThermalStatus());
+        } catch (Exception e) {
+            Log.w(TAG, "Thermal listener not registered: " + e.getMessage());
+        }
+    }
+
+    private void registerBatteryReceiver() {
+        batteryReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context c, Intent intent) {
+                onBattery(intent);
+            }
+        };
+        try {
+            // Sticky: the first delivery carries the current state.
+            context.registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, handler);
+        } catch (Exception e) {
+            Log.w(TAG, "Battery receiver not registered: " + e.getMessage());
+            batteryReceiver = null;
+        }
+    }
+
+    private void onBattery(Intent intent) {
+        if (!started || intent == null) return;
+
+        boolean nowPlugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        int percent = level >= 0 && scale > 0 ? level * 100 / scale : -1;
+
+        // Android 9 has no thermal status API: go by battery temperature.
+        if (thermalListener == null) {
+            int temp = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+            if (temp != Integer.MIN_VALUE) {
+                int status = DisplayPolicy.thermalFromBatteryTemp(temp);
+                if (status != rawThermal) onThermalStatus(status);
+            }
+        }
+
+        // Level changes arrive often; only crossing the low-battery line matters.
+        boolean wasLow = batteryPercent >= 0 && batteryPercent < DisplayPolicy.LOW_BATTERY_PERCENT;
+        boolean isLow = percent >= 0 && percent < DisplayPolicy.LOW_BATTERY_PERCENT;
+        batteryPercent = percent;
+        if (nowPlugged != plugged || wasLow != isLow) {
+            plugged = nowPlugged;
+            evaluate();
+        }
+    }
+
+    // =========================
+    // Apply (display thread)
+    // =========================
+
+    private void evaluate() {
+        if (!started) return;
+        handler.removeCallbacks(evaluateRunnable);
+
+        Calendar now = Calendar.getInstance();
+        int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        DisplayPolicy desired = DisplayPolicy.of(thermal, plugged, batteryPercent, schedule, minute);
+        if (!desired.sameOutput(applied)) apply(desired);
+        applied = desired;
+
+        if (!schedule.isEmpty()) {
+            long toEdgeMs = DisplayPolicy.minutesToNextEdge(schedule, minute) * 60_000L
+                    - now.get(Calendar.SECOND) * 1000L;
+            handler.postDelayed(evaluateRunnable, Math.max(1000, Math.min(toEdgeMs, MAX_RECHECK_MS)));
+        }
+    }
+
+    private void apply(DisplayPolicy p) {
+        long t0 = System.nanoTime();
+        boolean wasOff = applied != null && !applied.screenOn;
+        KioskStatus.displayBrightness = p.screenOn ? p.brightness : 0f;
+
+        if (policyEngine.isDeviceOwner()) {
+            ContentResolver cr = context.getContentResolver();
+            try {
+                if (p.screenOn) {
+                    int value = Math.max(1, Math.round(p.brightness * 255));
+                    if (Settings.System.getInt(cr, Settings.System.SCREEN_BRIGHTNESS_MODE, -1)
+                            != Settings.System.SCREEN_BRIGHTNESS_MODE_MANUAL) {
+                        dpm.setSystemSetting(admin, Settings.System.SCREEN_BRIGHTNESS_MODE,
+                                Integer.toString(Settings.System.SCREEN_BRIGHTNESS_MODE_MANUAL));
+                    }
+                    if (Settings.System.getInt(cr, Settings.System.SCREEN_BRIGHTNESS, -1) != value) {
+                        dpm.setSystemSetting(admin, Settings.System.SCREEN_BRIGHTNESS, Integer.toString(value));
+                    }
+                }
+                int stayOn = p.screenOn ? STAY_ON_PLUGGED : 0;
+                if (Settings.Global.getInt(cr, Settings.Global.STAY_ON_WHILE_PLUGGED_IN, -1) != stayOn) {
+                    dpm.setGlobalSetting(admin, Settings.Global.STAY_ON_WHILE_PLUGGED_IN, Integer.toString(stayOn));
+                }
+                if (!p.screenOn) {
+                    dpm.lockNow();
+                } else if (wasOff) {
+                    wake();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Applying display policy failed: " + e.getMessage(), e);
+            }
+        }
+
+        ui.execute(() -> window.applyWindow(p.screenOn ? p.brightness : 0f, p.screenOn));
+        Log.i(TAG, "Applied " + p + " in " + (System.nanoTime() - t0) / 1000 + "us");
+    }
+
+    @SuppressWarnings("deprecation")
+    private void wake() {
+        if (pm == null) return;
+        // Brief: stay-on-while-plugged keeps it on from here.
+        PowerManager.WakeLock wl = pm.newWakeLock(
+                PowerManager.SCREEN_BRIGHT_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP, "kiosk:display");
+        wl.acquire(WAKE_MS);
+    }
+}
@@ -0,0 +1,100 @@
+package com.xam.kiosk.display;
+
+import com.xam.kiosk.model.DisplayWindow;
+
+import java.util.List;
+
+/**
+ * Desired screen state from thermal status, power and the config's schedule.
+ * Pure function of its inputs; {@link DisplayController} gathers them and applies
+ * the result.
+ *
+ * Brightness is the lowest of:
+ *   - the thermal cap (1.0 while the device is cool, stepping down with status)
+ *   - the battery cap (only when unplugged)
+ *   - the active schedule window, if any
+ */
+public final class DisplayPolicy {
+
+    // Indexed by PowerManager.THERMAL_STATUS_* (NONE .. SHUTDOWN)
+    private static final float[] THERMAL_CAP = {1.0f, 0.85f, 0.6f, 0.4f, 0.25f, 0.1f, 0.1f};
+
+    static final float BATTERY_CAP = 0.6f;
+    static final float LOW_BATTERY_CAP = 0.3f;
+    static final int LOW_BATTERY_PERCENT = 20;
+
+    // Battery temperature (tenths of a degree C) standing in for the thermal
+    // status API on Android 9: LIGHT, MODERATE, SEVERE
+    private static final int[] BATTERY_TEMP_STEPS = {400, 450, 500};
+
+    public final float brightness;  // 0..1
+    public final boolean screenOn;
+    public final int thermalStatus;
+
+    private DisplayPolicy(float brightness, boolean screenOn, int thermalStatus) {
+        this.brightness = brightness;
+        this.screenOn = screenOn;
+        this.thermalStatus = thermalStatus;
+    }
+
+    public static DisplayPolicy of(int thermalStatus, boolean plugged, int batteryPercent,
+                                   List<DisplayWindow> schedule, int minuteOfDay) {
+        float level = thermalCap(thermalStatus);
+        if (!plugged && batteryPercent >= 0) {
+            level = Math.min(level, batteryPercent < LOW_BATTERY_PERCENT ? LOW_BATTERY_CAP : BATTERY_CAP);
+        }
+
+        DisplayWindow window = activeWindow(schedule, minuteOfDay);
+        if (window != null && window.screenOff()) return new DisplayPolicy(0f, false, thermalStatus);
+        if (window != null) level = Math.min(level, window.brightness);
+        return new DisplayPolicy(level, true, thermalStatus);
+    }
+
+    public static float thermalCap(int thermalStatus) {
+        if (thermalStatus < 0) return THERMAL_CAP[0];
+        return THERMAL_CAP[Math.min(thermalStatus, THERMAL_CAP.length - 1)];
+    }
+
+    /** Thermal status (0 = NONE) estimated from battery temperature, for devices without the API. */
+    public static int thermalFromBatteryTemp(int tenthsC) {
+        int status = 0;
+        for (int step : BATTERY_TEMP_STEPS) {
+            if (tenthsC >= step) status++;
+        }
+        return status;
+    }
+
+    /** First window containing {@code minuteOfDay}, or null. */
+    static DisplayWindow activeWindow(List<DisplayWindow> schedule, int minuteOfDay) {
+        for (DisplayWindow w : schedule) {
+            if (w.contains(minuteOfDay)) return w;
+        }
+        return null;
+    }
+
+    /** Minutes until the next window starts or ends (at least 1). */
+    static int minutesToNextEdge(List<DisplayWindow> schedule, int minuteOfDay) {
+        int best = 24 * 60;
+        for (DisplayWindow w : schedule) {
+            best = Math.min(best, untilMinute(minuteOfDay, w.startMinute));
+            best = Math.min(best, untilMinute(minuteOfDay, w.endMinute));
+        }
+        return best;
+    }
+
+    private static int untilMinute(int now, int target) {
+        int d = (target - now + 24 * 60) % (24 * 60);
+        return d == 0 ? 24 * 60 : d;
+    }
+
+    /** Same screen state; used to skip redundant writes. */
+    boolean sameOutput(DisplayPolicy o) {
+        return o != null && o.screenOn == screenOn && o.brightness == brightness;
+    }
+
+    @Override
+    public String toString() {
+        return "DisplayPolicy{brightness=" + brightness + " screenOn=" + screenOn
+                + " thermal=" + thermalStatus + "}";
+    }
+}
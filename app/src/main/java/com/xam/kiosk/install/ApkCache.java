@@ -0,0 +1,325 @@
+package com.xam.kiosk.install;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.xam.kiosk.util.Clock;
+import com.xam.kiosk.util.HexUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content-addressed copies of provisioning APKs in app-private storage.
+ *
+ * APKs arrive over MTP on FUSE-backed shared storage, which is slow to read and
+ * may hold a file that is still being written. {@link #stage} copies a source
+ * once its size and mtime have stopped changing, hashing it in the same pass,
+ * and stores it as files/apk_cache/&lt;sha256&gt;.apk. Installs, plans and
+ * verifications then read the private copy. A source whose size and mtime are
+ * unchanged since it was staged, or whose expected digest is already cached, is
+ * not read again. The cache keeps at most MAX_ENTRIES files, least recently used
+ * first out.
+ *
+ * Worker thread only.
+ */
+public class ApkCache {
+
+    private static final String TAG = "ApkCache";
+
+    private static final String DIR = "apk_cache";
+    private static final String SUFFIX = ".apk";
+    private static final int MAX_ENTRIES = 8;
+
+    // Size and mtime must hold still this long before a source is copied
+    private static final long STABLE_MS = 2000;
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private static final class Stamp {
+        final long length;
+        final long mtime;
+        final long seenMs;      // uptime when first seen with this length/mtime
+        String digest;          // set once staged
+
+        Stamp(long length, long mtime, long seenMs) {
+            this.length = length;
+            this.mtime = mtime;
+            this.seenMs = seenMs;
+        }
+
+        boolean same(File f) {
+            return f.length() == length && f.lastModified() == mtime;
+        }
+    }
+
+    private final File dir;
+    private final Clock clock;
+
+    // Source path -> last observed stamp
+    private final Map<String, Stamp> stamps = new HashMap<>();
+
+    public ApkCache(Context context, Clock clock) {
+        this.dir = new File(context.getApplicationContext().getFilesDir(), DIR);
+        this.clock = clock;
+    }
+
+    /**
+     * @param expectedSha256 hex digest the source must have, or null
+     * @return the cached copy, or null while the source is still changing
+     * @throws IOException if the source cannot be copied or has the wrong digest
+     */
+    public File stage(File source, String expectedSha256) throws IOException {
+        // Already an entry (e.g. extracted from a provisioning bundle)
+        String own = digestOf(source);
+        if (own != null && source.exists()) {
+            if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(own)) {
+                throw mismatch(source, expectedSha256, own);
+            }
+            return touch(source);
+        }
+
+        if (expectedSha256 != null) {
+            File hit = entry(expectedSha256.toLowerCase());
+            if (hit.exists()) return touch(hit);
+        }
+
+        String key = source.getAbsolutePath();
+        Stamp stamp = stamps.get(key);
+        if (stamp == null || !stamp.same(source)) {
+            stamp = new Stamp(source.length(), source.lastModified(), clock.uptimeMillis());
+            stamps.put(key, stamp);
+        }
+
+        if (stamp.digest != null) {
+            // Already read this exact file: answer without touching shared storage again.
+            if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(stamp.digest)) {
+                throw mismatch(source, expectedSha256, stamp.digest);
+            }
+            File hit = entry(stamp.digest);
+            if (hit.exists()) return touch(hit);
+        }
+
+        // Unchanged for STABLE_MS, either by mtime (written before we looked) or by observation.
+        boolean stable = System.currentTimeMillis() - stamp.mtime >= STABLE_MS
+                || clock.uptimeMillis() - stamp.seenMs >= STABLE_MS;
+        if (!stable || stamp.length == 0) return null;
+
+        return copy(source, stamp, expectedSha256);
+    }
+
+    /**
+     * Streams an APK straight into the cache, verifying size and digest on the way.
+     * Nothing is kept unless both match.
+     */
+    public File put(InputStream in, String expectedSha256, long expectedBytes) throws IOException {
+        File hit = entry(expectedSha256.toLowerCase());
+        if (hit.exists()) return touch(hit);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+
+        File tmp = File.createTempFile("put", ".tmp", dir);
+        String digest;
+        long total = 0;
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[BUFFER_BYTES];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                total += n;
+                if (total > expectedBytes) throw new IOException("longer than " + expectedBytes + " bytes");
+                md.update(buf, 0, n);
+                out.write(buf, 0, n);
+            }
+            out.getFD().sync();
+            digest = HexUtil.toHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            tmp.delete();
+            throw new IOException(e);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+
+        if (total != expectedBytes || !expectedSha256.equalsIgnoreCase(digest)) {
+            tmp.delete();
+            throw new IOException("size/sha256 mismatch: got " + total + " bytes, " + digest);
+        }
+        if (!tmp.renameTo(hit)) {
+            tmp.delete();
+            throw new IOException("cannot rename into " + hit);
+        }
+        return touch(hit);
+    }
+
+    /** Entry for {@code sha256}, or null if it is not cached. */
+    public File get(String sha256) {
+        File f = entry(sha256.toLowerCase());
+        return f.exists() ? touch(f) : null;
+    }
+
+    /**
+     * Drops least recently used entries beyond MAX_ENTRIES, never one in {@code inUse},
+     * and forgets sources that are gone, changed or whose entry was dropped.
+     */
+    public void evict(Collection<File> inUse) {
+        // Leftovers of a copy interrupted by a crash
+        File[] partial = dir.listFiles((d, name) -> name.endsWith(".tmp"));
+        if (partial != null) {
+            for (File f : partial) f.delete();
+        }
+
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null && files.length > MAX_ENTRIES) {
+            // Newest first: the first `room` entries not in use survive.
+            Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+            Set<File> keep = new HashSet<>(inUse);
+            int room = Math.max(0, MAX_ENTRIES - keep.size());
+            for (File f : files) {
+                if (keep.contains(f)) continue;
+                if (room > 0) {
+                    room--;
+                    continue;
+                }
+                Log.i(TAG, "Evicting " + f.getName());
+                if (!f.delete()) Log.w(TAG, "Cannot delete " + f);
+            }
+        }
+
+        // A later stage() of any of these re-stats the source and starts over.
+        Iterator<Map.Entry<String, Stamp>> it = stamps.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Stamp> e = it.next();
+            Stamp stamp = e.getValue();
+            File source = new File(e.getKey());
+            if (!source.isFile() || !stamp.same(source)
+                    || (stamp.digest != null && !entry(stamp.digest).exists())) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Number of sources being tracked; visible for tests. */
+    int stampCount() {
+        return stamps.size();
+    }
+
+    /** Digest of a cached file from its name, or null if {@code f} is not a cache entry. */
+    public static String digestOf(File f) {
+        String name = f.getName();
+        if (f.getParentFile() == null || !DIR.equals(f.getParentFile().getName())) return null;
+        if (!name.endsWith(SUFFIX)) return null;
+        String hex = name.substring(0, name.length() - SUFFIX.length());
+        return HexUtil.isHex(hex, 64) ? hex : null;
+    }
+
+    // =========================
+    // Copy
+    // =========================
+
+    private File copy(File source, Stamp stamp, String expectedSha256) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+
+        long t0 = System.nanoTime();
+        File tmp = File.createTempFile("stage", ".tmp", dir);
+        String digest;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            try (FileChannel in = new FileInputStream(source).getChannel();
+                 FileChannel out = new FileOutputStream(tmp).getChannel()) {
+                WritableByteChannel sink = new DigestingChannel(out, md);
+                long pos = 0;
+                long size = in.size();
+                while (pos < size) pos += in.transferTo(pos, size - pos, sink);
+                out.force(false);
+            }
+            digest = HexUtil.toHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            tmp.delete();
+            throw new IOException(e);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+
+        // Grew or was rewritten while we copied: try again once it settles.
+        if (!stamp.same(source) || tmp.length() != stamp.length) {
+            tmp.delete();
+            stamps.remove(source.getAbsolutePath());
+            Log.i(TAG, source.getName() + " changed while staging; waiting");
+            return null;
+        }
+        stamp.digest = digest;
+        if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(digest)) {
+            tmp.delete();
+            throw mismatch(source, expectedSha256, digest);
+        }
+
+        File entry = entry(digest);
+        if (entry.exists()) {
+            tmp.delete();
+        } else if (!tmp.renameTo(entry)) {
+            tmp.delete();
+            throw new IOException("cannot rename into " + entry);
+        }
+        Log.i(TAG, "Staged " + source.getName() + " (" + stamp.length + " bytes) as " + entry.getName()
+                + " in " + (System.nanoTime() - t0) / 1_000_000 + "ms");
+        return touch(entry);
+    }
+
+    private static IOException mismatch(File source, String expected, String actual) {
+        return new IOException(source.getName() + " sha256 mismatch: expected " + expected + " got " + actual);
+    }
+
+    private File entry(String digest) {
+        return new File(dir, digest + SUFFIX);
+    }
+
+    private static File touch(File f) {
+        f.setLastModified(System.currentTimeMillis());
+        return f;
+    }
+
+    /** Passes bytes through to {@code out}, hashing them on the way. */
+    private static final class DigestingChannel implements WritableByteChannel {
+        private final FileChannel out;
+        private final MessageDigest md;
+
+        DigestingChannel(FileChannel out, MessageDigest md) {
+            this.out = out;
+            this.md = md;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            md.update(src.duplicate());
+            int n = 0;
+            while (src.hasRemaining()) n += out.write(src);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return out.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // The caller owns out.
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.xam.kiosk.install;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One PackageInstaller session: the APK files to stream and how to apply them.
+ */
+public final class InstallRequest {
+
+    public static final class Part {
+        public final File file;
+        public final String sha256;   // hex; null = don't verify
+
+        public Part(File file, String sha256) {
+            this.file = file;
+            this.sha256 = sha256;
+        }
+    }
+
+    public final String packageName;
+    public final List<Part> parts;
+    /** MODE_INHERIT_EXISTING: splits not listed in {@link #parts} are kept from the installed package. */
+    public final boolean inheritExisting;
+
+    public InstallRequest(String packageName, List<Part> parts, boolean inheritExisting) {
+        this.packageName = packageName;
+        this.parts = Collections.unmodifiableList(parts);
+        this.inheritExisting = inheritExisting;
+    }
+
+    public long totalBytes() {
+        long total = 0;
+        for (Part p : parts) total += p.file.length();
+        return total;
+    }
+}
@@ -0,0 +1,311 @@
+package com.xam.kiosk.install;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInstaller;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import com.xam.kiosk.telemetry.Telemetry;
+import com.xam.kiosk.util.Clock;
+import com.xam.kiosk.util.HexUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Installs NodeApp through a PackageInstaller session.
+ *
+ * Each APK of the request is streamed into the session in large chunks and
+ * hashed on the way, so it is read from storage exactly once; a SHA-256 mismatch
+ * abandons the session before commit. With {@link InstallRequest#inheritExisting}
+ * only the listed files are written and the other splits are kept from the
+ * installed package. The result arrives through an IntentSender broadcast. As
+ * device owner the install is silent; otherwise the system confirmation is shown.
+ * A commit that times out or is cancelled abandons its session, and results for
+ * any session other than the pending one are ignored.
+ *
+ * There is no supported way for a non-privileged installer to downgrade, so a
+ * rollback goes through {@link #uninstall}, which is silent only for the device
+ * owner, and then installs the older set fresh.
+ */
+public class NodeAppInstaller {
+
+    private static final String TAG = "NodeAppInstaller";
+
+    private static final String ACTION_INSTALL_RESULT = "com.xam.kiosk.action.INSTALL_RESULT";
+    private static final String EXTRA_SESSION_ID = "com.xam.kiosk.extra.SESSION_ID";
+
+    // Stands in for the session id while an uninstall is pending; real ids are positive.
+    private static final int UNINSTALL_ID = 0;
+
+    private static final int COPY_BUFFER_BYTES = 256 * 1024;
+    private static final long COMMIT_TIMEOUT_MS = 120_000;
+
+    public interface Callback {
+        /** Called on the handler thread. */
+        void onInstallResult(boolean success, String message);
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Clock clock;
+
+    // One install at a time
+    private int pendingSessionId = -1;
+    private Callback pendingCallback;
+    private long commitStartMs;
+    private BroadcastReceiver resultReceiver;
+
+    public NodeAppInstaller(Context context, Handler handler, Clock clock) {
+        this.context = context.getApplicationContext();
+        this.handler = handler;
+        this.clock = clock;
+    }
+
+    public boolean isInstalling() {
+        return pendingCallback != null;
+    }
+
+    /** Must be called on the handler thread. */
+    public void install(InstallRequest request, Callback callback) {
+        if (isInstalling()) {
+            callback.onInstallResult(false, "install already in progress");
+            return;
+        }
+
+        Telemetry.count(Telemetry.Counter.INSTALL_ATTEMPTS);
+        long startMs = clock.uptimeMillis();
+        PackageInstaller pi = context.getPackageManager().getPackageInstaller();
+        PackageInstaller.Session session = null;
+        int sessionId = -1;
+
+        try {
+            PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(request.inheritExisting
+                    ? PackageInstaller.SessionParams.MODE_INHERIT_EXISTING
+                    : PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+            params.setAppPackageName(request.packageName);
+            params.setSize(request.totalBytes());
+
+            sessionId = pi.createSession(params);
+            session = pi.openSession(sessionId);
+
+            long t0 = Telemetry.startCall();
+            for (int i = 0; i < request.parts.size(); i++) {
+                InstallRequest.Part part = request.parts.get(i);
+                // Session file names only need to be unique; the split name comes from the manifest.
+                String actual = streamInto(session, i + "_" + part.file.getName(), part.file);
+                if (part.sha256 != null && !part.sha256.equalsIgnoreCase(actual)) {
+                    Telemetry.count(Telemetry.Counter.INSTALL_FAILURES);
+                    session.abandon();
+                    callback.onInstallResult(false, part.file.getName() + " sha256 mismatch: expected "
+                            + part.sha256 + " got " + actual);
+                    return;
+                }
+            }
+            Telemetry.call(Telemetry.Span.APK_STREAM, t0);
+
+            Log.i(TAG, "Streamed " + request.parts.size() + " APK(s), " + request.totalBytes()
+                    + " bytes into session " + sessionId + (request.inheritExisting ? " (inherit)" : "")
+                    + " in " + (clock.uptimeMillis() - startMs) + "ms; committing");
+
+            registerResultReceiver();
+            pendingSessionId = sessionId;
+            pendingCallback = callback;
+            commitStartMs = clock.uptimeMillis();
+            handler.postDelayed(timeoutRunnable, COMMIT_TIMEOUT_MS);
+
+            session.commit(resultSender(sessionId).getIntentSender());
+
+        } catch (Exception e) {
+            Log.e(TAG, "install failed: " + e.getMessage(), e);
+            if (session != null) {
+                try { session.abandon(); } catch (Exception ignored) {}
+            }
+            clearPending();
+            Telemetry.count(Telemetry.Counter.INSTALL_FAILURES);
+            callback.onInstallResult(false, e.getMessage());
+        } finally {
+            if (session != null) session.close();
+        }
+    }
+
+    public void cancel() {
+        if (pendingCallback != null) {
+            Log.i(TAG, "Install cancelled; abandoning session " + pendingSessionId);
+            abandonPending();
+        }
+        clearPending();
+    }
+
+    /**
+     * Removes {@code packageName} with its data. Silent for the device owner;
+     * anyone else gets the system confirmation, as for installs. Must be called
+     * on the handler thread.
+     */
+    public void uninstall(String packageName, Callback callback) {
+        if (isInstalling()) {
+            callback.onInstallResult(false, "install already in progress");
+            return;
+        }
+
+        try {
+            registerResultReceiver();
+            pendingSessionId = UNINSTALL_ID;
+            pendingCallback = callback;
+            commitStartMs = clock.uptimeMillis();
+            handler.postDelayed(timeoutRunnable, COMMIT_TIMEOUT_MS);
+
+            context.getPackageManager().getPackageInstaller()
+                    .uninstall(packageName, resultSender(UNINSTALL_ID).getIntentSender());
+        } catch (Exception e) {
+            Log.e(TAG, "uninstall failed: " + e.getMessage(), e);
+            clearPending();
+            callback.onInstallResult(false, e.getMessage());
+        }
+    }
+
+    private String streamInto(PackageInstaller.Session session, String name, File apk) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[] buf = new byte[COPY_BUFFER_BYTES];
+
+        try (InputStream in = new FileInputStream(apk);
+             OutputStream out = session.openWrite(name, 0, apk.length())) {
+            int n;
+            long total = 0;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+                out.write(buf, 0, n);
+                total += n;
+            }
+            if (total != apk.length()) {
+                throw new IOException("APK changed while streaming: " + total + "/" + apk.length());
+            }
+            session.fsync(out);
+        }
+        return HexUtil.toHex(md.digest());
+    }
+
+    // =========================
+    // Commit result
+    // =========================
+
+    private PendingIntent resultSender(int sessionId) {
+        Intent intent = new Intent(ACTION_INSTALL_RESULT)
+                .setPackage(context.getPackageName())
+                .putExtra(EXTRA_SESSION_ID, sessionId);
+
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        // The installer fills in EXTRA_STATUS, so the intent must stay mutable.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) flags |= PendingIntent.FLAG_MUTABLE;
+        return PendingIntent.getBroadcast(context, sessionId, intent, flags);
+    }
+
+    private void registerResultReceiver() {
+        if (resultReceiver != null) return;
+
+        resultReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context c, Intent intent) {
+                onCommitResult(intent);
+            }
+        };
+        IntentFilter filter = new IntentFilter(ACTION_INSTALL_RESULT);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            // Sent through our own PendingIntent, so it stays app-internal
+            context.registerReceiver(resultReceiver, filter, null, handler, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(resultReceiver, filter, null, handler);
+        }
+    }
+
+    private void onCommitResult(Intent intent) {
+        if (intent == null) return;
+        int sessionId = intent.getIntExtra(EXTRA_SESSION_ID, -1);
+        int reported = intent.getIntExtra(PackageInstaller.EXTRA_SESSION_ID, sessionId);
+        if (pendingCallback == null || sessionId < 0 || sessionId != pendingSessionId || reported != sessionId) {
+            // Abandoned or timed-out session still reporting in
+            Log.w(TAG, "Ignoring result for stale session " + sessionId);
+            return;
+        }
+
+        int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+        String message = intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+
+        if (status == PackageInstaller.STATUS_PENDING_USER_ACTION) {
+            // Not device owner: hand the confirmation to the user and keep waiting.
+            Intent confirm = intent.getParcelableExtra(Intent.EXTRA_INTENT);
+            if (confirm != null) {
+                confirm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                try {
+                    context.startActivity(confirm);
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to show install confirmation: " + e.getMessage(), e);
+                }
+            }
+            return;
+        }
+
+        Callback cb = pendingCallback;
+        long commitMs = clock.uptimeMillis() - commitStartMs;
+        clearPending();
+
+        boolean success = status == PackageInstaller.STATUS_SUCCESS;
+        if (sessionId == UNINSTALL_ID) {
+            Log.i(TAG, "Uninstall status=" + status + " (" + message + ") after " + commitMs + "ms");
+            cb.onInstallResult(success, message);
+            return;
+        }
+        Telemetry.event(Telemetry.Kind.LATENCY, Telemetry.Span.INSTALL_COMMIT, commitMs);
+        if (!success) Telemetry.count(Telemetry.Counter.INSTALL_FAILURES);
+        Log.i(TAG, "Session " + sessionId + " status=" + status + " (" + message + ") after " + commitMs + "ms");
+        cb.onInstallResult(success, message);
+    }
+
+    private final Runnable timeoutRunnable = () -> {
+        Callback cb = pendingCallback;
+        if (cb == null) return;
+        if (pendingSessionId == UNINSTALL_ID) {
+            Log.w(TAG, "No uninstall result");
+            clearPending();
+            cb.onInstallResult(false, "uninstall timeout");
+            return;
+        }
+        Log.w(TAG, "No commit result for session " + pendingSessionId + "; abandoning it");
+        Telemetry.count(Telemetry.Counter.INSTALL_FAILURES);
+        abandonPending();
+        clearPending();
+        cb.onInstallResult(false, "commit timeout");
+    };
+
+    // Best effort: the system may already be past the point where abandoning
+    // stops the install, and it throws once the session is gone.
+    private void abandonPending() {
+        if (pendingSessionId <= UNINSTALL_ID) return;
+        try {
+            context.getPackageManager().getPackageInstaller().abandonSession(pendingSessionId);
+        } catch (Exception e) {
+            Log.w(TAG, "Abandoning session " + pendingSessionId + " failed: " + e.getMessage());
+        }
+    }
+
+    private void clearPending() {
+        handler.removeCallbacks(timeoutRunnable);
+        pendingSessionId = -1;
+        pendingCallback = null;
+        if (resultReceiver != null) {
+            try {
+                context.unregisterReceiver(resultReceiver);
+            } catch (Exception ignored) {}
+            resultReceiver = null;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.xam.kiosk.install;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.content.pm.SigningInfo;
+import android.util.Log;
+
+import com.xam.kiosk.util.HexUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides whether the NodeApp APK set named by the config should be installed
+ * over the current one, and keeps the previous set around for rollback.
+ *
+ * The config APK is checked against the installed package by versionCode and
+ * signing certificate (and against the config's own nodeapp_version_code /
+ * nodeapp_cert_sha256 when given). Files byte-identical to an installed base or
+ * split are left out and the session inherits them, so only changed splits are
+ * streamed. Note that Android requires all splits to share the base versionCode,
+ * so in practice this skips work for same-version split changes; a version bump
+ * streams every file.
+ *
+ * Worker thread only.
+ */
+public class NodeAppUpdater {
+
+    private static final String TAG = "NodeAppUpdater";
+
+    private static final String ROLLBACK_DIR = "nodeapp_rollback";
+    private static final int HASH_BUFFER_BYTES = 64 * 1024;
+
+    public static final class Plan {
+        /** Null when there is nothing to install (see {@link #reason}). */
+        public final InstallRequest request;
+        public final long fromVersion;   // -1 = not installed
+        public final long toVersion;
+        public final String reason;
+
+        public Plan(InstallRequest request, long fromVersion, long toVersion, String reason) {
+            this.request = request;
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.reason = reason;
+        }
+
+        public boolean isUpdate() {
+            return request != null && fromVersion >= 0;
+        }
+    }
+
+    private final Context context;
+    private final String packageName;
+    private final File rollbackDir;
+
+    // Set after an inherit-mode install failed; the next plan streams everything.
+    private boolean deltaFailed = false;
+
+    public NodeAppUpdater(Context context, String packageName) {
+        this.context = context.getApplicationContext();
+        this.packageName = packageName;
+        this.rollbackDir = new File(this.context.getFilesDir(), ROLLBACK_DIR);
+    }
+
+    public void onDeltaInstallFailed() {
+        deltaFailed = true;
+    }
+
+    /**
+     * @param baseSha256  expected digest of {@code base}, or null
+     * @param wantVersion versionCode the config asks for, or -1
+     * @param wantCert    signing certificate digest the config asks for, or null
+     */
+    public Plan plan(File base, List<File> splits, String baseSha256, long wantVersion, String wantCert) {
+        PackageManager pm = context.getPackageManager();
+
+        PackageInfo archive = pm.getPackageArchiveInfo(base.getPath(), PackageManager.GET_SIGNING_CERTIFICATES);
+        if (archive == null) return reject("cannot parse " + base);
+        if (!packageName.equals(archive.packageName)) {
+            return reject(base.getName() + " is " + archive.packageName + ", not " + packageName);
+        }
+
+        long toVersion = archive.getLongVersionCode();
+        if (wantVersion >= 0 && wantVersion != toVersion) {
+            return reject("APK versionCode " + toVersion + " != configured " + wantVersion);
+        }
+
+        Set<String> archiveCerts = certDigests(archive.signingInfo);
+        if (wantCert != null && !archiveCerts.contains(wantCert.toLowerCase())) {
+            return reject("APK not signed by configured certificate");
+        }
+
+        List<File> files = new ArrayList<>();
+        files.add(base);
+        files.addAll(splits);
+
+        PackageInfo installed = installedInfo(pm);
+        if (installed == null) {
+            return new Plan(fullRequest(files, base, baseSha256), -1, toVersion, "not installed");
+        }
+
+        long fromVersion = installed.getLongVersionCode();
+        if (toVersion < fromVersion) {
+            return new Plan(null, fromVersion, toVersion, "APK is older than installed (" + fromVersion + ")");
+        }
+        if (!archiveCerts.equals(certDigests(installed.signingInfo))) {
+            return reject("signing certificate differs from installed NodeApp; uninstall required");
+        }
+
+        // Delta: leave out files identical to what is installed.
+        Map<Long, List<File>> installedBySize = installedFilesBySize(installed.applicationInfo);
+        List<InstallRequest.Part> changed = new ArrayList<>();
+        for (File f : files) {
+            if (!deltaFailed && isInstalledCopy(f, installedBySize)) continue;
+            changed.add(new InstallRequest.Part(f, f.equals(base) ? baseSha256 : null));
+        }
+
+        if (changed.isEmpty()) {
+            return new Plan(null, fromVersion, toVersion, "up to date");
+        }
+
+        boolean inherit = changed.size() < files.size();
+        deltaFailed = false;
+        return new Plan(new InstallRequest(packageName, changed, inherit), fromVersion, toVersion,
+                inherit ? changed.size() + "/" + files.size() + " APK(s) changed" : "update");
+    }
+
+    private Plan reject(String reason) {
+        Log.w(TAG, "NodeApp APK rejected: " + reason);
+        return new Plan(null, -1, -1, reason);
+    }
+
+    private InstallRequest fullRequest(List<File> files, File base, String baseSha256) {
+        List<InstallRequest.Part> parts = new ArrayList<>();
+        for (File f : files) parts.add(new InstallRequest.Part(f, f.equals(base) ? baseSha256 : null));
+        return new InstallRequest(packageName, parts, false);
+    }
+
+    private PackageInfo installedInfo(PackageManager pm) {
+        try {
+            return pm.getPackageInfo(packageName, PackageManager.GET_SIGNING_CERTIFICATES);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    // =========================
+    // Rollback
+    // =========================
+
+    /** Copies the installed APK set aside before an update. */
+    public boolean saveRollback() {
+        PackageInfo installed = installedInfo(context.getPackageManager());
+        if (installed == null) return false;
+
+        clearRollback();
+        if (!rollbackDir.mkdirs()) return false;
+
+        long t0 = System.nanoTime();
+        List<File> sources = installedFiles(installed.applicationInfo);
+        try {
+            for (int i = 0; i < sources.size(); i++) {
+                copy(sources.get(i), new File(rollbackDir, i + ".apk"));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "saveRollback failed: " + e.getMessage(), e);
+            clearRollback();
+            return false;
+        }
+        Log.i(TAG, "Saved " + sources.size() + " APK(s) of version " + installed.getLongVersionCode()
+                + " for rollback in " + (System.nanoTime() - t0) / 1_000_000 + "ms");
+        return true;
+    }
+
+    /** Request installing the saved set once the package is gone, or null if there is none. */
+    public InstallRequest rollbackRequest() {
+        File[] saved = rollbackDir.listFiles();
+        if (saved == null || saved.length == 0) return null;
+
+        Arrays.sort(saved);
+        List<InstallRequest.Part> parts = new ArrayList<>();
+        for (File f : saved) parts.add(new InstallRequest.Part(f, null));
+        return new InstallRequest(packageName, parts, false);
+    }
+
+    public void clearRollback() {
+        File[] saved = rollbackDir.listFiles();
+        if (saved != null) {
+            for (File f : saved) {
+                if (!f.delete()) Log.w(TAG, "Cannot delete " + f);
+            }
+        }
+        rollbackDir.delete();
+    }
+
+    // =========================
+    // Files / digests
+    // =========================
+
+    private static List<File> installedFiles(ApplicationInfo ai) {
+        List<File> out = new ArrayList<>();
+        out.add(new File(ai.sourceDir));
+        if (ai.splitSourceDirs != null) {
+            for (String s : ai.splitSourceDirs) out.add(new File(s));
+        }
+        return out;
+    }
+
+    private static Map<Long, List<File>> installedFilesBySize(ApplicationInfo ai) {
+        Map<Long, List<File>> out = new HashMap<>();
+        for (File f : installedFiles(ai)) {
+            out.computeIfAbsent(f.length(), k -> new ArrayList<>()).add(f);
+        }
+        return out;
+    }
+
+    /** Size first; only same-size candidates are hashed. */
+    private static boolean isInstalledCopy(File f, Map<Long, List<File>> installedBySize) {
+        List<File> candidates = installedBySize.get(f.length());
+        if (candidates == null) return false;
+        try {
+            String digest = ApkCache.digestOf(f);
+            if (digest == null) digest = sha256(f);
+            for (File c : candidates) {
+                if (digest.equals(sha256(c))) return true;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Digest failed for " + f + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    private static String sha256(File f) throws IOException {
+        try (InputStream in = new FileInputStream(f)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[HASH_BUFFER_BYTES];
+            int n;
+            while ((n = in.read(buf)) > 0) md.update(buf, 0, n);
+            return HexUtil.toHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Set<String> certDigests(SigningInfo info) {
+        Set<String> out = new HashSet<>();
+        if (info == null) return out;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (Signature s : info.getApkContentsSigners()) {
+                out.add(HexUtil.toHex(md.digest(s.toByteArray())));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "certDigests failed: " + e.getMessage());
+        }
+        return out;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        try (FileChannel in = new FileInputStream(from).getChannel();
+             FileChannel out = new FileOutputStream(to).getChannel()) {
+            long pos = 0;
+            long size = in.size();
+            while (pos < size) pos += in.transferTo(pos, size - pos, out);
+        }
+    }
+}
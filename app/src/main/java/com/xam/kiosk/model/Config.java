@@ -1,12 +1,56 @@
 package com.xam.kiosk.model;
 
-public class Config {
-    public final String ssid;
-    public final String nodeappApkPath; // relative to /sdcard/
+import java.util.Collections;
+import java.util.List;
 
-    public Config(String ssid, String nodeappApkPath) {
+/**
+ * Immutable provisioning config snapshot. Instances are shared by every
+ * component; see {@link com.xam.kiosk.config.ConfigRepository}.
+ */
+public final class Config {
+    public final String ssid;           // legacy single open network; also listed in wifiNetworks
+    public final List<WifiNetwork> wifiNetworks; // ranked, best first; empty = no WiFi step
+    public final String nodeappApkPath; // relative to /sdcard/ or absolute
+    public final String nodeappApkSha256; // optional; verified while installing
+    public final long nodeappVersionCode; // optional target versionCode; -1 = read from the APK
+    public final String nodeappCertSha256; // optional; SHA-256 (hex) of the signing certificate
+    public final List<String> nodeappSplits; // split APK paths, resolved like nodeappApkPath; never null
+    public final List<String> policyUserRestrictions;     // UserManager keys; null = built-in defaults
+    public final List<String> policyLockdownRestrictions; // added after provisioning; null = built-in defaults
+    public final List<String> policyLockTaskPackages;     // extra lock task packages; never null
+    public final List<DisplayWindow> displaySchedule;     // dim/off windows; never null
+    public final long version;          // config_version; the highest wins across sources; 0 if absent
+    public final String hash;           // SHA-256 (hex) of the file contents
+
+    public Config(String ssid, List<WifiNetwork> wifiNetworks, String nodeappApkPath, String nodeappApkSha256, long nodeappVersionCode,
+                  String nodeappCertSha256, List<String> nodeappSplits,
+                  List<String> policyUserRestrictions, List<String> policyLockdownRestrictions,
+                  List<String> policyLockTaskPackages, List<DisplayWindow> displaySchedule,
+                  long version, String hash) {
         this.ssid = ssid;
+        this.wifiNetworks = wifiNetworks != null
+                ? Collections.unmodifiableList(wifiNetworks)
+                : Collections.<WifiNetwork>emptyList();
         this.nodeappApkPath = nodeappApkPath;
+        this.nodeappApkSha256 = nodeappApkSha256;
+        this.nodeappVersionCode = nodeappVersionCode;
+        this.nodeappCertSha256 = nodeappCertSha256;
+        this.nodeappSplits = nodeappSplits != null
+                ? Collections.unmodifiableList(nodeappSplits)
+                : Collections.<String>emptyList();
+        this.policyUserRestrictions = policyUserRestrictions != null
+                ? Collections.unmodifiableList(policyUserRestrictions)
+                : null;
+        this.policyLockdownRestrictions = policyLockdownRestrictions != null
+                ? Collections.unmodifiableList(policyLockdownRestrictions)
+                : null;
+        this.policyLockTaskPackages = policyLockTaskPackages != null
+                ? Collections.unmodifiableList(policyLockTaskPackages)
+                : Collections.<String>emptyList();
+        this.displaySchedule = displaySchedule != null
+                ? Collections.unmodifiableList(displaySchedule)
+                : Collections.<DisplayWindow>emptyList();
+        this.version = version;
+        this.hash = hash;
     }
 }
-
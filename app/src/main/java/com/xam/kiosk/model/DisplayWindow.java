@@ -0,0 +1,48 @@
+package com.xam.kiosk.model;
+
+import java.util.Locale;
+
+/**
+ * A daily local-time window with its own brightness (e.g. dim at night).
+ * Immutable; a window whose end is before its start runs past midnight.
+ */
+public final class DisplayWindow {
+
+    public final int startMinute;   // minute of day, 0..1439
+    public final int endMinute;     // exclusive
+    public final float brightness;  // 0..1; 0 = screen off
+
+    public DisplayWindow(int startMinute, int endMinute, float brightness) {
+        this.startMinute = startMinute;
+        this.endMinute = endMinute;
+        this.brightness = brightness;
+    }
+
+    public boolean contains(int minuteOfDay) {
+        if (startMinute <= endMinute) return minuteOfDay >= startMinute && minuteOfDay < endMinute;
+        return minuteOfDay >= startMinute || minuteOfDay < endMinute;
+    }
+
+    public boolean screenOff() {
+        return brightness <= 0f;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DisplayWindow)) return false;
+        DisplayWindow w = (DisplayWindow) o;
+        return startMinute == w.startMinute && endMinute == w.endMinute && brightness == w.brightness;
+    }
+
+    @Override
+    public int hashCode() {
+        return (startMinute * 31 + endMinute) * 31 + Float.floatToIntBits(brightness);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%02d:%02d-%02d:%02d@%.2f",
+                startMinute / 60, startMinute % 60, endMinute / 60, endMinute % 60, brightness);
+    }
+}
@@ -0,0 +1,38 @@
+package com.xam.kiosk.model;
+
+/**
+ * One configured WiFi network. Immutable; the passphrase is never logged.
+ */
+public final class WifiNetwork {
+
+    public enum Security { OPEN, WPA2, WPA3 }
+
+    public final String ssid;
+    public final Security security;
+    public final String passphrase; // null for OPEN
+
+    public WifiNetwork(String ssid, Security security, String passphrase) {
+        this.ssid = ssid;
+        this.security = security;
+        this.passphrase = passphrase;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof WifiNetwork)) return false;
+        WifiNetwork n = (WifiNetwork) o;
+        return ssid.equals(n.ssid) && security == n.security
+                && (passphrase == null ? n.passphrase == null : passphrase.equals(n.passphrase));
+    }
+
+    @Override
+    public int hashCode() {
+        return ssid.hashCode() * 31 + security.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return ssid + " (" + security + ")";
+    }
+}
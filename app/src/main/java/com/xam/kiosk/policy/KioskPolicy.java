@@ -0,0 +1,64 @@
+package com.xam.kiosk.policy;
+
+import android.content.ComponentName;
+import android.os.UserManager;
+
+import com.xam.kiosk.model.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Desired device-owner state: HOME activity, lock task packages and user
+ * restrictions. Immutable; {@link PolicyEngine} makes the device match it.
+ */
+public final class KioskPolicy {
+
+    static final List<String> DEFAULT_RESTRICTIONS = Arrays.asList(
+            UserManager.DISALLOW_ADJUST_VOLUME,
+            UserManager.DISALLOW_CONFIG_BRIGHTNESS);
+
+    // Only after provisioning: MTP is how config.json and the APK arrive.
+    static final List<String> DEFAULT_LOCKDOWN_RESTRICTIONS = Collections.singletonList(
+            UserManager.DISALLOW_USB_FILE_TRANSFER);
+
+    public final ComponentName home;
+    public final Set<String> lockTaskPackages;
+    public final Set<String> userRestrictions;
+
+    KioskPolicy(ComponentName home, Set<String> lockTaskPackages, Set<String> userRestrictions) {
+        this.home = home;
+        this.lockTaskPackages = Collections.unmodifiableSet(lockTaskPackages);
+        this.userRestrictions = Collections.unmodifiableSet(userRestrictions);
+    }
+
+    /**
+     * @param config   source of policy overrides, or null for the built-in defaults
+     * @param lockdown include the post-provisioning restrictions
+     */
+    public static KioskPolicy of(ComponentName home, String nodeAppPackage, Config config, boolean lockdown) {
+        // Sorted so logs and diffs are stable.
+        Set<String> packages = new TreeSet<>();
+        packages.add(home.getPackageName());
+        packages.add(nodeAppPackage);
+        packages.add("com.android.systemui");
+        if (config != null) packages.addAll(config.policyLockTaskPackages);
+
+        Set<String> restrictions = new TreeSet<>(config != null && config.policyUserRestrictions != null
+                ? config.policyUserRestrictions : DEFAULT_RESTRICTIONS);
+        if (lockdown) {
+            restrictions.addAll(config != null && config.policyLockdownRestrictions != null
+                    ? config.policyLockdownRestrictions : DEFAULT_LOCKDOWN_RESTRICTIONS);
+        }
+        return new KioskPolicy(home, packages, restrictions);
+    }
+
+    @Override
+    public String toString() {
+        return "KioskPolicy{home=" + home.flattenToShortString()
+                + " lockTask=" + lockTaskPackages + " restrictions=" + userRestrictions + "}";
+    }
+}
@@ -0,0 +1,137 @@
+package com.xam.kiosk.policy;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Brings device-owner state in line with a {@link KioskPolicy}.
+ *
+ * The current state (default HOME, lock task packages, this admin's user
+ * restrictions) is read once per apply, diffed against the desired policy, and
+ * only the differences are written. Restrictions this admin set that the policy
+ * no longer lists are cleared. A policy that already matches costs three reads
+ * and no writes.
+ *
+ * Every call is a binder transaction: run on a worker thread, never the main looper.
+ * {@link #isDeviceOwner()} may be called from any thread.
+ */
+public class PolicyEngine {
+
+    private static final String TAG = "PolicyEngine";
+
+    private final Context context;
+    private final ComponentName admin;
+    private final DevicePolicyManager dpm;
+
+    // Only a yes is cached: device owner can be set while we run
+    // (`dpm set-device-owner` after install), so a no is asked again.
+    // Volatile: the provisioning and display threads share one engine.
+    private volatile boolean deviceOwner;
+
+    public PolicyEngine(Context context, ComponentName admin) {
+        this.context = context.getApplicationContext();
+        this.admin = admin;
+        this.dpm = (DevicePolicyManager) this.context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+    }
+
+    public ComponentName getAdmin() {
+        return admin;
+    }
+
+    public boolean isDeviceOwner() {
+        if (!deviceOwner) {
+            deviceOwner = dpm != null && dpm.isDeviceOwnerApp(context.getPackageName());
+        }
+        return deviceOwner;
+    }
+
+    /**
+     * @return true if we are device owner and HOME and lock task packages are in
+     *         place (restriction failures are logged but not fatal)
+     */
+    public boolean apply(KioskPolicy desired) {
+        if (!isDeviceOwner()) {
+            Log.w(TAG, "Not device owner. Cannot force HOME or LockTask packages.");
+            return false;
+        }
+
+        long t0 = System.nanoTime();
+        ComponentName currentHome = currentHome();
+        Set<String> currentPackages = new HashSet<>(Arrays.asList(dpm.getLockTaskPackages(admin)));
+        Bundle currentRestrictions = dpm.getUserRestrictions(admin);
+        long readNs = System.nanoTime() - t0;
+
+        List<String> changes = new ArrayList<>();
+        boolean ok = true;
+
+        // 1) Force our activity as default HOME
+        if (!desired.home.equals(currentHome)) {
+            try {
+                IntentFilter filter = new IntentFilter(Intent.ACTION_MAIN);
+                filter.addCategory(Intent.CATEGORY_HOME);
+                filter.addCategory(Intent.CATEGORY_DEFAULT);
+                dpm.addPersistentPreferredActivity(admin, filter, desired.home);
+                changes.add("home=" + desired.home.getShortClassName());
+            } catch (Exception e) {
+                Log.e(TAG, "addPersistentPreferredActivity failed: " + e.getMessage(), e);
+                ok = false;
+            }
+        }
+
+        // 2) Lock task packages: one call replaces the whole list
+        if (!desired.lockTaskPackages.equals(currentPackages)) {
+            try {
+                dpm.setLockTaskPackages(admin, desired.lockTaskPackages.toArray(new String[0]));
+                changes.add("lockTask=" + desired.lockTaskPackages);
+            } catch (Exception e) {
+                Log.e(TAG, "setLockTaskPackages failed: " + e.getMessage(), e);
+                ok = false;
+            }
+        }
+
+        // 3) User restrictions
+        for (String key : desired.userRestrictions) {
+            if (currentRestrictions.getBoolean(key)) continue;
+            try {
+                dpm.addUserRestriction(admin, key);
+                changes.add("+" + key);
+            } catch (Exception e) {
+                Log.w(TAG, "addUserRestriction(" + key + ") failed: " + e.getMessage());
+            }
+        }
+        for (String key : currentRestrictions.keySet()) {
+            if (!currentRestrictions.getBoolean(key) || desired.userRestrictions.contains(key)) continue;
+            try {
+                dpm.clearUserRestriction(admin, key);
+                changes.add("-" + key);
+            } catch (Exception e) {
+                Log.w(TAG, "clearUserRestriction(" + key + ") failed: " + e.getMessage());
+            }
+        }
+
+        long totalNs = System.nanoTime() - t0;
+        Log.i(TAG, (changes.isEmpty() ? "Policy unchanged" : "Policy applied " + changes)
+                + " read=" + readNs / 1000 + "us total=" + totalNs / 1000 + "us");
+        return ok;
+    }
+
+    private ComponentName currentHome() {
+        Intent home = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_HOME);
+        ResolveInfo ri = context.getPackageManager().resolveActivity(home, PackageManager.MATCH_DEFAULT_ONLY);
+        if (ri == null || ri.activityInfo == null) return null;
+        return new ComponentName(ri.activityInfo.packageName, ri.activityInfo.name);
+    }
+}
@@ -0,0 +1,56 @@
+package com.xam.kiosk.provision;
+
+/**
+ * Immutable record of which provisioning steps already completed on this device.
+ * Persisted by {@link CheckpointStore}; survives reboots.
+ */
+public final class Checkpoint {
+
+    public enum Step {
+        POLICIES,     // default KioskPolicy applied before any config (DPM state persists)
+        LOCKDOWN,     // post-provisioning restrictions (DISALLOW_USB_FILE_TRANSFER) applied
+        PROVISIONED   // full flow done for configHash / nodeAppVersion
+    }
+
+    public static final Checkpoint EMPTY = new Checkpoint(0, null, -1);
+
+    final int steps;
+    public final String configHash;
+    public final long nodeAppVersion;
+
+    Checkpoint(int steps, String configHash, long nodeAppVersion) {
+        this.steps = steps;
+        this.configHash = configHash;
+        this.nodeAppVersion = nodeAppVersion;
+    }
+
+    public boolean has(Step step) {
+        return (steps & bit(step)) != 0;
+    }
+
+    public Checkpoint withDone(Step step) {
+        return new Checkpoint(steps | bit(step), configHash, nodeAppVersion);
+    }
+
+    public Checkpoint withProvisioned(String configHash, long nodeAppVersion) {
+        return new Checkpoint(steps | bit(Step.PROVISIONED), configHash, nodeAppVersion);
+    }
+
+    public Checkpoint withoutProvisioned() {
+        return new Checkpoint(steps & ~bit(Step.PROVISIONED), null, -1);
+    }
+
+    private static int bit(Step step) {
+        return 1 << step.ordinal();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Checkpoint{");
+        for (Step s : Step.values()) {
+            if (has(s)) sb.append(s.name()).append(' ');
+        }
+        return sb.append("config=").append(configHash)
+                .append(" nodeapp=").append(nodeAppVersion).append('}').toString();
+    }
+}
@@ -0,0 +1,48 @@
+package com.xam.kiosk.provision;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Persists {@link Checkpoint} in device-protected storage, so it is readable
+ * before the user unlocks (Direct Boot) and survives reboots.
+ */
+public class CheckpointStore {
+
+    private static final String TAG = "CheckpointStore";
+
+    private static final String PREFS = "provisioning_checkpoint";
+    private static final String KEY_STEPS = "steps";
+    private static final String KEY_CONFIG_HASH = "config_hash";
+    private static final String KEY_NODEAPP_VERSION = "nodeapp_version";
+
+    private final SharedPreferences prefs;
+
+    public CheckpointStore(Context context) {
+        Context de = context.getApplicationContext().createDeviceProtectedStorageContext();
+        this.prefs = de.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    public Checkpoint load() {
+        try {
+            return new Checkpoint(
+                    prefs.getInt(KEY_STEPS, 0),
+                    prefs.getString(KEY_CONFIG_HASH, null),
+                    prefs.getLong(KEY_NODEAPP_VERSION, -1));
+        } catch (Exception e) {
+            Log.e(TAG, "load failed: " + e.getMessage(), e);
+            return Checkpoint.EMPTY;
+        }
+    }
+
+    /** Synchronous write; call off the main thread. */
+    public void save(Checkpoint c) {
+        boolean ok = prefs.edit()
+                .putInt(KEY_STEPS, c.steps)
+                .putString(KEY_CONFIG_HASH, c.configHash)
+                .putLong(KEY_NODEAPP_VERSION, c.nodeAppVersion)
+                .commit();
+        if (!ok) Log.e(TAG, "save failed: " + c);
+    }
+}
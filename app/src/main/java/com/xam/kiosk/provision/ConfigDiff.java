@@ -0,0 +1,48 @@
+package com.xam.kiosk.provision;
+
+import com.xam.kiosk.model.Config;
+
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Which provisioning tasks a config change touches, field by field.
+ *
+ *   wifi_networks / ssid       -> WIFI
+ *   policy_*                   -> POLICY
+ *   nodeapp_* (path, digest,
+ *   version, certificate,
+ *   splits)                    -> INSTALL (and the LAUNCH after it)
+ *
+ * Anything else touches nothing here: display_schedule is followed by the
+ * DisplayController; config_version, formatting and unknown keys do nothing.
+ */
+final class ConfigDiff {
+
+    private ConfigDiff() {}
+
+    static Set<ProvisioningEngine.Task> affected(Config applied, Config next) {
+        Set<ProvisioningEngine.Task> out = EnumSet.noneOf(ProvisioningEngine.Task.class);
+
+        // The legacy ssid is folded into wifiNetworks by the parser.
+        if (!applied.wifiNetworks.equals(next.wifiNetworks)) {
+            out.add(ProvisioningEngine.Task.WIFI);
+        }
+
+        if (!Objects.equals(applied.policyUserRestrictions, next.policyUserRestrictions)
+                || !Objects.equals(applied.policyLockdownRestrictions, next.policyLockdownRestrictions)
+                || !applied.policyLockTaskPackages.equals(next.policyLockTaskPackages)) {
+            out.add(ProvisioningEngine.Task.POLICY);
+        }
+
+        if (!Objects.equals(applied.nodeappApkPath, next.nodeappApkPath)
+                || !Objects.equals(applied.nodeappApkSha256, next.nodeappApkSha256)
+                || applied.nodeappVersionCode != next.nodeappVersionCode
+                || !Objects.equals(applied.nodeappCertSha256, next.nodeappCertSha256)
+                || !applied.nodeappSplits.equals(next.nodeappSplits)) {
+            out.add(ProvisioningEngine.Task.INSTALL);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,368 @@
+package com.xam.kiosk.provision;
+
+import android.Manifest;
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.xam.kiosk.R;
+import com.xam.kiosk.bundle.BundleExtractor;
+import com.xam.kiosk.config.ConfigRepository;
+import com.xam.kiosk.config.ConfigWatcher;
+import com.xam.kiosk.config.HttpConfigSource;
+import com.xam.kiosk.install.ApkCache;
+import com.xam.kiosk.install.InstallRequest;
+import com.xam.kiosk.install.NodeAppInstaller;
+import com.xam.kiosk.install.NodeAppUpdater;
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.model.WifiNetwork;
+import com.xam.kiosk.policy.KioskPolicy;
+import com.xam.kiosk.policy.PolicyEngine;
+import com.xam.kiosk.telemetry.Telemetry;
+import com.xam.kiosk.ui.KioskActivity;
+import com.xam.kiosk.util.Clock;
+import com.xam.kiosk.util.HandlerScheduler;
+import com.xam.kiosk.util.RetryScheduler;
+import com.xam.kiosk.util.StoragePaths;
+import com.xam.kiosk.wifi.WifiProvisioner;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Android implementation of {@link ProvisioningEngine.Host}.
+ * Every method here runs on the provisioning thread, never on the main looper.
+ */
+public class DeviceProvisioningHost implements ProvisioningEngine.Host {
+
+    private static final String TAG = "ProvisioningHost";
+
+    private final Context context;
+    private final ConfigRepository configRepository;
+    private final Handler worker;
+    private final RetryScheduler retries;
+    private final String nodeAppPackage;
+
+    private final WifiProvisioner wifiProvisioner;
+    private final NodeAppInstaller installer;
+    private final NodeAppUpdater updater;
+    private final ApkCache apkCache;
+    private final CheckpointStore checkpointStore;
+    private final ComponentName admin;
+    private final PolicyEngine policyEngine;
+    private final BundleExtractor bundles;   // null if the configured key is unusable
+
+    private ConfigWatcher configWatcher;
+    private boolean scanPermissionGranted;
+
+    // Last accepted planNodeApp() result; valid while config and installed version are unchanged.
+    // Null while the APK set is still arriving or was rejected, so the next call looks again.
+    private NodeAppUpdater.Plan plan;
+    private Config planConfig;
+    private long planInstalledVersion;
+
+    /** @param retries shared with the engine so their wakeups align; must run on {@code worker} */
+    public DeviceProvisioningHost(Context context, ConfigRepository configRepository, PolicyEngine policyEngine,
+                                  Handler worker, RetryScheduler retries, String nodeAppPackage) {
+        this.context = context.getApplicationContext();
+        this.configRepository = configRepository;
+        this.worker = worker;
+        this.retries = retries;
+        this.nodeAppPackage = nodeAppPackage;
+        this.wifiProvisioner = new WifiProvisioner(context, worker, Clock.SYSTEM, retries);
+        this.installer = new NodeAppInstaller(context, worker, Clock.SYSTEM);
+        this.updater = new NodeAppUpdater(context, nodeAppPackage);
+        this.apkCache = new ApkCache(context, Clock.SYSTEM);
+        this.checkpointStore = new CheckpointStore(context);
+        this.policyEngine = policyEngine;
+        this.admin = policyEngine.getAdmin();
+        this.bundles = createBundleExtractor();
+        HttpConfigSource remote = remoteConfigSource(this.context);
+        if (remote != null) configRepository.addSource(remote);
+    }
+
+    private BundleExtractor createBundleExtractor() {
+        try {
+            return new BundleExtractor(context, configRepository, apkCache,
+                    BundleExtractor.parsePublicKey(context.getString(R.string.bundle_public_key)), Clock.SYSTEM);
+        } catch (IllegalArgumentException e) {
+            // Fail closed: a key was meant to be enforced.
+            Log.e(TAG, "Bundles disabled: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // One per process: the activity (and with it this host) may be recreated.
+    private static HttpConfigSource remoteSource;
+    private static boolean remoteSourceChecked;
+
+    /** Fleet config server from R.string.config_url; null when it is empty. */
+    private static synchronized HttpConfigSource remoteConfigSource(Context context) {
+        if (remoteSourceChecked) return remoteSource;
+        remoteSourceChecked = true;
+
+        String url = context.getString(R.string.config_url).trim();
+        if (url.isEmpty()) return null;
+        URL parsed;
+        try {
+            parsed = new URL(url);
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Bad config_url: " + e.getMessage(), e);
+            return null;
+        }
+
+        // Own thread: HTTP blocks, the provisioning thread must not.
+        HandlerThread t = new HandlerThread("config-http");
+        t.start();
+        long refreshMs = context.getResources().getInteger(R.integer.config_refresh_seconds) * 1000L;
+        remoteSource = new HttpConfigSource(parsed, context.getFilesDir(),
+                new HandlerScheduler(new Handler(t.getLooper())), Clock.SYSTEM, refreshMs);
+        return remoteSource;
+    }
+
+    // =========================
+    // Config
+    // =========================
+
+    @Override
+    public void startConfigWatch(ConfigCallback callback) {
+        stopConfigWatch();
+        Log.i(TAG, "Waiting for " + configRepository.getFile() + " (MTP push)...");
+        configWatcher = new ConfigWatcher(context, configRepository, worker, retries, callback::onConfig, bundles);
+        configWatcher.start();
+    }
+
+    @Override
+    public void stopConfigWatch() {
+        if (configWatcher != null) {
+            configWatcher.stop();
+            configWatcher = null;
+        }
+    }
+
+    // =========================
+    // WiFi
+    // =========================
+
+    @Override
+    public void connectWifi(List<WifiNetwork> networks, WifiCallback callback) {
+        grantScanPermission();
+        wifiProvisioner.connect(networks, (s, attempts, latencyMs, validated) -> callback.onWifiConnected());
+    }
+
+    @Override
+    public void cancelWifi() {
+        wifiProvisioner.cancel();
+    }
+
+    /** Scan results (strongest-AP choice) and the connected SSID need location on Q+. */
+    private void grantScanPermission() {
+        // Only a successful grant is remembered: device owner may be set after start
+        if (scanPermissionGranted) return;
+        if (!policyEngine.isDeviceOwner()) return;
+        DevicePolicyManager dpm = (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+        try {
+            scanPermissionGranted = dpm.setPermissionGrantState(admin, context.getPackageName(),
+                    Manifest.permission.ACCESS_FINE_LOCATION, DevicePolicyManager.PERMISSION_GRANT_STATE_GRANTED);
+            if (!scanPermissionGranted) Log.w(TAG, "ACCESS_FINE_LOCATION grant refused");
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot grant ACCESS_FINE_LOCATION: " + e.getMessage());
+        }
+    }
+
+    // =========================
+    // Install NodeApp
+    // =========================
+
+    @Override
+    public long installedNodeAppVersion() {
+        long t0 = Telemetry.startCall();
+        try {
+            return context.getPackageManager().getPackageInfo(nodeAppPackage, 0).getLongVersionCode();
+        } catch (PackageManager.NameNotFoundException e) {
+            return -1;
+        } finally {
+            Telemetry.call(Telemetry.Span.PM_PACKAGE_INFO, t0);
+        }
+    }
+
+    @Override
+    public File resolveNodeApk(String nodeappApkPath) {
+        try {
+            if (nodeappApkPath == null) return null;
+            String p = nodeappApkPath.trim();
+            if (p.isEmpty()) return null;
+
+            // entry of the accepted provisioning bundle
+            if (bundles != null) {
+                File entry = bundles.resolve(p);
+                if (entry != null) return entry;
+            }
+
+            // absolute, or relative to /sdcard
+            return StoragePaths.resolve(p, Environment.getExternalStorageDirectory());
+
+        } catch (Exception e) {
+            Log.e(TAG, "resolveNodeApk error: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public ProvisioningEngine.NodeAppPlan planNodeApp(Config config) {
+        long installedVersion = installedNodeAppVersion();
+        if (plan == null || planConfig != config || planInstalledVersion != installedVersion) {
+            plan = null;
+            NodeAppUpdater.Plan p = computePlan(config);
+            if (p == null) return ProvisioningEngine.NodeAppPlan.WAIT;
+            // Not cached: a fixed APK dropped at the same path must be seen on the next call.
+            if (p.request == null) return ProvisioningEngine.NodeAppPlan.NONE;
+            plan = p;
+            planConfig = config;
+            planInstalledVersion = installedVersion;
+        }
+        return plan.isUpdate() ? ProvisioningEngine.NodeAppPlan.UPDATE : ProvisioningEngine.NodeAppPlan.INSTALL;
+    }
+
+    /** @return null while an APK of the set is missing or still being copied */
+    private NodeAppUpdater.Plan computePlan(Config config) {
+        List<File> staged = new ArrayList<>();
+        try {
+            File base = stageApk(config.nodeappApkPath, config.nodeappApkSha256);
+            if (base == null) return null;
+            staged.add(base);
+            for (String s : config.nodeappSplits) {
+                File f = stageApk(s, null);
+                if (f == null) return null;
+                staged.add(f);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Staging NodeApp APKs failed: " + e.getMessage(), e);
+            return new NodeAppUpdater.Plan(null, -1, -1, e.getMessage());
+        }
+        // The accepted bundle's APKs too: resolve() only finds them in the cache.
+        List<File> inUse = new ArrayList<>(staged);
+        if (bundles != null) inUse.addAll(bundles.apkFiles());
+        apkCache.evict(inUse);
+
+        long t0 = Telemetry.startCall();
+        NodeAppUpdater.Plan p = updater.plan(staged.get(0), staged.subList(1, staged.size()),
+                config.nodeappApkSha256, config.nodeappVersionCode, config.nodeappCertSha256);
+        Telemetry.call(Telemetry.Span.UPDATE_PLAN, t0);
+
+        Log.i(TAG, "NodeApp plan: " + p.reason + " (" + p.fromVersion + " -> " + p.toVersion + ")");
+        return p;
+    }
+
+    /** Private, verified copy of a shared-storage APK; null while it is missing or still changing. */
+    private File stageApk(String path, String sha256) throws IOException {
+        File source = resolveNodeApk(path);
+        if (source == null || !source.exists()) {
+            Log.w(TAG, "APK not found yet: " + path);
+            return null;
+        }
+        File staged = apkCache.stage(source, sha256);
+        if (staged == null) Log.i(TAG, "APK still being copied: " + path);
+        return staged;
+    }
+
+    @Override
+    public void installPlannedNodeApp(InstallCallback callback) {
+        NodeAppUpdater.Plan p = plan;
+        plan = null;
+        if (p == null || p.request == null) {
+            callback.onInstallResult(false);
+            return;
+        }
+
+        if (p.isUpdate() && !updater.saveRollback()) {
+            Log.w(TAG, "No rollback copy of NodeApp " + p.fromVersion + "; updating anyway");
+        }
+        installer.install(p.request, (success, message) -> {
+            if (!success) {
+                Log.e(TAG, "NodeApp install failed: " + message);
+                if (p.request.inheritExisting) updater.onDeltaInstallFailed();
+            }
+            callback.onInstallResult(success);
+        });
+    }
+
+    @Override
+    public void cancelInstall() {
+        installer.cancel();
+    }
+
+    @Override
+    public void rollbackNodeApp(InstallCallback callback) {
+        InstallRequest request = updater.rollbackRequest();
+        if (request == null) {
+            Log.e(TAG, "No saved NodeApp to roll back to");
+            callback.onInstallResult(false);
+            return;
+        }
+        // Without device owner the uninstall prompts, and nobody is at the kiosk to answer.
+        if (!policyEngine.isDeviceOwner()) {
+            Log.e(TAG, "NodeApp rollback needs device owner");
+            callback.onInstallResult(false);
+            return;
+        }
+        installer.uninstall(request.packageName, (removed, message) -> {
+            if (!removed) {
+                Log.e(TAG, "NodeApp rollback: uninstall failed: " + message);
+                callback.onInstallResult(false);
+                return;
+            }
+            installer.install(request, (success, installMessage) -> {
+                if (success) {
+                    updater.clearRollback();
+                } else {
+                    Log.e(TAG, "NodeApp rollback: reinstall failed: " + installMessage);
+                }
+                callback.onInstallResult(success);
+            });
+        });
+    }
+
+    @Override
+    public void commitNodeAppUpdate() {
+        updater.clearRollback();
+    }
+
+    // =========================
+    // Checkpoints
+    // =========================
+
+    @Override
+    public Checkpoint loadCheckpoint() {
+        return checkpointStore.load();
+    }
+
+    @Override
+    public void saveCheckpoint(Checkpoint checkpoint) {
+        checkpointStore.save(checkpoint);
+    }
+
+    // =========================
+    // Device Owner
+    // =========================
+
+    @Override
+    public boolean applyPolicy(Config config, boolean lockdown) {
+        long t0 = Telemetry.startCall();
+        try {
+            ComponentName home = new ComponentName(context.getPackageName(), KioskActivity.class.getName());
+            return policyEngine.apply(KioskPolicy.of(home, nodeAppPackage, config, lockdown));
+        } finally {
+            Telemetry.call(lockdown ? Telemetry.Span.DPM_LOCKDOWN : Telemetry.Span.DPM_POLICIES, t0);
+        }
+    }
+}
@@ -0,0 +1,658 @@
+package com.xam.kiosk.provision;
+
+import android.util.Log;
+
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.model.WifiNetwork;
+import com.xam.kiosk.telemetry.KioskStatus;
+import com.xam.kiosk.telemetry.Telemetry;
+import com.xam.kiosk.util.Clock;
+import com.xam.kiosk.util.RetryScheduler;
+import com.xam.kiosk.util.Scheduler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Provisioning flow, run as a small dependency graph of {@link Task}s:
+ *
+ *   CONFIG -> INSTALL -> LAUNCH (lock + start NodeApp)
+ *   CONFIG -> POLICY ---^
+ *   CONFIG -> WIFI (optional)
+ *
+ * A task starts as soon as everything it depends on is done, so WiFi association
+ * runs in the background and never holds up install or launch: the APK is local
+ * and NodeApp works offline. {@link Stage} tracks the required path; optional
+ * tasks still running are reported through {@link Ui#onPendingChanged}. Lock
+ * task is entered before the launch so NodeApp starts inside it.
+ *
+ * The config watch keeps running after the first config. A later config is
+ * diffed against the applied one ({@link ConfigDiff}) and only the tasks whose
+ * fields changed run again: new networks redo WIFI, new policy keys redo POLICY,
+ * a new APK set redoes INSTALL and LAUNCH. NodeApp keeps running unless it is
+ * actually replaced.
+ *
+ * A config naming a newer NodeApp updates it in place. The update stays on
+ * probation until the watchdog reports NodeApp healthy; if it crash-loops
+ * instead, the previous version is reinstalled.
+ *
+ * All steps (file I/O, parsing, WiFi/PackageManager/DPM calls) run on the worker
+ * scheduler. Only UI-visible work (stage changes, starting NodeApp, lock task) is
+ * handed to the ui executor.
+ */
+public class ProvisioningEngine {
+
+    private static final String TAG = "ProvisioningEngine";
+
+    // Retry pacing
+    private static final RetryScheduler.Policy APK_WAIT =
+            RetryScheduler.Policy.exponential(2000, 30_000);
+    private static final RetryScheduler.Policy INSTALL_RETRY =
+            RetryScheduler.Policy.exponential(10_000, 300_000);
+    private static final RetryScheduler.Policy LAUNCH_RETRY =
+            RetryScheduler.Policy.exponential(1000, 30_000);
+
+    /** Required path only; see {@link Task} for what runs alongside. */
+    public enum Stage {
+        IDLE,
+        WAITING_CONFIG,
+        INSTALLING,
+        LAUNCHING,
+        DONE
+    }
+
+    /** Provisioning work and what each piece waits for. Declared in dependency order. */
+    public enum Task {
+        CONFIG(false),
+        WIFI(true, CONFIG),
+        POLICY(false, CONFIG),
+        INSTALL(false, CONFIG),
+        LAUNCH(false, INSTALL, POLICY);
+
+        /** Optional tasks never block others; they keep running in the background. */
+        public final boolean optional;
+        private final Task[] dependsOn;
+
+        Task(boolean optional, Task... dependsOn) {
+            this.optional = optional;
+            this.dependsOn = dependsOn;
+        }
+    }
+
+    private enum TaskState { PENDING, RUNNING, DONE }
+
+    /** What installing the config's APK set would do. */
+    public enum NodeAppPlan {
+        NONE,       // up to date, rejected or unusable
+        WAIT,       // APK set still arriving (being copied, split missing)
+        INSTALL,
+        UPDATE
+    }
+
+    /** Device side of provisioning. Called on the worker thread only. */
+    public interface Host {
+
+        interface ConfigCallback { void onConfig(Config config); }
+
+        interface WifiCallback { void onWifiConnected(); }
+
+        interface InstallCallback { void onInstallResult(boolean success); }
+
+        /** Delivers each new config on the worker thread until {@link #stopConfigWatch()}. */
+        void startConfigWatch(ConfigCallback callback);
+
+        void stopConfigWatch();
+
+        /**
+         * Delivers the callback on the worker thread once connected to one of
+         * {@code networks} (ranked, best first). Keeps reconnecting after drops
+         * until {@link #cancelWifi()}.
+         */
+        void connectWifi(List<WifiNetwork> networks, WifiCallback callback);
+
+        void cancelWifi();
+
+        Checkpoint loadCheckpoint();
+
+        void saveCheckpoint(Checkpoint checkpoint);
+
+        /**
+         * Makes device-owner state (HOME, lock task packages, user restrictions) match
+         * the policy derived from {@code config}, changing only what differs.
+         *
+         * @param config   null for the built-in defaults
+         * @param lockdown include the post-provisioning restrictions
+         * @return true if we are device owner and HOME / lock task are in place
+         */
+        boolean applyPolicy(Config config, boolean lockdown);
+
+        /** @return installed NodeApp versionCode, or -1 if not installed. */
+        long installedNodeAppVersion();
+
+        File resolveNodeApk(String nodeappApkPath);
+
+        /** Compares the installed NodeApp with the config's APK set (version, certificate, splits). */
+        NodeAppPlan planNodeApp(Config config);
+
+        /**
+         * Installs what the last {@link #planNodeApp} decided, without user interaction
+         * when device owner. Delivers the result on the worker thread.
+         */
+        void installPlannedNodeApp(InstallCallback callback);
+
+        void cancelInstall();
+
+        /**
+         * Reinstalls the version replaced by the last update: uninstalls NodeApp
+         * (and its data) as device owner, then installs the saved APK set.
+         */
+        void rollbackNodeApp(InstallCallback callback);
+
+        /** The last update proved healthy; its rollback copy can go. */
+        void commitNodeAppUpdate();
+    }
+
+    /** UI side. Called on the ui executor only. */
+    public interface Ui {
+
+        void onStageChanged(Stage stage);
+
+        /** Optional tasks started but not done yet (e.g. WiFi still associating). */
+        void onPendingChanged(Set<Task> pending);
+
+        /** Called before {@link #launchNodeApp(boolean)} when lock task is allowed. */
+        void startKioskLockTask();
+
+        /**
+         * Repeated calls after a successful start must be no-ops returning true.
+         *
+         * @param inLockTask start NodeApp directly inside the lock task
+         * @return true if NodeApp was started.
+         */
+        boolean launchNodeApp(boolean inLockTask);
+
+        /** NodeApp is about to be replaced; stop relaunching it and allow a fresh launch after. */
+        void onNodeAppUpdating();
+    }
+
+    private final Scheduler worker;
+    private final Executor ui;
+    private final Clock clock;
+    private final RetryScheduler retries;
+    private final Host host;
+    private final Ui view;
+
+    // Worker-thread state
+    private volatile Stage stage = Stage.IDLE;
+    private volatile boolean stopped = false;
+    private long stageStartMs;
+    private Config config;
+    private Checkpoint checkpoint = Checkpoint.EMPTY;
+    private boolean resumed = false;
+    private long nodeAppVersion = -1;
+    private boolean installing = false;
+    private boolean loggedApkWait = false;
+    private boolean lockdownChecked = false;
+    private boolean verifyingUpdate = false;
+    private boolean rollbackFailed = false;
+    private final Map<Task, TaskState> tasks = new EnumMap<>(Task.class);
+    private Set<Task> reportedPending = Collections.emptySet();
+    private long configAcceptedMs = -1;
+
+    // Separate tasks so waiting for the APK and retrying a failed install back off independently
+    private final Runnable apkWaitStep = this::stepInstall;
+    private final Runnable installRetryStep = this::stepInstall;
+    private final Runnable launchStep = this::stepLaunch;
+
+    /** @param retries must run on {@code worker} */
+    public ProvisioningEngine(Scheduler worker, Executor ui, Clock clock, RetryScheduler retries,
+                              Host host, Ui view) {
+        this.worker = worker;
+        this.ui = ui;
+        this.clock = clock;
+        this.retries = retries;
+        this.host = host;
+        this.view = view;
+        for (Task t : Task.values()) tasks.put(t, TaskState.PENDING);
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public void start() {
+        worker.post(() -> {
+            if (stopped || stage != Stage.IDLE) return;
+            resumeOrStart();
+        });
+    }
+
+    /** Safe to call from any thread. Pending steps are dropped. */
+    public void stop() {
+        stopped = true;
+        worker.post(() -> {
+            host.cancelWifi();
+            retries.reset(apkWaitStep);
+            retries.reset(installRetryStep);
+            host.cancelInstall();
+            retries.reset(launchStep);
+            host.stopConfigWatch();
+        });
+    }
+
+    /** From the NodeApp watchdog; safe to call from any thread. */
+    public void reportNodeAppHealth(boolean healthy) {
+        worker.post(() -> onNodeAppHealth(healthy));
+    }
+
+    // =========================
+    // Steps (worker thread)
+    // =========================
+
+    private void resumeOrStart() {
+        checkpoint = host.loadCheckpoint();
+        Log.i(TAG, "Loaded " + checkpoint);
+
+        // DPM state persists across reboots: apply once, not on every start.
+        // Before any config: the defaults pin HOME so a fresh device boots into us.
+        if (!checkpoint.has(Checkpoint.Step.POLICIES)
+                && host.applyPolicy(null, checkpoint.has(Checkpoint.Step.LOCKDOWN))) {
+            saveCheckpoint(checkpoint.withDone(Checkpoint.Step.POLICIES));
+        }
+
+        nodeAppVersion = host.installedNodeAppVersion();
+        KioskStatus.nodeAppVersion = nodeAppVersion;
+        if (checkpoint.has(Checkpoint.Step.PROVISIONED)
+                && nodeAppVersion >= 0 && nodeAppVersion == checkpoint.nodeAppVersion) {
+            // Already provisioned: go straight to NodeApp. The config watch below
+            // only re-runs the flow if the config differs from the provisioned one.
+            Log.i(TAG, "Provisioned device; launching NodeApp directly");
+            resumed = true;
+            KioskStatus.configHash = checkpoint.configHash;
+            tasks.put(Task.INSTALL, TaskState.DONE);
+            tasks.put(Task.LAUNCH, TaskState.RUNNING);
+            enterStage(Stage.LAUNCHING);
+            stepLaunch();
+        } else {
+            enterStage(Stage.WAITING_CONFIG);
+        }
+        host.startConfigWatch(this::onConfigAvailable);
+    }
+
+    private void onConfigAvailable(Config c) {
+        if (stopped) return;
+
+        if (config != null) {
+            hotApply(c);
+            return;
+        }
+
+        if (resumed) {
+            if (c.hash.equals(checkpoint.configHash)) {
+                // NodeApp is already up; only the background tasks are left.
+                config = c;
+                complete(Task.CONFIG);
+                return;
+            }
+            Log.i(TAG, "Config changed since provisioning; re-running flow");
+            resumed = false;
+            retries.reset(launchStep);
+            saveCheckpoint(checkpoint.withoutProvisioned());
+            tasks.put(Task.POLICY, TaskState.PENDING);
+            tasks.put(Task.INSTALL, TaskState.PENDING);
+            tasks.put(Task.LAUNCH, TaskState.PENDING);
+        } else if (stage != Stage.WAITING_CONFIG) {
+            return;
+        }
+
+        // The watch stays on for hot-apply; the tasks below own their own retries.
+        config = c;
+        KioskStatus.configHash = c.hash;
+
+        configAcceptedMs = clock.uptimeMillis();
+        Log.i(TAG, "Config loaded: wifi_networks=" + c.wifiNetworks + ", nodeapp_apk_path=" + c.nodeappApkPath);
+        complete(Task.CONFIG);
+    }
+
+    /** A newer config while provisioned or provisioning: re-run only what it changes. */
+    private void hotApply(Config c) {
+        if (c.hash.equals(config.hash)) return;
+
+        Set<Task> affected = ConfigDiff.affected(config, c);
+        Log.i(TAG, "Config changed; re-running " + (affected.isEmpty() ? "nothing" : affected));
+        config = c;
+        KioskStatus.configHash = c.hash;
+
+        if (affected.contains(Task.WIFI) && tasks.get(Task.WIFI) != TaskState.PENDING) {
+            host.cancelWifi();
+            tasks.put(Task.WIFI, TaskState.PENDING);
+        }
+        if (affected.contains(Task.POLICY) && tasks.get(Task.POLICY) == TaskState.DONE) {
+            tasks.put(Task.POLICY, TaskState.PENDING);
+        }
+        if (affected.contains(Task.INSTALL)) {
+            loggedApkWait = false;
+            if (tasks.get(Task.INSTALL) == TaskState.DONE) {
+                // LAUNCH is a no-op for a NodeApp that keeps running; after an update it starts the new one.
+                retries.reset(launchStep);
+                tasks.put(Task.INSTALL, TaskState.PENDING);
+                tasks.put(Task.LAUNCH, TaskState.PENDING);
+            } else if (tasks.get(Task.INSTALL) == TaskState.RUNNING) {
+                // Waiting or installing: re-plan now (an install in flight re-plans when it ends).
+                stepInstall();
+            }
+        }
+
+        // Provisioned and nothing left to do: the new config is the provisioned one.
+        if (stage == Stage.DONE && !affected.contains(Task.INSTALL)) {
+            markProvisioned(c.hash);
+        }
+        runReadyTasks();
+    }
+
+    // =========================
+    // Task graph (worker thread)
+    // =========================
+
+    /** Marks {@code t} done and starts whatever it unblocked. */
+    private void complete(Task t) {
+        tasks.put(t, TaskState.DONE);
+        runReadyTasks();
+    }
+
+    private void runReadyTasks() {
+        for (Task t : Task.values()) {
+            if (stopped) return;
+            if (tasks.get(t) != TaskState.PENDING || !dependenciesDone(t)) continue;
+            tasks.put(t, TaskState.RUNNING);
+            run(t);
+        }
+        publishPending();
+    }
+
+    private boolean dependenciesDone(Task t) {
+        for (Task d : t.dependsOn) {
+            if (tasks.get(d) != TaskState.DONE) return false;
+        }
+        return true;
+    }
+
+    private void run(Task t) {
+        switch (t) {
+            case WIFI:
+                stepWifi();
+                break;
+            case POLICY:
+                // Config may change lock task packages / restrictions: diff and apply.
+                host.applyPolicy(config, checkpoint.has(Checkpoint.Step.LOCKDOWN));
+                complete(Task.POLICY);
+                break;
+            case INSTALL:
+                enterStage(Stage.INSTALLING);
+                stepInstall();
+                break;
+            case LAUNCH:
+                retries.reset(apkWaitStep);
+                retries.reset(installRetryStep);
+                enterStage(Stage.LAUNCHING);
+                stepLaunch();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void publishPending() {
+        Set<Task> pending = EnumSet.noneOf(Task.class);
+        for (Task t : Task.values()) {
+            if (t.optional && tasks.get(t) == TaskState.RUNNING) pending.add(t);
+        }
+        if (pending.equals(reportedPending)) return;
+        reportedPending = pending;
+
+        List<String> names = new ArrayList<>();
+        for (Task t : pending) names.add(t.name());
+        KioskStatus.pendingTasks = names.toArray(new String[0]);
+
+        Set<Task> snapshot = Collections.unmodifiableSet(pending);
+        ui.execute(() -> view.onPendingChanged(snapshot));
+    }
+
+    // =========================
+    // Steps (worker thread)
+    // =========================
+
+    private void stepWifi() {
+        if (stopped) return;
+        if (config.wifiNetworks.isEmpty()) {
+            complete(Task.WIFI);
+            return;
+        }
+
+        long t0 = clock.uptimeMillis();
+        Telemetry.event(Telemetry.Kind.STAGE_START, Telemetry.Span.STAGE_CONNECTING_WIFI, 0);
+        host.connectWifi(config.wifiNetworks, () -> {
+            if (stopped || tasks.get(Task.WIFI) != TaskState.RUNNING) return;
+            long ms = clock.uptimeMillis() - t0;
+            Log.i(TAG, "WiFi connected after " + ms + "ms (stage " + stage + ")");
+            Telemetry.event(Telemetry.Kind.STAGE_END, Telemetry.Span.STAGE_CONNECTING_WIFI, ms);
+            complete(Task.WIFI);
+        });
+    }
+
+    private void stepInstall() {
+        if (stopped || installing) return;
+
+        nodeAppVersion = host.installedNodeAppVersion();
+        KioskStatus.nodeAppVersion = nodeAppVersion;
+
+        File apk = host.resolveNodeApk(config.nodeappApkPath);
+        if (apk == null || !apk.exists()) {
+            if (nodeAppVersion >= 0) {
+                // Nothing to update from; run what is installed.
+                enterLaunching();
+                return;
+            }
+            if (!loggedApkWait) {
+                loggedApkWait = true;
+                Log.i(TAG, "NodeApp not installed and APK not found yet. Waiting...");
+            }
+            waitForApk();
+            return;
+        }
+
+        NodeAppPlan plan = host.planNodeApp(config);
+        if (plan == NodeAppPlan.WAIT) {
+            // Even with NodeApp installed: the config names an APK set that is on its way.
+            waitForApk();
+            return;
+        }
+        if (plan == NodeAppPlan.NONE) {
+            if (nodeAppVersion >= 0) {
+                enterLaunching();
+            } else {
+                // Unusable APK (wrong package/version/certificate): wait for a replacement.
+                waitForApk();
+            }
+            return;
+        }
+
+        // The result comes back through the installer; no polling while it runs.
+        retries.reset(apkWaitStep);
+        boolean update = plan == NodeAppPlan.UPDATE;
+        if (update) {
+            Log.i(TAG, "Updating NodeApp from version " + nodeAppVersion);
+            ui.execute(view::onNodeAppUpdating);
+        }
+
+        installing = true;
+        Config target = config;
+        host.installPlannedNodeApp(success -> {
+            installing = false;
+            if (stopped) return;
+
+            if (success) {
+                if (update) {
+                    Telemetry.count(Telemetry.Counter.NODEAPP_UPDATES);
+                    verifyingUpdate = true;
+                }
+                nodeAppVersion = host.installedNodeAppVersion();
+                KioskStatus.nodeAppVersion = nodeAppVersion;
+                rollbackFailed = false;
+                KioskStatus.nodeAppRollbackFailed = false;
+            }
+            if (config != target) {
+                // Hot-applied while installing: plan again against the new APK set.
+                stepInstall();
+            } else if (success) {
+                enterLaunching();
+            } else {
+                long delay = retries.retry(installRetryStep, INSTALL_RETRY);
+                if (delay >= 0) Telemetry.event(Telemetry.Kind.RETRY, Telemetry.Span.STAGE_INSTALLING, delay);
+            }
+        });
+    }
+
+    private void waitForApk() {
+        Telemetry.count(Telemetry.Counter.INSTALL_POLLS);
+        long delay = retries.retry(apkWaitStep, APK_WAIT);
+        if (delay >= 0) Telemetry.event(Telemetry.Kind.RETRY, Telemetry.Span.STAGE_INSTALLING, delay);
+    }
+
+    private void enterLaunching() {
+        if (tasks.get(Task.INSTALL) == TaskState.DONE) {
+            // Relaunch after a rollback: LAUNCH has run before.
+            tasks.put(Task.LAUNCH, TaskState.PENDING);
+        }
+        complete(Task.INSTALL);
+    }
+
+    private void stepLaunch() {
+        if (stopped) return;
+
+        // Lock first so NodeApp starts inside the lock task (no extra task switch).
+        boolean lockTask = lockdown();
+        ui.execute(() -> {
+            if (lockTask) view.startKioskLockTask();
+            boolean launched = view.launchNodeApp(lockTask);
+            worker.post(() -> onLaunchResult(launched));
+        });
+    }
+
+    /**
+     * Applies the post-provision restrictions once per device.
+     *
+     * @return true if we are device owner, i.e. lock task is allowed
+     */
+    private boolean lockdown() {
+        if (checkpoint.has(Checkpoint.Step.LOCKDOWN)) return true;
+        if (lockdownChecked) return false;
+
+        lockdownChecked = true;
+        if (!host.applyPolicy(config, true)) return false;
+        saveCheckpoint(checkpoint.withDone(Checkpoint.Step.LOCKDOWN));
+        return true;
+    }
+
+    private void onLaunchResult(boolean launched) {
+        // A config change may have restarted the flow meanwhile.
+        if (stopped || stage != Stage.LAUNCHING) return;
+
+        if (!launched) {
+            Telemetry.count(Telemetry.Counter.LAUNCH_RETRIES);
+            long delay = retries.retry(launchStep, LAUNCH_RETRY);
+            if (delay >= 0) Telemetry.event(Telemetry.Kind.RETRY, Telemetry.Span.STAGE_LAUNCHING, delay);
+            return;
+        }
+        retries.reset(launchStep);
+
+        if (config != null) markProvisioned(config.hash);
+        enterStage(Stage.DONE);
+        tasks.put(Task.LAUNCH, TaskState.DONE);
+        if (configAcceptedMs >= 0) {
+            Telemetry.event(Telemetry.Kind.LATENCY, Telemetry.Span.PROVISION, clock.uptimeMillis() - configAcceptedMs);
+            configAcceptedMs = -1;
+        }
+    }
+
+    private void onNodeAppHealth(boolean healthy) {
+        if (stopped || !verifyingUpdate || installing) return;
+        verifyingUpdate = false;
+
+        if (healthy) {
+            Log.i(TAG, "Updated NodeApp " + nodeAppVersion + " is healthy");
+            host.commitNodeAppUpdate();
+            return;
+        }
+
+        Log.w(TAG, "Updated NodeApp " + nodeAppVersion + " is crash-looping; rolling back");
+        Telemetry.count(Telemetry.Counter.NODEAPP_ROLLBACKS);
+        ui.execute(view::onNodeAppUpdating);
+
+        installing = true;
+        host.rollbackNodeApp(success -> {
+            installing = false;
+            if (stopped) return;
+
+            nodeAppVersion = host.installedNodeAppVersion();
+            KioskStatus.nodeAppVersion = nodeAppVersion;
+            rollbackFailed = !success;
+            KioskStatus.nodeAppRollbackFailed = !success;
+
+            if (success) {
+                // Provisioned with this config: the bad update is not retried until the config changes.
+                if (config != null) saveCheckpoint(checkpoint.withProvisioned(config.hash, nodeAppVersion));
+            } else {
+                // Still the crash-looping version (or none): never resume into it as provisioned.
+                Log.e(TAG, "Rollback failed; NodeApp is " + nodeAppVersion);
+                Telemetry.count(Telemetry.Counter.NODEAPP_ROLLBACK_FAILURES);
+                saveCheckpoint(checkpoint.withoutProvisioned());
+            }
+            enterLaunching();
+        });
+    }
+
+    /** Records {@code configHash} as provisioned, unless a failed rollback left the bad NodeApp installed. */
+    private void markProvisioned(String configHash) {
+        if (rollbackFailed) return;
+        saveCheckpoint(checkpoint.withProvisioned(configHash, nodeAppVersion));
+    }
+
+    private void saveCheckpoint(Checkpoint c) {
+        checkpoint = c;
+        host.saveCheckpoint(c);
+    }
+
+    private void enterStage(Stage next) {
+        long now = clock.uptimeMillis();
+        if (stage != Stage.IDLE) {
+            Log.i(TAG, "Stage " + stage + " -> " + next + " after " + (now - stageStartMs) + "ms");
+        }
+
+        Telemetry.Span prevSpan = spanOf(stage);
+        if (prevSpan != null) Telemetry.event(Telemetry.Kind.STAGE_END, prevSpan, now - stageStartMs);
+        Telemetry.Span nextSpan = spanOf(next);
+        if (nextSpan != null) Telemetry.event(Telemetry.Kind.STAGE_START, nextSpan, 0);
+
+        stage = next;
+        stageStartMs = now;
+        KioskStatus.setStage(next.name(), now);
+        ui.execute(() -> view.onStageChanged(next));
+    }
+
+    private static Telemetry.Span spanOf(Stage s) {
+        switch (s) {
+            case WAITING_CONFIG:  return Telemetry.Span.STAGE_WAITING_CONFIG;
+            case INSTALLING:      return Telemetry.Span.STAGE_INSTALLING;
+            case LAUNCHING:       return Telemetry.Span.STAGE_LAUNCHING;
+            default:              return null;
+        }
+    }
+}
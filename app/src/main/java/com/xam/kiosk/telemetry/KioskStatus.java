@@ -0,0 +1,45 @@
+package com.xam.kiosk.telemetry;
+
+/**
+ * Latest known provisioning state, published by the components that own it.
+ *
+ * Writers update these on change (rare); readers such as {@link MetricsServer}
+ * only ever read the volatile fields, so a scrape never touches binder or disk.
+ */
+public final class KioskStatus {
+
+    private KioskStatus() {}
+
+    /** ProvisioningEngine.Stage name. */
+    public static volatile String stage = "IDLE";
+    public static volatile long stageSinceMs = 0;   // uptime
+
+    /** Optional ProvisioningEngine.Task names still running; replaced, never mutated. */
+    public static volatile String[] pendingTasks = new String[0];
+
+    public static volatile String configHash = null;
+
+    public static volatile String wifiSsid = null;
+    public static volatile boolean wifiConnected = false;
+
+    /** Installed NodeApp versionCode, -1 if not installed or unknown. */
+    public static volatile long nodeAppVersion = -1;
+    public static volatile boolean nodeAppLaunched = false;
+    /** The last crash-loop rollback failed: NodeApp is the bad update, or missing. */
+    public static volatile boolean nodeAppRollbackFailed = false;
+
+    /** PowerManager.THERMAL_STATUS_* (estimated from battery temperature on Android 9). */
+    public static volatile int thermalStatus = 0;
+    /** Brightness the display policy applied, 0..1; 0 while the screen is scheduled off. */
+    public static volatile float displayBrightness = 1f;
+
+    public static void setStage(String name, long uptimeMs) {
+        stageSinceMs = uptimeMs;
+        stage = name;
+    }
+
+    public static void setWifi(String ssid, boolean connected) {
+        wifiSsid = ssid;
+        wifiConnected = connected;
+    }
+}
@@ -0,0 +1,372 @@
+package com.xam.kiosk.telemetry;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Read-only HTTP endpoint for fleet scraping.
+ *
+ * GET /metrics returns Prometheus text format built from {@link KioskStatus} and
+ * {@link Telemetry}, both plain in-memory reads; GET /healthz returns "ok".
+ * One thread runs a non-blocking selector loop; every response closes the
+ * connection. Requests larger than MAX_REQUEST_BYTES or connections idle longer
+ * than IDLE_TIMEOUT_MS are dropped.
+ */
+public final class MetricsServer {
+
+    private static final String TAG = "MetricsServer";
+
+    private static final int MAX_REQUEST_BYTES = 2048;
+    private static final int MAX_CONNECTIONS = 16;
+    private static final long IDLE_TIMEOUT_MS = 5000;
+
+    private static final String CONTENT_TYPE_METRICS = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final InetSocketAddress bindAddress;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running;
+
+    // Selector thread only
+    private final StringBuilder body = new StringBuilder(8 * 1024);
+    private int connections;
+
+    private static final class Conn {
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        final long openedMs = SystemClock.uptimeMillis();
+        ByteBuffer out;
+    }
+
+    /** @param bindAddress e.g. new InetSocketAddress(9100); port 0 picks a free port. */
+    public MetricsServer(InetSocketAddress bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) return;
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.configureBlocking(false);
+            server.socket().setReuseAddress(true);
+            server.socket().bind(bindAddress);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+
+        running = true;
+        thread = new Thread(this::loop, "metrics");
+        thread.setDaemon(true);
+        thread.start();
+        Log.i(TAG, "Serving /metrics on port " + getPort());
+    }
+
+    /** Safe to call from any thread. */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        selector.wakeup();
+    }
+
+    /** Bound port, useful when started with port 0. */
+    public int getPort() {
+        ServerSocketChannel s = server;
+        return s != null ? s.socket().getLocalPort() : -1;
+    }
+
+    // =========================
+    // Selector loop
+    // =========================
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select(IDLE_TIMEOUT_MS);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept();
+                        else if (key.isReadable()) read(key);
+                        else if (key.isWritable()) write(key);
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+                expireIdle();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Selector loop failed: " + e.getMessage(), e);
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            if (connections >= MAX_CONNECTIONS) {
+                ch.close();
+                continue;
+            }
+            ch.configureBlocking(false);
+            ch.register(selector, SelectionKey.OP_READ, new Conn());
+            connections++;
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Conn c = (Conn) key.attachment();
+        int n = ((SocketChannel) key.channel()).read(c.in);
+        if (n < 0) {
+            close(key);
+            return;
+        }
+
+        int end = headerEnd(c.in);
+        if (end < 0) {
+            if (!c.in.hasRemaining()) respond(key, c, 431, "Request Header Fields Too Large", "text/plain", "too large\n");
+            return;
+        }
+
+        String requestLine = requestLine(c.in);
+        if (!requestLine.startsWith("GET ")) {
+            respond(key, c, 405, "Method Not Allowed", "text/plain", "GET only\n");
+            return;
+        }
+
+        String path = requestLine.substring(4);
+        int sp = path.indexOf(' ');
+        if (sp >= 0) path = path.substring(0, sp);
+        int q = path.indexOf('?');
+        if (q >= 0) path = path.substring(0, q);
+
+        switch (path) {
+            case "/metrics":
+                body.setLength(0);
+                render(body, SystemClock.uptimeMillis());
+                respond(key, c, 200, "OK", CONTENT_TYPE_METRICS, body);
+                break;
+            case "/healthz":
+                respond(key, c, 200, "OK", "text/plain", "ok\n");
+                break;
+            default:
+                respond(key, c, 404, "Not Found", "text/plain", "not found\n");
+                break;
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Conn c = (Conn) key.attachment();
+        ((SocketChannel) key.channel()).write(c.out);
+        if (!c.out.hasRemaining()) close(key);
+    }
+
+    private void respond(SelectionKey key, Conn c, int code, String reason, String type, CharSequence text)
+            throws IOException {
+        byte[] payload = text.toString().getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + code + " " + reason + "\r\n"
+                + "Content-Type: " + type + "\r\n"
+                + "Content-Length: " + payload.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        byte[] h = head.getBytes(StandardCharsets.US_ASCII);
+
+        c.out = ByteBuffer.allocate(h.length + payload.length);
+        c.out.put(h).put(payload).flip();
+        key.interestOps(SelectionKey.OP_WRITE);
+        write(key);
+    }
+
+    private void expireIdle() {
+        long now = SystemClock.uptimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            Object a = key.attachment();
+            if (a instanceof Conn && now - ((Conn) a).openedMs > IDLE_TIMEOUT_MS) close(key);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Conn) connections--;
+        key.attach(null);
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {}
+    }
+
+    private synchronized void closeQuietly() {
+        running = false;
+        try {
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    try { key.channel().close(); } catch (IOException ignored) {}
+                }
+                selector.close();
+            }
+        } catch (IOException ignored) {}
+        try {
+            if (server != null) server.close();
+        } catch (IOException ignored) {}
+        connections = 0;
+    }
+
+    /** Index just past the blank line ending the headers, or -1. */
+    private static int headerEnd(ByteBuffer in) {
+        byte[] b = in.array();
+        int len = in.position();
+        for (int i = 3; i < len; i++) {
+            if (b[i] == '\n' && (b[i - 1] == '\n' || (b[i - 1] == '\r' && b[i - 2] == '\n'))) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static String requestLine(ByteBuffer in) {
+        byte[] b = in.array();
+        int len = in.position();
+        int i = 0;
+        while (i < len && b[i] != '\r' && b[i] != '\n') i++;
+        return new String(b, 0, i, StandardCharsets.US_ASCII);
+    }
+
+    // =========================
+    // Prometheus text format
+    // =========================
+
+    /** Appends the full exposition. Only reads memory; visible for localhost tests. */
+    static void render(StringBuilder sb, long nowMs) {
+        sb.append("# HELP kiosk_provisioning_stage Current provisioning stage.\n");
+        sb.append("# TYPE kiosk_provisioning_stage gauge\n");
+        sb.append("kiosk_provisioning_stage{stage=\"").append(KioskStatus.stage).append("\"} 1\n");
+
+        sb.append("# HELP kiosk_provisioning_stage_seconds Time spent in the current stage.\n");
+        sb.append("# TYPE kiosk_provisioning_stage_seconds gauge\n");
+        sb.append("kiosk_provisioning_stage_seconds ");
+        appendSeconds(sb, nowMs - KioskStatus.stageSinceMs).append('\n');
+
+        sb.append("# HELP kiosk_provisioning_pending Optional provisioning tasks still running.\n");
+        sb.append("# TYPE kiosk_provisioning_pending gauge\n");
+        for (String task : KioskStatus.pendingTasks) {
+            sb.append("kiosk_provisioning_pending{task=\"").append(task).append("\"} 1\n");
+        }
+
+        sb.append("# HELP kiosk_config_info Hash of the last accepted config.\n");
+        sb.append("# TYPE kiosk_config_info gauge\n");
+        sb.append("kiosk_config_info{hash=\"");
+        appendLabel(sb, KioskStatus.configHash).append("\"} 1\n");
+
+        sb.append("# HELP kiosk_wifi_connected Whether the configured WiFi network is connected.\n");
+        sb.append("# TYPE kiosk_wifi_connected gauge\n");
+        sb.append("kiosk_wifi_connected{ssid=\"");
+        appendLabel(sb, KioskStatus.wifiSsid).append("\"} ").append(KioskStatus.wifiConnected ? 1 : 0).append('\n');
+
+        sb.append("# HELP kiosk_nodeapp_version_code Installed NodeApp versionCode, -1 if missing.\n");
+        sb.append("# TYPE kiosk_nodeapp_version_code gauge\n");
+        sb.append("kiosk_nodeapp_version_code ").append(KioskStatus.nodeAppVersion).append('\n');
+
+        sb.append("# HELP kiosk_nodeapp_launched Whether NodeApp has been launched.\n");
+        sb.append("# TYPE kiosk_nodeapp_launched gauge\n");
+        sb.append("kiosk_nodeapp_launched ").append(KioskStatus.nodeAppLaunched ? 1 : 0).append('\n');
+
+        sb.append("# HELP kiosk_nodeapp_rollback_failed Whether the last NodeApp rollback failed.\n");
+        sb.append("# TYPE kiosk_nodeapp_rollback_failed gauge\n");
+        sb.append("kiosk_nodeapp_rollback_failed ").append(KioskStatus.nodeAppRollbackFailed ? 1 : 0).append('\n');
+
+        sb.append("# HELP kiosk_thermal_status PowerManager thermal status, 0 = none.\n");
+        sb.append("# TYPE kiosk_thermal_status gauge\n");
+        sb.append("kiosk_thermal_status ").append(KioskStatus.thermalStatus).append('\n');
+
+        sb.append("# HELP kiosk_display_brightness Brightness set by the display policy, 0..1.\n");
+        sb.append("# TYPE kiosk_display_brightness gauge\n");
+        sb.append("kiosk_display_brightness ").append(KioskStatus.displayBrightness).append('\n');
+
+        for (Telemetry.Counter c : Telemetry.Counter.values()) {
+            String name = "kiosk_" + c.name().toLowerCase(Locale.ROOT) + "_total";
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(Telemetry.get(c)).append('\n');
+        }
+
+        appendHistogram(sb, "kiosk_stage_duration_ms", "Provisioning stage durations.", Telemetry.Kind.STAGE_END);
+        appendHistogram(sb, "kiosk_latency_ms", "End-to-end operation latencies.", Telemetry.Kind.LATENCY);
+        appendHistogram(sb, "kiosk_call_duration_us", "Binder and IO call durations.", Telemetry.Kind.CALL);
+
+        sb.append("# HELP kiosk_budget Latency budget per kind/span, in the unit of its histogram.\n");
+        sb.append("# TYPE kiosk_budget gauge\n");
+        StringBuilder over = new StringBuilder();
+        for (Telemetry.Kind kind : Telemetry.Kind.values()) {
+            for (Telemetry.Span span : Telemetry.Span.values()) {
+                long limit = Telemetry.budgetOf(kind, span);
+                if (limit < 0) continue;
+                String labels = "{kind=\"" + kind.name().toLowerCase(Locale.ROOT)
+                        + "\",span=\"" + span.name().toLowerCase(Locale.ROOT) + "\"} ";
+                sb.append("kiosk_budget").append(labels).append(limit).append('\n');
+                over.append("kiosk_budget_overruns_total").append(labels)
+                        .append(Telemetry.overruns(kind, span)).append('\n');
+            }
+        }
+        sb.append("# HELP kiosk_budget_overruns_total Events over their latency budget.\n");
+        sb.append("# TYPE kiosk_budget_overruns_total counter\n");
+        sb.append(over);
+    }
+
+    private static void appendHistogram(StringBuilder sb, String name, String help, Telemetry.Kind kind) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+
+        int buckets = Telemetry.bucketCount();
+        for (Telemetry.Span span : Telemetry.Span.values()) {
+            long total = 0;
+            for (int b = 0; b < buckets; b++) total += Telemetry.bucket(kind, span, b);
+            if (total == 0) continue;
+
+            String label = span.name().toLowerCase(Locale.ROOT);
+            long cumulative = 0;
+            for (int b = 0; b < buckets; b++) {
+                cumulative += Telemetry.bucket(kind, span, b);
+                long bound = Telemetry.bucketBound(b);
+                sb.append(name).append("_bucket{span=\"").append(label).append("\",le=\"");
+                if (bound == Long.MAX_VALUE) sb.append("+Inf"); else sb.append(bound);
+                sb.append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum{span=\"").append(label).append("\"} ")
+                    .append(Telemetry.sum(kind, span)).append('\n');
+            sb.append(name).append("_count{span=\"").append(label).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+    }
+
+    private static StringBuilder appendSeconds(StringBuilder sb, long ms) {
+        return sb.append(ms / 1000).append('.').append((char) ('0' + (ms % 1000) / 100));
+    }
+
+    private static StringBuilder appendLabel(StringBuilder sb, String v) {
+        if (v == null) return sb;
+        for (int i = 0; i < v.length(); i++) {
+            char ch = v.charAt(i);
+            if (ch == '\\' || ch == '"') sb.append('\\').append(ch);
+            else if (ch == '\n') sb.append("\\n");
+            else sb.append(ch);
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,339 @@
+package com.xam.kiosk.telemetry;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide provisioning instrumentation.
+ *
+ * Recording is allocation-free: events go into a preallocated ring buffer of
+ * primitive arrays, counters and per-span histograms into AtomicLongArrays.
+ * Formatting only happens in the periodic flush, which appends JSONL to
+ * files/telemetry/events.jsonl, and in {@link MetricsServer} scrapes.
+ *
+ * Some kind/span pairs carry a latency budget. An event over budget bumps
+ * that pair's overrun count and logs a warning, so fleet dashboards can alert
+ * on regressions in the timing constants.
+ */
+public final class Telemetry {
+
+    private static final String TAG = "Telemetry";
+
+    private static final int CAPACITY = 1024; // power of two
+    private static final long FLUSH_EVERY_MS = 60_000;
+    private static final long MAX_FILE_BYTES = 256 * 1024;
+
+    /** Event kinds. Units of the value column differ per kind. */
+    public enum Kind {
+        STAGE_START,  // value: -
+        STAGE_END,    // value: stage duration, ms
+        RETRY,        // value: delay until next try, ms
+        CALL,         // value: binder/IO call duration, us
+        LATENCY       // value: end-to-end latency of an operation, ms
+    }
+
+    /** What an event is about. */
+    public enum Span {
+        STAGE_WAITING_CONFIG,
+        STAGE_CONNECTING_WIFI,
+        STAGE_INSTALLING,
+        STAGE_LAUNCHING,
+        CONFIG_PARSE,
+        WIFI_CONNECT,
+        APK_STREAM,
+        INSTALL_COMMIT,
+        PM_PACKAGE_INFO,
+        DPM_POLICIES,
+        DPM_LOCKDOWN,
+        USB_SWITCH,
+        NODEAPP_RECOVER,
+        NODEAPP_FIRST_FRAME,
+        UPDATE_PLAN,
+        BOOT_READY,        // BootLaunchService start -> user unlocked + storage ready
+        BOOT_TO_KIOSK,     // device boot -> KioskActivity shown
+        PROVISION,         // config accepted -> NodeApp launched
+        CONFIG_FETCH,      // remote config request, 304 or 200
+        THERMAL_THROTTLE,  // brightness first stepped down -> back to full (thermal status NONE)
+        BUNDLE_EXTRACT     // provisioning bundle settled -> verified and accepted
+    }
+
+    public enum Counter {
+        CONFIG_READS,
+        CONFIG_CACHE_HITS,
+        CONFIG_REJECTS,
+        CONFIG_FETCHES,
+        CONFIG_NOT_MODIFIED,
+        BUNDLE_REJECTS,
+        WIFI_ATTEMPTS,
+        INSTALL_POLLS,
+        INSTALL_ATTEMPTS,
+        INSTALL_FAILURES,
+        LAUNCH_RETRIES,
+        USB_EVENTS,
+        USB_SWITCHES,
+        NODEAPP_DEATHS,
+        NODEAPP_RESTARTS,
+        NODEAPP_UPDATES,
+        NODEAPP_ROLLBACKS,
+        NODEAPP_ROLLBACK_FAILURES,
+        THERMAL_THROTTLES
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+    private static final Span[] SPANS = Span.values();
+    private static final Counter[] COUNTERS = Counter.values();
+
+    // Ring buffer (guarded by RING)
+    private static final Object RING = new Object();
+    private static final long[] times = new long[CAPACITY];
+    private static final byte[] kinds = new byte[CAPACITY];
+    private static final byte[] spans = new byte[CAPACITY];
+    private static final long[] values = new long[CAPACITY];
+    private static long written = 0;
+
+    private static final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+
+    // Histogram upper bounds, in the unit of the event kind (ms or us). The last
+    // bucket of each histogram is +Inf.
+    private static final long[] BOUNDS = {
+            1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10_000, 30_000, 60_000, 300_000
+    };
+    private static final int BUCKETS = BOUNDS.length + 1;
+
+    // [kind][span][bucket], flattened; sums are [kind][span]
+    private static final AtomicLongArray histograms =
+            new AtomicLongArray(KINDS.length * SPANS.length * BUCKETS);
+    private static final AtomicLongArray histogramSums =
+            new AtomicLongArray(KINDS.length * SPANS.length);
+
+    // [kind][span] budget in the kind's unit, -1 = none; and overruns of it
+    private static final long[] budgets = new long[KINDS.length * SPANS.length];
+    private static final AtomicLongArray overruns = new AtomicLongArray(KINDS.length * SPANS.length);
+
+    static {
+        Arrays.fill(budgets, -1);
+        // Required stages (ms); waiting for config depends on a human and has none.
+        budget(Kind.STAGE_END, Span.STAGE_INSTALLING, 120_000);
+        budget(Kind.STAGE_END, Span.STAGE_LAUNCHING, 10_000);
+        budget(Kind.STAGE_END, Span.STAGE_CONNECTING_WIFI, 60_000);
+        // End to end (ms)
+        budget(Kind.LATENCY, Span.BOOT_READY, 60_000);      // BootLaunchService.TIMEOUT_MS
+        budget(Kind.LATENCY, Span.BOOT_TO_KIOSK, 45_000);
+        budget(Kind.LATENCY, Span.PROVISION, 180_000);
+        budget(Kind.LATENCY, Span.WIFI_CONNECT, 60_000);
+        budget(Kind.LATENCY, Span.NODEAPP_FIRST_FRAME, 3000);
+        budget(Kind.LATENCY, Span.NODEAPP_RECOVER, 5000);
+        budget(Kind.LATENCY, Span.INSTALL_COMMIT, 30_000);
+        // Calls (us)
+        budget(Kind.CALL, Span.CONFIG_PARSE, 50_000);
+        budget(Kind.CALL, Span.PM_PACKAGE_INFO, 20_000);
+        budget(Kind.CALL, Span.DPM_POLICIES, 500_000);
+        budget(Kind.CALL, Span.DPM_LOCKDOWN, 500_000);
+        budget(Kind.CALL, Span.UPDATE_PLAN, 2_000_000);
+    }
+
+    // Flusher
+    private static Handler flushHandler;
+    private static File outFile;
+    private static long flushed = 0;
+
+    private Telemetry() {}
+
+    // =========================
+    // Recording (hot paths)
+    // =========================
+
+    public static void event(Kind kind, Span span, long value) {
+        long now = SystemClock.uptimeMillis();
+        synchronized (RING) {
+            int i = (int) (written & (CAPACITY - 1));
+            times[i] = now;
+            kinds[i] = (byte) kind.ordinal();
+            spans[i] = (byte) span.ordinal();
+            values[i] = value;
+            written++;
+        }
+
+        int h = kind.ordinal() * SPANS.length + span.ordinal();
+        histograms.incrementAndGet(h * BUCKETS + bucketOf(value));
+        histogramSums.addAndGet(h, value);
+
+        long limit = budgets[h];
+        if (limit >= 0 && value > limit) {
+            overruns.incrementAndGet(h);
+            Log.w(TAG, kind + " " + span + " over budget: " + value + " > " + limit);
+        }
+    }
+
+    private static int bucketOf(long value) {
+        for (int b = 0; b < BOUNDS.length; b++) {
+            if (value <= BOUNDS[b]) return b;
+        }
+        return BOUNDS.length;
+    }
+
+    public static void count(Counter c) {
+        counters.incrementAndGet(c.ordinal());
+    }
+
+    public static long get(Counter c) {
+        return counters.get(c.ordinal());
+    }
+
+    /** Start timestamp for {@link #call(Span, long)}. */
+    public static long startCall() {
+        return System.nanoTime();
+    }
+
+    /** Records a CALL event with the duration since {@code startNanos}, in microseconds. */
+    public static void call(Span span, long startNanos) {
+        event(Kind.CALL, span, (System.nanoTime() - startNanos) / 1000);
+    }
+
+    // =========================
+    // Histograms (read side)
+    // =========================
+
+    /** Number of buckets per histogram, including the trailing +Inf bucket. */
+    public static int bucketCount() {
+        return BUCKETS;
+    }
+
+    /** Upper bound of bucket {@code b}, or Long.MAX_VALUE for the +Inf bucket. */
+    public static long bucketBound(int b) {
+        return b < BOUNDS.length ? BOUNDS[b] : Long.MAX_VALUE;
+    }
+
+    /** Non-cumulative count of bucket {@code b}. */
+    public static long bucket(Kind kind, Span span, int b) {
+        return histograms.get((kind.ordinal() * SPANS.length + span.ordinal()) * BUCKETS + b);
+    }
+
+    public static long sum(Kind kind, Span span) {
+        return histogramSums.get(kind.ordinal() * SPANS.length + span.ordinal());
+    }
+
+    // =========================
+    // Budgets
+    // =========================
+
+    private static void budget(Kind kind, Span span, long limit) {
+        budgets[kind.ordinal() * SPANS.length + span.ordinal()] = limit;
+    }
+
+    /** Budget for this kind/span in the kind's unit, or -1 if there is none. */
+    public static long budgetOf(Kind kind, Span span) {
+        return budgets[kind.ordinal() * SPANS.length + span.ordinal()];
+    }
+
+    /** Events recorded over {@link #budgetOf}. */
+    public static long overruns(Kind kind, Span span) {
+        return overruns.get(kind.ordinal() * SPANS.length + span.ordinal());
+    }
+
+    // =========================
+    // Flush
+    // =========================
+
+    /** Idempotent. Starts the periodic flush to app storage. */
+    public static synchronized void start(Context context) {
+        if (flushHandler != null) return;
+
+        File dir = new File(context.getApplicationContext().getFilesDir(), "telemetry");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Cannot create " + dir + "; telemetry stays in memory");
+            return;
+        }
+        outFile = new File(dir, "events.jsonl");
+
+        HandlerThread t = new HandlerThread("telemetry");
+        t.start();
+        flushHandler = new Handler(t.getLooper());
+        flushHandler.postDelayed(flushRunnable, FLUSH_EVERY_MS);
+    }
+
+    /** Flush now (e.g. before the process may die). Safe from any thread. */
+    public static synchronized void requestFlush() {
+        if (flushHandler == null) return;
+        flushHandler.removeCallbacks(flushRunnable);
+        flushHandler.post(flushRunnable);
+    }
+
+    private static final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush(outFile);
+            } catch (Exception e) {
+                Log.w(TAG, "flush failed: " + e.getMessage());
+            }
+            flushHandler.postDelayed(this, FLUSH_EVERY_MS);
+        }
+    };
+
+    // Flush thread only (or a test, with no flush thread running)
+    private static final long[] fTimes = new long[CAPACITY];
+    private static final byte[] fKinds = new byte[CAPACITY];
+    private static final byte[] fSpans = new byte[CAPACITY];
+    private static final long[] fValues = new long[CAPACITY];
+
+    /** Appends events recorded since the last flush to {@code file}; visible for tests. */
+    static void flush(File file) throws IOException {
+        int n;
+        long dropped;
+        synchronized (RING) {
+            long pending = written - flushed;
+            dropped = Math.max(0, pending - CAPACITY);
+            long from = written - Math.min(pending, CAPACITY);
+            n = (int) (written - from);
+            for (int k = 0; k < n; k++) {
+                int i = (int) ((from + k) & (CAPACITY - 1));
+                fTimes[k] = times[i];
+                fKinds[k] = kinds[i];
+                fSpans[k] = spans[i];
+                fValues[k] = values[i];
+            }
+            flushed = written;
+        }
+
+        if (file.length() > MAX_FILE_BYTES) {
+            File old = new File(file.getPath() + ".1");
+            if (!file.renameTo(old)) Log.w(TAG, "rotate failed");
+        }
+
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            StringBuilder sb = new StringBuilder(128);
+            for (int k = 0; k < n; k++) {
+                sb.setLength(0);
+                sb.append("{\"t\":").append(fTimes[k])
+                        .append(",\"k\":\"").append(KINDS[fKinds[k]].name())
+                        .append("\",\"s\":\"").append(SPANS[fSpans[k]].name())
+                        .append("\",\"v\":").append(fValues[k]).append("}\n");
+                w.write(sb.toString());
+            }
+
+            sb.setLength(0);
+            sb.append("{\"t\":").append(SystemClock.uptimeMillis());
+            if (dropped > 0) sb.append(",\"dropped\":").append(dropped);
+            sb.append(",\"counters\":{");
+            for (int c = 0; c < COUNTERS.length; c++) {
+                if (c > 0) sb.append(',');
+                sb.append('"').append(COUNTERS[c].name()).append("\":").append(counters.get(c));
+            }
+            sb.append("}}\n");
+            w.write(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.xam.kiosk.ui;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
+import android.os.UserManager;
+import android.util.Log;
+import android.view.WindowManager;
+
+import com.xam.kiosk.R;
+import com.xam.kiosk.boot.BootLaunchService;
+import com.xam.kiosk.boot.BootTimeline;
+
+/**
+ * Direct-Boot-aware splash shown from LOCKED_BOOT_COMPLETED on already
+ * provisioned devices, so the screen has content while credential storage is
+ * still locked. Touches nothing outside device-protected storage.
+ *
+ * Hands off to {@link KioskActivity} the moment the user is unlocked, without
+ * waiting for BOOT_COMPLETED / BootLaunchService.
+ */
+public class BootSplashActivity extends Activity {
+
+    private static final String TAG = "BootSplashActivity";
+
+    private BroadcastReceiver unlockReceiver;
+    private boolean handedOff = false;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_kiosk);
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+
+        if (isUserUnlocked()) {
+            handOff();
+            return;
+        }
+
+        unlockReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                handOff();
+            }
+        };
+        registerReceiver(unlockReceiver, new IntentFilter(Intent.ACTION_USER_UNLOCKED));
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+        if (hasFocus) BootTimeline.mark(BootTimeline.Phase.SPLASH_SHOWN);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (unlockReceiver != null) {
+            try {
+                unregisterReceiver(unlockReceiver);
+            } catch (Exception ignored) {}
+            unlockReceiver = null;
+        }
+        super.onDestroy();
+    }
+
+    // Kiosk: nothing to go back to
+    @Override
+    public void onBackPressed() {}
+
+    private void handOff() {
+        if (handedOff) return;
+        handedOff = true;
+
+        Log.i(TAG, "User unlocked; handing off to KioskActivity");
+        try {
+            Intent i = new Intent(this, KioskActivity.class);
+            i.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            startActivity(i);
+            overridePendingTransition(0, 0);
+            BootLaunchService.onSplashHandedOff();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to start KioskActivity: " + e.getMessage(), e);
+        }
+        finish();
+    }
+
+    private boolean isUserUnlocked() {
+        try {
+            UserManager um = (UserManager) getSystemService(Context.USER_SERVICE);
+            return um != null && um.isUserUnlocked();
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+}
@@ -1,37 +1,48 @@
 package com.xam.kiosk.ui;
 
 import android.app.Activity;
-import android.app.admin.DevicePolicyManager;
+import android.app.ActivityOptions;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.PackageManager;
-import android.net.Uri;
-import android.net.wifi.WifiConfiguration;
-import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.UserManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.WindowInsets;
 import android.view.WindowInsetsController;
 import android.view.WindowManager;
+import android.widget.TextView;
+import android.window.SplashScreen;
 
 import com.xam.kiosk.R;
 import com.xam.kiosk.admin.KioskDeviceAdminReceiver;
-
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.util.List;
+import com.xam.kiosk.boot.BootLaunchService;
+import com.xam.kiosk.boot.BootTimeline;
+import com.xam.kiosk.config.ConfigRepository;
+import com.xam.kiosk.display.DisplayController;
+import com.xam.kiosk.policy.PolicyEngine;
+import com.xam.kiosk.provision.DeviceProvisioningHost;
+import com.xam.kiosk.provision.ProvisioningEngine;
+import com.xam.kiosk.telemetry.KioskStatus;
+import com.xam.kiosk.telemetry.MetricsServer;
+import com.xam.kiosk.telemetry.Telemetry;
+import com.xam.kiosk.usb.UsbStateReceiver;
+import com.xam.kiosk.util.Clock;
+import com.xam.kiosk.util.HandlerScheduler;
+import com.xam.kiosk.util.RetryScheduler;
+import com.xam.kiosk.watchdog.NodeAppWatchdog;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Set;
 
 public class KioskActivity extends Activity {
 
@@ -41,334 +52,304 @@ public class KioskActivity extends Activity {
     private static final String NODE_APP_PACKAGE = "com.xam.nodeapp";
     private static final String NODE_APP_MAIN_ACTIVITY = "com.xam.nodeapp.MainActivity";
 
-    // Provisioning file pushed via MTP
-    private static final String DEFAULT_CONFIG_PATH = "/sdcard/config.json";
+    /** NodeApp sends this once its first frame is drawn; the only time-to-first-frame signal. */
+    public static final String ACTION_NODEAPP_FIRST_FRAME = "com.xam.kiosk.action.NODEAPP_FIRST_FRAME";
+    /** Signature permission the sender of {@link #ACTION_NODEAPP_FIRST_FRAME} must hold. */
+    public static final String PERMISSION_NODEAPP_EVENTS = "com.xam.kiosk.permission.NODEAPP_EVENTS";
 
-    // Retry pacing
-    private static final long CONFIG_RECHECK_MS  = 3000;
-    private static final long WIFI_RECHECK_MS    = 5000;
-    private static final long INSTALL_RECHECK_MS = 5000;
+    // Decor insets controller can be null for a while on some OEM builds
+    private static final RetryScheduler.Policy IMMERSIVE_RETRY =
+            new RetryScheduler.Policy(100, 2000, 2.0, 0.2, 8);
 
     private final Handler handler = new Handler(Looper.getMainLooper());
+    private final RetryScheduler uiRetries = new RetryScheduler(new HandlerScheduler(handler), Clock.SYSTEM);
+    private final Runnable immersiveRetry = this::enableImmersiveModeSafe;
+
+    private final NodeAppWatchdog watchdog = new NodeAppWatchdog(Clock.SYSTEM, new HandlerScheduler(handler),
+            uiRetries, this::startNodeApp, this::onNodeAppHealth);
+
+    // Shared by provisioning and the display policy, so device owner is looked up once
+    private PolicyEngine policyEngine;
+    private HandlerThread provisioningThread;
+    private ProvisioningEngine engine;
+    private MetricsServer metricsServer;
+    private DisplayController displayController;
 
-    private String ssidFromConfig;
-    private String nodeApkPathFromConfig; // relative or absolute
+    private TextView statusText;
+    private int stageLabel = R.string.status_starting;
+    private Set<ProvisioningEngine.Task> pendingTasks = Collections.emptySet();
+
+    private final UsbStateReceiver usbStateReceiver = new UsbStateReceiver();
 
     private boolean launchAttempted = false;
-    private boolean installTriggered = false;
+    private boolean launchInLockTask = false;
+    private boolean lockTaskStarted = false;
+
+    // Uptime of the last NodeApp start, -1 once its first frame was seen
+    private long launchStartMs = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        BootLaunchService.onKioskCreated();
 
         // IMPORTANT: Ensure decor view exists before immersive APIs (fixes Lenovo A13 NPE)
         setContentView(R.layout.activity_kiosk);
+        statusText = findViewById(R.id.status_text);
+        policyEngine = new PolicyEngine(this, new ComponentName(this, KioskDeviceAdminReceiver.class));
 
+        // Defaults while cool; DisplayController steps down under heat, on battery or on schedule.
         keepScreenOn();
         forceMaxBrightness();
+        startDisplayController();
 
         // Do NOT call immersive synchronously here on some OEM builds; post it.
         handler.post(this::enableImmersiveModeSafe);
 
         // Do NOT disable USB file transfer here; MTP provisioning depends on it.
+        // USB_STATE is not delivered to manifest receivers; listen while we are up.
+        registerUsbStateReceiver();
+        registerFirstFrameReceiver();
 
-        // If device owner: force kiosk as HOME + allow locktask packages
-        ensurePoliciesIfDeviceOwner();
+        Telemetry.start(this);
+        startMetricsServer();
+
+        // Start provisioning flow (runs on its own thread).
+        // If device owner, it also forces kiosk as HOME + allows locktask packages.
+        startProvisioning();
+    }
 
-        // Start provisioning flow
-        waitForConfigThenProceed();
+    @Override
+    protected void onDestroy() {
+        try {
+            unregisterReceiver(usbStateReceiver);
+        } catch (Exception ignored) {}
+        try {
+            unregisterReceiver(firstFrameReceiver);
+        } catch (Exception ignored) {}
+        if (engine != null) engine.stop();
+        Telemetry.requestFlush();
+        if (metricsServer != null) metricsServer.stop();
+        if (displayController != null) displayController.stop();
+        if (provisioningThread != null) provisioningThread.quitSafely();
+        watchdog.stop();
+        uiRetries.cancelAll();
+        handler.removeCallbacksAndMessages(null);
+        BootLaunchService.onKioskDestroyed();
+        super.onDestroy();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        // Resumed while NodeApp should be on top: it died or finished.
+        watchdog.onKioskForeground();
         enableImmersiveModeSafe();
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        watchdog.onKioskBackground();
+    }
+
     @Override
     public void onWindowFocusChanged(boolean hasFocus) {
         super.onWindowFocusChanged(hasFocus);
-        if (hasFocus) enableImmersiveModeSafe();
+        if (hasFocus) {
+            BootTimeline.mark(BootTimeline.Phase.ACTIVITY_SHOWN);
+            enableImmersiveModeSafe();
+        }
     }
 
     // =========================
     // Provisioning workflow
     // =========================
 
-    private void waitForConfigThenProceed() {
-        if (!readConfig(DEFAULT_CONFIG_PATH)) {
-            Log.i(TAG, "config.json not found/invalid yet. Waiting for MTP push...");
-            handler.postDelayed(this::waitForConfigThenProceed, CONFIG_RECHECK_MS);
-            return;
-        }
-
-        Log.i(TAG, "Config loaded: ssid=" + ssidFromConfig + ", nodeapp_apk_path=" + nodeApkPathFromConfig);
-
-        // Step 1: connect to WiFi if SSID present
-        if (ssidFromConfig != null && !ssidFromConfig.trim().isEmpty()) {
-            ensureWifiConnected(ssidFromConfig.trim(), this::ensureNodeAppInstalledThenLaunch);
-        } else {
-            ensureNodeAppInstalledThenLaunch();
-        }
-    }
-
-    private void ensureNodeAppInstalledThenLaunch() {
-        if (!isPackageInstalled(NODE_APP_PACKAGE)) {
-            File apk = resolveNodeApkFile(nodeApkPathFromConfig);
-            if (apk == null || !apk.exists()) {
-                Log.i(TAG, "NodeApp not installed and APK not found yet. Waiting...");
-                handler.postDelayed(this::ensureNodeAppInstalledThenLaunch, INSTALL_RECHECK_MS);
-                return;
-            }
-
-            // Trigger installer only once; then just poll until installed.
-            if (!installTriggered) {
-                installTriggered = true;
-                Log.i(TAG, "Found NodeApp APK at: " + apk.getAbsolutePath());
-                installApk(apk);
-            }
+    private void startProvisioning() {
+        provisioningThread = new HandlerThread("provisioning");
+        provisioningThread.start();
+        Handler worker = new Handler(provisioningThread.getLooper());
+        HandlerScheduler scheduler = new HandlerScheduler(worker);
 
-            handler.postDelayed(this::ensureNodeAppInstalledThenLaunch, INSTALL_RECHECK_MS);
-            return;
-        }
+        // One retry scheduler for all waiting stages, so their wakeups coalesce.
+        RetryScheduler retries = new RetryScheduler(scheduler, Clock.SYSTEM);
 
-        // Step 3: launch NodeApp
-        launchNodeApp();
+        DeviceProvisioningHost host = new DeviceProvisioningHost(
+                this, ConfigRepository.getInstance(), policyEngine, worker, retries, NODE_APP_PACKAGE);
 
-        // Step 4: after success, switch USB to charging-only + locktask
-        finalizeKioskAfterSuccess();
+        engine = new ProvisioningEngine(scheduler, handler::post,
+                Clock.SYSTEM, retries, host, engineUi);
+        engine.start();
     }
 
-    // =========================
-    // Config
-    // =========================
-
-    /**
-     * Reads config JSON like:
-     * {"ssid": "Office_WiFi_5G","nodeapp_apk_path": "somepath/NodeApp.apk"}
-     */
-    private boolean readConfig(String path) {
+    /** Optional; disabled when R.integer.metrics_port is 0. */
+    private void startMetricsServer() {
+        int port = getResources().getInteger(R.integer.metrics_port);
+        if (port <= 0) return;
         try {
-            File f = new File(path);
-            if (!f.exists()) return false;
-
-            StringBuilder sb = new StringBuilder();
-            try (BufferedReader br = new BufferedReader(new FileReader(f))) {
-                String line;
-                while ((line = br.readLine()) != null) sb.append(line);
-            }
-
-            JSONObject obj = new JSONObject(sb.toString());
-            ssidFromConfig = obj.optString("ssid", null);
-            nodeApkPathFromConfig = obj.optString("nodeapp_apk_path", null);
-
-            return nodeApkPathFromConfig != null && !nodeApkPathFromConfig.trim().isEmpty();
-
+            metricsServer = new MetricsServer(new InetSocketAddress(port));
+            metricsServer.start();
         } catch (Exception e) {
-            Log.e(TAG, "Failed to read config.json: " + e.getMessage(), e);
-            return false;
+            Log.e(TAG, "Metrics server failed to start: " + e.getMessage(), e);
+            metricsServer = null;
         }
     }
 
-    private File resolveNodeApkFile(String nodeappApkPath) {
-        try {
-            if (nodeappApkPath == null) return null;
-            String p = nodeappApkPath.trim();
-            if (p.isEmpty()) return null;
-
-            // absolute path
-            if (p.startsWith("/")) return new File(p);
-
-            // relative to /sdcard
-            File external = Environment.getExternalStorageDirectory(); // /sdcard
-            return new File(external, p);
-
-        } catch (Exception e) {
-            Log.e(TAG, "resolveNodeApkFile error: " + e.getMessage(), e);
-            return null;
+    private final ProvisioningEngine.Ui engineUi = new ProvisioningEngine.Ui() {
+        @Override
+        public void onStageChanged(ProvisioningEngine.Stage stage) {
+            stageLabel = stageLabel(stage);
+            showStatus();
         }
-    }
-
-    // =========================
-    // WiFi (legacy API; open network)
-    // =========================
-
-    private interface SimpleCallback { void run(); }
 
-    private void ensureWifiConnected(String ssidPlain, SimpleCallback onConnected) {
-        WifiManager wifi = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
-        if (wifi == null) {
-            Log.e(TAG, "WifiManager is null");
-            onConnected.run();
-            return;
+        @Override
+        public void onPendingChanged(Set<ProvisioningEngine.Task> pending) {
+            pendingTasks = pending;
+            showStatus();
         }
 
-        if (!wifi.isWifiEnabled()) {
-            wifi.setWifiEnabled(true);
+        @Override
+        public boolean launchNodeApp(boolean inLockTask) {
+            return KioskActivity.this.launchNodeApp(inLockTask);
         }
 
-        final String quotedSsid = "\"" + ssidPlain + "\"";
-
-        // already connected?
-        try {
-            String cur = (wifi.getConnectionInfo() != null) ? wifi.getConnectionInfo().getSSID() : null;
-            if (cur != null && cur.equals(quotedSsid)) {
-                Log.i(TAG, "Already connected to WiFi: " + ssidPlain);
-                onConnected.run();
-                return;
-            }
-        } catch (Exception ignored) {}
-
-        int netId = findOrAddOpenNetwork(wifi, quotedSsid);
-        if (netId == -1) {
-            Log.e(TAG, "Failed to find/add WiFi network: " + ssidPlain);
-            handler.postDelayed(() -> ensureWifiConnected(ssidPlain, onConnected), WIFI_RECHECK_MS);
-            return;
+        @Override
+        public void onNodeAppUpdating() {
+            // The package is replaced under us: not a crash, and the next launch is a real one.
+            watchdog.stop();
+            launchAttempted = false;
+            stageLabel = R.string.status_installing;
+            showStatus();
         }
 
-        boolean enabled = wifi.enableNetwork(netId, true);
-        wifi.reconnect();
-
-        Log.i(TAG, "WiFi enableNetwork(" + netId + ")=" + enabled + ", reconnect requested");
-
-        handler.postDelayed(() -> {
+        @Override
+        public void startKioskLockTask() {
+            // Start lock task (kiosk)
+            if (lockTaskStarted) return;
             try {
-                String cur = (wifi.getConnectionInfo() != null) ? wifi.getConnectionInfo().getSSID() : null;
-                if (cur != null && cur.equals(quotedSsid)) {
-                    Log.i(TAG, "Connected to WiFi: " + ssidPlain);
-                    onConnected.run();
-                    return;
-                }
-            } catch (Exception ignored) {}
-
-            ensureWifiConnected(ssidPlain, onConnected);
-        }, WIFI_RECHECK_MS);
-    }
-
-    private int findOrAddOpenNetwork(WifiManager wifi, String quotedSsid) {
-        try {
-            List<WifiConfiguration> configs = wifi.getConfiguredNetworks();
-            if (configs != null) {
-                for (WifiConfiguration c : configs) {
-                    if (quotedSsid.equals(c.SSID)) return c.networkId;
-                }
+                startLockTask();
+                lockTaskStarted = true;
+                Log.i(TAG, "LockTask started.");
+            } catch (Exception e) {
+                Log.e(TAG, "startLockTask failed: " + e.getMessage(), e);
             }
+        }
+    };
+
+    /** Required stage on the first line, one line per optional task still running. */
+    private void showStatus() {
+        if (statusText == null) return;
+        StringBuilder sb = new StringBuilder(getString(stageLabel));
+        for (ProvisioningEngine.Task t : pendingTasks) {
+            if (t == ProvisioningEngine.Task.WIFI) sb.append('\n').append(getString(R.string.status_pending_wifi));
+        }
+        statusText.setText(sb);
+    }
 
-            WifiConfiguration wc = new WifiConfiguration();
-            wc.SSID = quotedSsid;
-            wc.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
-            return wifi.addNetwork(wc);
-
-        } catch (Exception e) {
-            Log.e(TAG, "findOrAddOpenNetwork error: " + e.getMessage(), e);
-            return -1;
+    private int stageLabel(ProvisioningEngine.Stage stage) {
+        switch (stage) {
+            case WAITING_CONFIG:  return R.string.status_waiting_config;
+            case INSTALLING:      return R.string.status_installing;
+            case LAUNCHING:
+            case DONE:            return R.string.status_launching;
+            default:              return R.string.status_starting;
         }
     }
 
     // =========================
-    // Install & Launch NodeApp
+    // Launch NodeApp
     // =========================
 
-    private boolean isPackageInstalled(String pkg) {
-        try {
-            getPackageManager().getPackageInfo(pkg, 0);
-            return true;
-        } catch (PackageManager.NameNotFoundException e) {
+    private boolean launchNodeApp(boolean inLockTask) {
+        if (launchAttempted) return true;
+        launchAttempted = true;
+        launchInLockTask = inLockTask;
+
+        if (!startNodeApp()) {
+            launchAttempted = false;
             return false;
         }
+        watchdog.onLaunched();
+        return true;
     }
 
-    private void installApk(File apkFile) {
-        try {
-            // Standard installer UI (no ADB; no silent install)
-            Intent intent = new Intent(Intent.ACTION_VIEW);
-            intent.setDataAndType(Uri.fromFile(apkFile), "application/vnd.android.package-archive");
-            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            startActivity(intent);
-            Log.i(TAG, "Triggered installer for: " + apkFile.getAbsolutePath());
-        } catch (Exception e) {
-            Log.e(TAG, "installApk failed: " + e.getMessage(), e);
-            installTriggered = false; // allow retry if it failed to even start
-        }
+    private void onNodeAppHealth(boolean healthy) {
+        if (engine != null) engine.reportNodeAppHealth(healthy);
     }
 
-    private void launchNodeApp() {
-        if (launchAttempted) return;
-        launchAttempted = true;
-
+    private boolean startNodeApp() {
         try {
             Intent intent = new Intent();
             intent.setClassName(NODE_APP_PACKAGE, NODE_APP_MAIN_ACTIVITY);
             intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
-            startActivity(intent);
+
+            ActivityOptions opts = ActivityOptions.makeBasic();
+            // Start directly in lock task mode (allow-listed by the device policies).
+            if (launchInLockTask) opts.setLockTaskEnabled(true);
+            // Show NodeApp's icon splash at once instead of a blank starting window.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                opts.setSplashScreenStyle(SplashScreen.SPLASH_SCREEN_STYLE_ICON);
+            }
+
+            launchStartMs = SystemClock.uptimeMillis();
+            startActivity(intent, opts.toBundle());
+            KioskStatus.nodeAppLaunched = true;
             Log.i(TAG, "Launching NodeApp...");
+            return true;
         } catch (Exception e) {
             Log.e(TAG, "Failed to launch NodeApp: " + e.getMessage(), e);
-            launchAttempted = false;
+            launchStartMs = -1;
+            return false;
         }
     }
 
-    // =========================
-    // Device Owner / Kiosk
-    // =========================
-
-    private void ensurePoliciesIfDeviceOwner() {
-        DevicePolicyManager dpm = (DevicePolicyManager) getSystemService(Context.DEVICE_POLICY_SERVICE);
-        ComponentName admin = new ComponentName(this, KioskDeviceAdminReceiver.class);
-
-        if (dpm == null) return;
-
-        if (!dpm.isDeviceOwnerApp(getPackageName())) {
-            Log.w(TAG, "Not device owner. Cannot force HOME or LockTask packages.");
-            return;
-        }
-
-        // 1) Force our activity as default HOME
-        try {
-            IntentFilter filter = new IntentFilter(Intent.ACTION_MAIN);
-            filter.addCategory(Intent.CATEGORY_HOME);
-            filter.addCategory(Intent.CATEGORY_DEFAULT);
-            ComponentName home = new ComponentName(getPackageName(), KioskActivity.class.getName());
-            dpm.addPersistentPreferredActivity(admin, filter, home);
-            Log.i(TAG, "Set persistent preferred HOME to KioskActivity");
-        } catch (Exception e) {
-            Log.e(TAG, "addPersistentPreferredActivity failed: " + e.getMessage(), e);
+    private final BroadcastReceiver firstFrameReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onNodeAppFirstFrame();
         }
+    };
 
-        // 2) Allow LockTask for our app + NodeApp
+    private void registerFirstFrameReceiver() {
         try {
-            dpm.setLockTaskPackages(admin, new String[]{ getPackageName(), NODE_APP_PACKAGE, "com.android.systemui" });
+            IntentFilter filter = new IntentFilter(ACTION_NODEAPP_FIRST_FRAME);
+            // Sent by NodeApp, i.e. another package: exported, but only to holders of our
+            // signature permission, so no other app can fake a first frame.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                registerReceiver(firstFrameReceiver, filter, PERMISSION_NODEAPP_EVENTS, null,
+                        Context.RECEIVER_EXPORTED);
+            } else {
+                registerReceiver(firstFrameReceiver, filter, PERMISSION_NODEAPP_EVENTS, null);
+            }
         } catch (Exception e) {
-            Log.e(TAG, "setLockTaskPackages failed: " + e.getMessage(), e);
+            Log.e(TAG, "registerFirstFrameReceiver failed: " + e.getMessage(), e);
         }
-
-        // 3) Optional restrictions (do NOT touch USB file transfer here!)
-        try {
-            dpm.addUserRestriction(admin, UserManager.DISALLOW_ADJUST_VOLUME);
-            dpm.addUserRestriction(admin, UserManager.DISALLOW_CONFIG_BRIGHTNESS);
-        } catch (Exception ignored) {}
     }
 
-    private void finalizeKioskAfterSuccess() {
-        DevicePolicyManager dpm = (DevicePolicyManager) getSystemService(Context.DEVICE_POLICY_SERVICE);
-        ComponentName admin = new ComponentName(this, KioskDeviceAdminReceiver.class);
+    /** Records time-to-first-frame once per NodeApp start. */
+    private void onNodeAppFirstFrame() {
+        if (launchStartMs < 0) return;
+        long ttff = SystemClock.uptimeMillis() - launchStartMs;
+        launchStartMs = -1;
+        Telemetry.event(Telemetry.Kind.LATENCY, Telemetry.Span.NODEAPP_FIRST_FRAME, ttff);
+        Log.i(TAG, "NodeApp first frame after " + ttff + "ms");
+    }
 
-        if (dpm != null && dpm.isDeviceOwnerApp(getPackageName())) {
-            // Disable USB file transfer only AFTER provisioning is done
-            try {
-                dpm.addUserRestriction(admin, UserManager.DISALLOW_USB_FILE_TRANSFER);
-                Log.i(TAG, "USB file transfer disabled (charging-only behavior).");
-            } catch (Exception e) {
-                Log.e(TAG, "DISALLOW_USB_FILE_TRANSFER failed: " + e.getMessage(), e);
-            }
+    // =========================
+    // USB
+    // =========================
 
-            // Start lock task (kiosk)
-            try {
-                startLockTask();
-                Log.i(TAG, "LockTask started.");
-            } catch (Exception e) {
-                Log.e(TAG, "startLockTask failed: " + e.getMessage(), e);
+    private void registerUsbStateReceiver() {
+        try {
+            IntentFilter filter = new IntentFilter(UsbStateReceiver.ACTION_USB_STATE);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                registerReceiver(usbStateReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+            } else {
+                registerReceiver(usbStateReceiver, filter);
             }
+        } catch (Exception e) {
+            Log.e(TAG, "registerUsbStateReceiver failed: " + e.getMessage(), e);
         }
     }
 
@@ -376,6 +357,26 @@ public class KioskActivity extends Activity {
     // UI / Hardening
     // =========================
 
+    private void startDisplayController() {
+        displayController = new DisplayController(this, policyEngine, ConfigRepository.getInstance(),
+                handler::post, this::applyDisplay);
+        displayController.start();
+    }
+
+    private void applyDisplay(float brightness, boolean keepScreenOn) {
+        if (isDestroyed()) return;
+        try {
+            WindowManager.LayoutParams lp = getWindow().getAttributes();
+            lp.screenBrightness = brightness;
+            getWindow().setAttributes(lp);
+            if (keepScreenOn) {
+                getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+            } else {
+                getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+            }
+        } catch (Exception ignored) {}
+    }
+
     private void keepScreenOn() {
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
     }
@@ -400,10 +401,15 @@ public class KioskActivity extends Activity {
 
                 WindowInsetsController controller = decor.getWindowInsetsController();
                 if (controller == null) {
-                    // Not ready yet on some OEM builds; retry shortly
-                    handler.postDelayed(this::enableImmersiveModeSafe, 200);
+                    // Not ready yet on some OEM builds; retry with backoff (bounded)
+                    if (uiRetries.retry(immersiveRetry, IMMERSIVE_RETRY) < 0
+                            && !uiRetries.isPending(immersiveRetry)) {
+                        Log.w(TAG, "Insets controller still unavailable; giving up until next focus change");
+                        uiRetries.reset(immersiveRetry);
+                    }
                     return;
                 }
+                uiRetries.reset(immersiveRetry);
 
                 controller.hide(WindowInsets.Type.statusBars() | WindowInsets.Type.navigationBars());
                 controller.setSystemBarsBehavior(
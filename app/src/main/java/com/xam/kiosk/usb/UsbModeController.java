@@ -0,0 +1,163 @@
+package com.xam.kiosk.usb;
+
+import android.content.Context;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.UserManager;
+import android.util.Log;
+
+import com.xam.kiosk.telemetry.Telemetry;
+
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the USB gadget in MTP while provisioning.
+ *
+ * USB_STATE events are coalesced: only the last state inside DEBOUNCE_MS is acted
+ * on, nothing is done when MTP is already active or USB file transfer is
+ * restricted, and a switch is attempted at most once per COOLDOWN_MS (our own
+ * switch makes the gadget re-enumerate and fires more USB_STATE events).
+ *
+ * The switch uses UsbManager.setCurrentFunctions() when the platform lets us
+ * (system/priv-app), otherwise a single setprop shell that is waited for with a
+ * timeout. Everything runs on one worker thread, so at most one process exists.
+ */
+public class UsbModeController {
+
+    private static final String TAG = "UsbModeController";
+
+    private static final long DEBOUNCE_MS = 1500;
+    private static final long COOLDOWN_MS = 10_000;
+    private static final long SHELL_TIMEOUT_MS = 5000;
+
+    // UsbManager.FUNCTION_MTP (hidden constant)
+    private static final long FUNCTION_MTP = 1L << 2;
+
+    private static UsbModeController instance;
+
+    public static synchronized UsbModeController getInstance(Context context) {
+        if (instance == null) instance = new UsbModeController(context.getApplicationContext());
+        return instance;
+    }
+
+    private final Context context;
+    private final Handler worker;
+
+    // Worker-thread state
+    private boolean connected;
+    private boolean mtp;
+    private long lastSwitchMs = -COOLDOWN_MS;
+
+    private UsbModeController(Context context) {
+        this.context = context;
+        HandlerThread t = new HandlerThread("usb-mode");
+        t.start();
+        this.worker = new Handler(t.getLooper());
+    }
+
+    /** Safe to call from any thread. */
+    public void onUsbState(boolean connected, boolean mtp) {
+        Telemetry.count(Telemetry.Counter.USB_EVENTS);
+        worker.post(() -> {
+            this.connected = connected;
+            this.mtp = mtp;
+            worker.removeCallbacks(applyRunnable);
+            worker.postDelayed(applyRunnable, DEBOUNCE_MS);
+        });
+    }
+
+    private final Runnable applyRunnable = this::apply;
+
+    private void apply() {
+        if (!connected) return;
+
+        if (mtp) {
+            Log.i(TAG, "USB connected, already in MTP");
+            return;
+        }
+        if (isFileTransferRestricted()) {
+            Log.i(TAG, "USB file transfer restricted by policy; not forcing MTP");
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastSwitchMs < COOLDOWN_MS) {
+            Log.i(TAG, "MTP switch attempted " + (now - lastSwitchMs) + "ms ago; skipping");
+            return;
+        }
+        lastSwitchMs = now;
+
+        Log.i(TAG, "USB connected -> forcing MTP");
+        Telemetry.count(Telemetry.Counter.USB_SWITCHES);
+        long t0 = Telemetry.startCall();
+        if (!setFunctionsViaUsbManager()) {
+            runShell("setprop vendor.usb.config none; " +
+                    "setprop sys.usb.config none; " +
+                    "sleep 1; " +
+                    "setprop vendor.usb.config mtp; " +
+                    "setprop sys.usb.config mtp");
+        }
+        Telemetry.call(Telemetry.Span.USB_SWITCH, t0);
+    }
+
+    private boolean isFileTransferRestricted() {
+        try {
+            UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+            return um != null && um.hasUserRestriction(UserManager.DISALLOW_USB_FILE_TRANSFER);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /** Hidden API; works for system/priv-apps holding MANAGE_USB. */
+    private boolean setFunctionsViaUsbManager() {
+        try {
+            UsbManager um = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+            if (um == null) return false;
+            Method m = UsbManager.class.getMethod("setCurrentFunctions", long.class);
+            m.invoke(um, FUNCTION_MTP);
+            Log.i(TAG, "UsbManager.setCurrentFunctions(MTP) ok");
+            return true;
+        } catch (Throwable t) {
+            Log.i(TAG, "UsbManager.setCurrentFunctions unavailable (" + t.getClass().getSimpleName() + "); using setprop");
+            return false;
+        }
+    }
+
+    private void runShell(String cmd) {
+        Process p = null;
+        try {
+            p = new ProcessBuilder("sh", "-c", cmd)
+                    .redirectErrorStream(true)
+                    .start();
+            p.getOutputStream().close();
+
+            if (!p.waitFor(SHELL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "forceMtp timed out after " + SHELL_TIMEOUT_MS + "ms; killing");
+                return;
+            }
+
+            String out = drain(p.getInputStream());
+            Log.i(TAG, "forceMtp exit=" + p.exitValue() + (out.isEmpty() ? "" : " out=" + out));
+        } catch (Exception e) {
+            Log.e(TAG, "forceMtp failed", e);
+        } finally {
+            if (p != null) p.destroyForcibly();
+        }
+    }
+
+    private static String drain(InputStream in) {
+        try {
+            byte[] buf = new byte[512];
+            int n = in.read(buf);
+            in.close();
+            return n > 0 ? new String(buf, 0, n).trim() : "";
+        } catch (Exception e) {
+            return "";
+        }
+    }
+}
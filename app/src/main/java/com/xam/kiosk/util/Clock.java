@@ -0,0 +1,13 @@
+package com.xam.kiosk.util;
+
+import android.os.SystemClock;
+
+/**
+ * Monotonic time source. Injected so timing-dependent code can run under a fake clock.
+ */
+public interface Clock {
+
+    Clock SYSTEM = SystemClock::uptimeMillis;
+
+    long uptimeMillis();
+}
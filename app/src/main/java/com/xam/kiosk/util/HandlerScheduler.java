@@ -0,0 +1,31 @@
+package com.xam.kiosk.util;
+
+import android.os.Handler;
+
+public class HandlerScheduler implements Scheduler {
+
+    private final Handler handler;
+
+    public HandlerScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    public Handler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public void post(Runnable r) {
+        handler.post(r);
+    }
+
+    @Override
+    public void postDelayed(Runnable r, long delayMs) {
+        handler.postDelayed(r, delayMs);
+    }
+
+    @Override
+    public void cancel(Runnable r) {
+        handler.removeCallbacks(r);
+    }
+}
@@ -0,0 +1,24 @@
+package com.xam.kiosk.util;
+
+public final class HexUtil {
+
+    private HexUtil() {}
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /** True for a lowercase/uppercase hex string of exactly {@code chars} characters. */
+    public static boolean isHex(String s, int chars) {
+        if (s == null || s.length() != chars) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,183 @@
+package com.xam.kiosk.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Exponential-backoff retries on a single-threaded {@link Scheduler}.
+ *
+ * Every task keeps its own attempt count and is pending at most once: calling
+ * {@link #retry} while it is already pending is a no-op. Delays grow by the
+ * policy multiplier up to its cap and are jittered downwards so a fleet does not
+ * retry in lockstep. All pending tasks share a single wakeup; tasks falling due
+ * within ALIGN_MS of it run in the same pass instead of waking the thread again.
+ *
+ * Not thread-safe: call only on the scheduler's thread. Time comes from the
+ * injected {@link Clock} and jitter from the injected Random, so a manual
+ * scheduler, clock and seeded Random make it fully deterministic.
+ */
+public final class RetryScheduler {
+
+    public static final long ALIGN_MS = 250;
+
+    public static final class Policy {
+
+        public final long initialMs;
+        public final long maxMs;
+        public final double multiplier;
+        /** Fraction of the delay that may be randomly taken off, 0..1. */
+        public final double jitter;
+        /** Attempts before giving up; 0 = never. */
+        public final int maxAttempts;
+
+        public Policy(long initialMs, long maxMs, double multiplier, double jitter, int maxAttempts) {
+            this.initialMs = initialMs;
+            this.maxMs = maxMs;
+            this.multiplier = multiplier;
+            this.jitter = jitter;
+            this.maxAttempts = maxAttempts;
+        }
+
+        /** Doubling with 20% jitter and no attempt limit. */
+        public static Policy exponential(long initialMs, long maxMs) {
+            return new Policy(initialMs, maxMs, 2.0, 0.2, 0);
+        }
+
+        long delayFor(int attempt, Random random) {
+            double d = initialMs * Math.pow(multiplier, attempt);
+            if (d > maxMs) d = maxMs;
+            d -= d * jitter * random.nextDouble();
+            return Math.max(0, (long) d);
+        }
+    }
+
+    private static final class Entry {
+        int attempts;
+        long dueMs = -1;   // -1: not pending
+    }
+
+    private final Scheduler scheduler;
+    private final Clock clock;
+    private final Random random;
+
+    // Insertion-ordered so same-pass tasks run in a stable order
+    private final Map<Runnable, Entry> entries = new LinkedHashMap<>();
+    private long wakeupMs = -1;
+    private boolean inPass;   // runDue() re-arms once at the end
+
+    private final Runnable tick = this::runDue;
+
+    public RetryScheduler(Scheduler scheduler, Clock clock) {
+        this(scheduler, clock, new Random());
+    }
+
+    public RetryScheduler(Scheduler scheduler, Clock clock, Random random) {
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.random = random;
+    }
+
+    /**
+     * Schedules the next attempt of {@code task}.
+     *
+     * @return the delay used, or -1 if the task is already pending or out of attempts
+     */
+    public long retry(Runnable task, Policy policy) {
+        Entry e = entries.get(task);
+        if (e == null) {
+            e = new Entry();
+            entries.put(task, e);
+        }
+        if (e.dueMs >= 0) return -1;
+        if (policy.maxAttempts > 0 && e.attempts >= policy.maxAttempts) return -1;
+
+        long delay = policy.delayFor(e.attempts, random);
+        e.attempts++;
+        e.dueMs = clock.uptimeMillis() + delay;
+        arm();
+        return delay;
+    }
+
+    /** Cancels a pending run and forgets the attempt history (call on success). */
+    public void reset(Runnable task) {
+        if (entries.remove(task) != null) arm();
+    }
+
+    /** Cancels a pending run but keeps the backoff position. */
+    public void cancel(Runnable task) {
+        Entry e = entries.get(task);
+        if (e != null && e.dueMs >= 0) {
+            e.dueMs = -1;
+            arm();
+        }
+    }
+
+    public void cancelAll() {
+        entries.clear();
+        scheduler.cancel(tick);
+        wakeupMs = -1;
+    }
+
+    public boolean isPending(Runnable task) {
+        Entry e = entries.get(task);
+        return e != null && e.dueMs >= 0;
+    }
+
+    public int attempts(Runnable task) {
+        Entry e = entries.get(task);
+        return e != null ? e.attempts : 0;
+    }
+
+    // =========================
+    // Wakeups
+    // =========================
+
+    private void arm() {
+        if (inPass) return;
+        long earliest = Long.MAX_VALUE;
+        for (Entry e : entries.values()) {
+            if (e.dueMs >= 0 && e.dueMs < earliest) earliest = e.dueMs;
+        }
+
+        if (earliest == Long.MAX_VALUE) {
+            scheduler.cancel(tick);
+            wakeupMs = -1;
+            return;
+        }
+        if (earliest == wakeupMs) return;
+
+        scheduler.cancel(tick);
+        wakeupMs = earliest;
+        scheduler.postDelayed(tick, Math.max(0, earliest - clock.uptimeMillis()));
+    }
+
+    private void runDue() {
+        wakeupMs = -1;
+        long horizon = clock.uptimeMillis() + ALIGN_MS;
+
+        List<Runnable> due = new ArrayList<>();
+        for (Map.Entry<Runnable, Entry> m : entries.entrySet()) {
+            Entry e = m.getValue();
+            if (e.dueMs >= 0 && e.dueMs <= horizon) due.add(m.getKey());
+        }
+
+        // An earlier task in the pass may reset(), cancel() or reschedule a
+        // later one, so each is checked again right before it runs. Tasks may
+        // retry() themselves; that is picked up by the arm() at the end.
+        inPass = true;
+        try {
+            for (Runnable r : due) {
+                Entry e = entries.get(r);
+                if (e == null || e.dueMs < 0 || e.dueMs > horizon) continue;
+                e.dueMs = -1;
+                r.run();
+            }
+        } finally {
+            inPass = false;
+        }
+        arm();
+    }
+}
@@ -0,0 +1,14 @@
+package com.xam.kiosk.util;
+
+/**
+ * Minimal single-threaded task scheduler (the subset of Handler we rely on).
+ * Injected so scheduling can be driven manually off-device.
+ */
+public interface Scheduler {
+
+    void post(Runnable r);
+
+    void postDelayed(Runnable r, long delayMs);
+
+    void cancel(Runnable r);
+}
@@ -0,0 +1,20 @@
+package com.xam.kiosk.util;
+
+import java.io.File;
+
+/**
+ * Paths from the config (nodeapp_apk_path, nodeapp_splits) to files on shared
+ * storage: absolute paths as given, anything else relative to the storage root.
+ */
+public final class StoragePaths {
+
+    private StoragePaths() {}
+
+    /** @return null for a null or blank path */
+    public static File resolve(String path, File root) {
+        if (path == null) return null;
+        String p = path.trim();
+        if (p.isEmpty()) return null;
+        return p.startsWith("/") ? new File(p) : new File(root, p);
+    }
+}
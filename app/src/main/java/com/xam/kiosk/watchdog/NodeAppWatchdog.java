@@ -0,0 +1,161 @@
+package com.xam.kiosk.watchdog;
+
+import android.util.Log;
+
+import com.xam.kiosk.telemetry.KioskStatus;
+import com.xam.kiosk.telemetry.Telemetry;
+import com.xam.kiosk.util.Clock;
+import com.xam.kiosk.util.RetryScheduler;
+import com.xam.kiosk.util.Scheduler;
+
+/**
+ * Keeps NodeApp in the foreground once it has been launched.
+ *
+ * KioskActivity is HOME and sits directly under NodeApp in the lock task, so it
+ * only gets resumed when NodeApp's task goes away (crash, ANR kill, finish).
+ * That resume is the death signal: no polling, and the relaunch happens in the
+ * same main-thread pass. A NodeApp run shorter than STABLE_RUN_MS counts as a
+ * crash loop and further relaunches back off; a stable run resets the backoff.
+ *
+ * Recovery time is measured from the death signal until KioskActivity is
+ * covered again (its onPause).
+ *
+ * Health is reported to the {@link HealthListener}: healthy once a run lasts
+ * STABLE_RUN_MS, unhealthy once per crash loop when UNHEALTHY_CRASHES attempts
+ * in a row are reached (failed relaunches count too, so the count can skip past it).
+ *
+ * Main thread only.
+ */
+public class NodeAppWatchdog {
+
+    private static final String TAG = "NodeAppWatchdog";
+
+    private static final long STABLE_RUN_MS = 30_000;
+    private static final int UNHEALTHY_CRASHES = 3;
+
+    private static final RetryScheduler.Policy CRASH_LOOP =
+            RetryScheduler.Policy.exponential(1000, 60_000);
+
+    public interface Launcher {
+        /** @return true if the start intent was delivered. */
+        boolean launch();
+    }
+
+    public interface HealthListener {
+        void onNodeAppHealth(boolean healthy);
+    }
+
+    private enum State { IDLE, RUNNING, LOST, RELAUNCHING }
+
+    private final Clock clock;
+    private final Scheduler scheduler;
+    private final RetryScheduler retries;
+    private final Launcher launcher;
+    private final HealthListener healthListener;
+
+    private State state = State.IDLE;
+    private long runStartMs;
+    private long lostAtMs;
+    private int restarts;
+    private boolean unhealthyReported;
+
+    private final Runnable relaunch = this::relaunch;
+    private final Runnable stableCheck = this::onStableRun;
+
+    /** @param scheduler, retries must run on the main thread */
+    public NodeAppWatchdog(Clock clock, Scheduler scheduler, RetryScheduler retries,
+                           Launcher launcher, HealthListener healthListener) {
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.retries = retries;
+        this.launcher = launcher;
+        this.healthListener = healthListener;
+    }
+
+    public int getRestarts() {
+        return restarts;
+    }
+
+    /** NodeApp was started by the provisioning flow; start watching. */
+    public void onLaunched() {
+        retries.reset(relaunch);
+        state = State.RUNNING;
+        runStartMs = clock.uptimeMillis();
+        scheduler.cancel(stableCheck);
+        scheduler.postDelayed(stableCheck, STABLE_RUN_MS);
+    }
+
+    public void stop() {
+        retries.reset(relaunch);
+        scheduler.cancel(stableCheck);
+        state = State.IDLE;
+        unhealthyReported = false;
+    }
+
+    /** KioskActivity.onResume(): we are visible, so NodeApp is not. */
+    public void onKioskForeground() {
+        if (state != State.RUNNING && state != State.RELAUNCHING) return;
+
+        long now = clock.uptimeMillis();
+        long ranMs = now - runStartMs;
+        state = State.LOST;
+        lostAtMs = now;
+        KioskStatus.nodeAppLaunched = false;
+        Telemetry.count(Telemetry.Counter.NODEAPP_DEATHS);
+        scheduler.cancel(stableCheck);
+
+        if (ranMs >= STABLE_RUN_MS) {
+            retries.reset(relaunch);
+            unhealthyReported = false;
+            Log.w(TAG, "NodeApp left the foreground after " + ranMs + "ms; relaunching");
+            relaunch();
+            return;
+        }
+
+        long delay = retries.retry(relaunch, CRASH_LOOP);
+        Log.w(TAG, "NodeApp left the foreground after " + ranMs + "ms (crash loop, "
+                + retries.attempts(relaunch) + " in a row); relaunching in " + delay + "ms");
+        if (delay >= 0) Telemetry.event(Telemetry.Kind.RETRY, Telemetry.Span.NODEAPP_RECOVER, delay);
+        if (retries.attempts(relaunch) >= UNHEALTHY_CRASHES && !unhealthyReported) {
+            unhealthyReported = true;
+            healthListener.onNodeAppHealth(false);
+        }
+    }
+
+    /** KioskActivity.onPause(): something covered us, normally the relaunched NodeApp. */
+    public void onKioskBackground() {
+        if (state != State.RELAUNCHING) return;
+
+        long now = clock.uptimeMillis();
+        long recoverMs = now - lostAtMs;
+        state = State.RUNNING;
+        runStartMs = now;
+        KioskStatus.nodeAppLaunched = true;
+        scheduler.cancel(stableCheck);
+        scheduler.postDelayed(stableCheck, STABLE_RUN_MS);
+        Telemetry.event(Telemetry.Kind.LATENCY, Telemetry.Span.NODEAPP_RECOVER, recoverMs);
+        Log.i(TAG, "NodeApp back in foreground after " + recoverMs + "ms (restart " + restarts + ")");
+    }
+
+    private void onStableRun() {
+        if (state != State.RUNNING) return;
+        retries.reset(relaunch);
+        unhealthyReported = false;
+        healthListener.onNodeAppHealth(true);
+    }
+
+    private void relaunch() {
+        if (state != State.LOST) return;
+
+        if (!launcher.launch()) {
+            long delay = retries.retry(relaunch, CRASH_LOOP);
+            Log.w(TAG, "NodeApp relaunch failed; retrying in " + delay + "ms");
+            return;
+        }
+        restarts++;
+        Telemetry.count(Telemetry.Counter.NODEAPP_RESTARTS);
+        state = State.RELAUNCHING;
+        // If it never covers us, the next resume must count as a short run.
+        runStartMs = clock.uptimeMillis();
+    }
+}
@@ -0,0 +1,537 @@
+package com.xam.kiosk.wifi;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.net.wifi.WifiNetworkSuggestion;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import com.xam.kiosk.model.WifiNetwork;
+import com.xam.kiosk.telemetry.KioskStatus;
+import com.xam.kiosk.telemetry.Telemetry;
+import com.xam.kiosk.util.Clock;
+import com.xam.kiosk.util.RetryScheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Connects to one of the configured WiFi networks and tells the caller as soon as it is up.
+ *
+ * Networks are ranked (best first). Association is requested through
+ * WifiNetworkSuggestion on API 29+ (all networks at once, ranked by priority;
+ * falling back to WifiConfiguration, which device owners may still use) and
+ * WifiConfiguration before that. On the WifiConfiguration path one network is
+ * picked per attempt from the latest scan: the last network that worked if it is
+ * in range, otherwise the strongest configured SSID. Network IDs are cached in
+ * memory so retries don't walk getConfiguredNetworks().
+ *
+ * Completion is driven by a NetworkCallback; a backoff retry only re-requests
+ * association while no AP is reachable. The SSID comes from the callback's
+ * WifiInfo on API 31+ (WifiManager redacts it without location); if it is still
+ * hidden, a VALIDATED network is taken as ours while only our suggestions are
+ * applied. After connecting the callback stays
+ * registered and a drop re-runs association, last-good network first, until
+ * {@link #cancel()}.
+ *
+ * All callbacks run on the handler passed in.
+ */
+public class WifiProvisioner {
+
+    private static final String TAG = "WifiProvisioner";
+
+    // Re-request backoff while not associated
+    private static final RetryScheduler.Policy RETRY = RetryScheduler.Policy.exponential(2000, 60_000);
+
+    // Associated but not VALIDATED (e.g. LAN-only AP): accept after this long
+    private static final long VALIDATION_GRACE_MS = 3000;
+
+    public interface Listener {
+        /**
+         * @param ssid      the network that came up, or null if the platform hides it
+         * @param attempts  association requests made
+         * @param latencyMs time from the first request until connected
+         * @param validated false if not confirmed VALIDATED (LAN-only AP, retry-tick fallback)
+         */
+        void onConnected(String ssid, int attempts, long latencyMs, boolean validated);
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Clock clock;
+    private final RetryScheduler retries;
+
+    private List<WifiNetwork> networks = Collections.emptyList();
+    private Listener listener;
+    private ConnectivityManager.NetworkCallback networkCallback;
+
+    // True while association is being requested (first connect or after a drop)
+    private boolean connecting;
+
+    // Last SSID we saw connected; tried first after a drop
+    private String lastGoodSsid;
+
+    // Network the callback accepted, and its SSID for the validation grace (may be null)
+    private Network ourNetwork;
+    private String graceSsid;
+
+    // Suggestions currently added, and which SSID they rank first
+    private List<WifiNetworkSuggestion> suggestions;
+    private String suggestionsPreferred;
+    private boolean suggestionsFailed;
+
+    // WifiConfiguration path: SSID -> networkId applied with the current credentials
+    private final Map<String, Integer> netIds = new HashMap<>();
+    // Networks that were already saved on the device (read once)
+    private Map<String, Integer> savedNetIds;
+
+    private int attempts;
+    private long startMs;
+    private long attemptMs;
+
+    /** @param retries must run on {@code handler} */
+    public WifiProvisioner(Context context, Handler handler, Clock clock, RetryScheduler retries) {
+        this.context = context.getApplicationContext();
+        this.handler = handler;
+        this.clock = clock;
+        this.retries = retries;
+    }
+
+    /**
+     * Must be called on the handler thread. Replaces any pending request.
+     *
+     * @param ranked configured networks, best first; not empty
+     */
+    public void connect(List<WifiNetwork> ranked, Listener l) {
+        cancel();
+        if (!ranked.equals(networks)) {
+            // Credentials may have changed: re-apply everything.
+            removeSuggestions();
+            suggestionsFailed = false;
+            netIds.clear();
+            if (lastGoodSsid != null && find(ranked, lastGoodSsid) == null) lastGoodSsid = null;
+        }
+        networks = new ArrayList<>(ranked);
+        listener = l;
+
+        String current = connectedSsid();
+        KioskStatus.setWifi(current != null ? current : networks.get(0).ssid, false);
+
+        registerNetworkCallback();
+        startConnecting();
+
+        if (current != null && find(networks, current) != null) {
+            Log.i(TAG, "Already connected to WiFi: " + current);
+            finish(current, true);
+            return;
+        }
+        attempt();
+    }
+
+    /** Stops connecting and stops reconnecting after drops. */
+    public void cancel() {
+        stopConnecting();
+        unregisterNetworkCallback();
+        listener = null;
+    }
+
+    /** Unquoted SSID of the current WiFi connection, or null. */
+    public String connectedSsid() {
+        WifiManager wifi = wifiManager();
+        if (wifi == null) return null;
+        try {
+            WifiInfo info = wifi.getConnectionInfo();
+            return info != null ? unquote(info.getSSID()) : null;
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
+    // =========================
+    // Association
+    // =========================
+
+    private final Runnable retryRunnable = this::attempt;
+
+    private final Runnable graceRunnable = () -> {
+        if (connecting) finish(graceSsid, false);
+    };
+
+    private void startConnecting() {
+        connecting = true;
+        attempts = 0;
+        startMs = clock.uptimeMillis();
+    }
+
+    private void stopConnecting() {
+        connecting = false;
+        retries.reset(retryRunnable);
+        handler.removeCallbacks(graceRunnable);
+    }
+
+    private void attempt() {
+        if (!connecting) return;
+
+        // Missed callback (or no ConnectivityManager): catch it here.
+        String ours = attempts > 0 ? connectedOurs() : null;
+        if (ours != null) {
+            finish(ours, false);
+            return;
+        }
+
+        attempts++;
+        attemptMs = clock.uptimeMillis();
+        Telemetry.count(Telemetry.Counter.WIFI_ATTEMPTS);
+
+        WifiManager wifi = wifiManager();
+        if (wifi == null) {
+            // Nothing we can do; don't block provisioning on it.
+            Log.e(TAG, "WifiManager is null");
+            finish(networks.get(0).ssid, false);
+            return;
+        }
+
+        if (!wifi.isWifiEnabled()) {
+            wifi.setWifiEnabled(true);
+        }
+
+        long nextMs = retries.retry(retryRunnable, RETRY);
+        if (nextMs >= 0) Telemetry.event(Telemetry.Kind.RETRY, Telemetry.Span.WIFI_CONNECT, nextMs);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && addSuggestions(wifi)) {
+            Log.i(TAG, "WiFi attempt " + attempts + ": " + networks.size() + " suggestion(s) active"
+                    + (lastGoodSsid != null ? ", preferring " + lastGoodSsid : ""));
+        } else {
+            requestLegacy(wifi, pickNetwork(wifi), nextMs);
+        }
+    }
+
+    /** Last-good if in range, else the strongest configured SSID in the latest scan. */
+    private WifiNetwork pickNetwork(WifiManager wifi) {
+        List<ScanResult> scan = null;
+        try {
+            scan = wifi.getScanResults();
+        } catch (Exception e) {
+            // No location permission: fall through to rank order.
+        }
+
+        WifiNetwork best = null;
+        int bestLevel = Integer.MIN_VALUE;
+        if (scan != null) {
+            for (ScanResult r : scan) {
+                @SuppressWarnings("deprecation") String ssid = r.SSID;
+                WifiNetwork n = find(networks, ssid);
+                if (n == null) continue;
+                if (n.ssid.equals(lastGoodSsid)) return n;
+                if (r.level > bestLevel) {
+                    best = n;
+                    bestLevel = r.level;
+                }
+            }
+        }
+        if (best != null) return best;
+
+        // Nothing configured in range (or scan unavailable): last-good, then rank order.
+        WifiNetwork lastGood = lastGoodSsid != null ? find(networks, lastGoodSsid) : null;
+        if (lastGood != null) return lastGood;
+        return networks.get((attempts - 1) % networks.size());
+    }
+
+    private boolean addSuggestions(WifiManager wifi) {
+        if (suggestionsFailed) return false;
+        if (suggestions != null && equalsNullable(suggestionsPreferred, lastGoodSsid)) return true;
+
+        removeSuggestions();
+        try {
+            List<WifiNetworkSuggestion> list = new ArrayList<>();
+            int n = networks.size();
+            for (int i = 0; i < n; i++) {
+                WifiNetwork net = networks.get(i);
+                // Higher wins; last-good above every ranked entry.
+                int priority = net.ssid.equals(lastGoodSsid) ? n + 1 : n - i;
+                list.add(toSuggestion(net, priority));
+            }
+            int status = wifi.addNetworkSuggestions(list);
+            if (status == WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS
+                    || status == WifiManager.STATUS_NETWORK_SUGGESTIONS_ERROR_ADD_DUPLICATE) {
+                suggestions = list;
+                suggestionsPreferred = lastGoodSsid;
+                return true;
+            }
+            Log.w(TAG, "addNetworkSuggestions status=" + status + "; using legacy path");
+        } catch (Exception e) {
+            Log.w(TAG, "addNetworkSuggestions failed: " + e.getMessage());
+        }
+        suggestionsFailed = true;
+        return false;
+    }
+
+    private static WifiNetworkSuggestion toSuggestion(WifiNetwork net, int priority) {
+        WifiNetworkSuggestion.Builder b = new WifiNetworkSuggestion.Builder()
+                .setSsid(net.ssid)
+                .setPriority(priority);
+        switch (net.security) {
+            case WPA2:
+                b.setWpa2Passphrase(net.passphrase);
+                break;
+            case WPA3:
+                b.setWpa3Passphrase(net.passphrase);
+                break;
+            default:
+                break;
+        }
+        return b.build();
+    }
+
+    private void removeSuggestions() {
+        if (suggestions == null) return;
+        WifiManager wifi = wifiManager();
+        try {
+            if (wifi != null) wifi.removeNetworkSuggestions(suggestions);
+        } catch (Exception e) {
+            Log.w(TAG, "removeNetworkSuggestions failed: " + e.getMessage());
+        }
+        suggestions = null;
+        suggestionsPreferred = null;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void requestLegacy(WifiManager wifi, WifiNetwork net, long nextMs) {
+        int netId = netIdFor(wifi, net);
+        if (netId == -1) {
+            Log.e(TAG, "Failed to find/add WiFi network: " + net);
+            return;
+        }
+
+        boolean enabled = wifi.enableNetwork(netId, true);
+        wifi.reconnect();
+
+        Log.i(TAG, "WiFi attempt " + attempts + ": " + net + " enableNetwork(" + netId + ")=" + enabled
+                + ", next retry in " + nextMs + "ms");
+    }
+
+    @SuppressWarnings("deprecation")
+    private int netIdFor(WifiManager wifi, WifiNetwork net) {
+        Integer cached = netIds.get(net.ssid);
+        if (cached != null) return cached;
+
+        try {
+            if (savedNetIds == null) {
+                savedNetIds = new HashMap<>();
+                List<WifiConfiguration> configs = wifi.getConfiguredNetworks();
+                if (configs != null) {
+                    for (WifiConfiguration c : configs) {
+                        String ssid = unquote(c.SSID);
+                        if (ssid != null) savedNetIds.put(ssid, c.networkId);
+                    }
+                }
+            }
+
+            WifiConfiguration wc = toConfiguration(net);
+            Integer saved = savedNetIds.get(net.ssid);
+            int id;
+            if (saved != null) {
+                wc.networkId = saved;
+                id = wifi.updateNetwork(wc);
+            } else {
+                id = wifi.addNetwork(wc);
+            }
+            if (id != -1) {
+                netIds.put(net.ssid, id);
+                savedNetIds.put(net.ssid, id);
+            }
+            return id;
+
+        } catch (Exception e) {
+            Log.e(TAG, "netIdFor error: " + e.getMessage(), e);
+            return -1;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static WifiConfiguration toConfiguration(WifiNetwork net) {
+        WifiConfiguration wc = new WifiConfiguration();
+        wc.SSID = quote(net.ssid);
+        switch (net.security) {
+            case OPEN:
+                wc.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
+                break;
+            case WPA3:
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                    wc.setSecurityParams(WifiConfiguration.SECURITY_TYPE_SAE);
+                } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    wc.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.SAE);
+                } else {
+                    // No SAE before Q; works against WPA2/WPA3 transition-mode APs.
+                    wc.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_PSK);
+                }
+                wc.preSharedKey = quote(net.passphrase);
+                break;
+            default:
+                wc.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_PSK);
+                wc.preSharedKey = quote(net.passphrase);
+                break;
+        }
+        return wc;
+    }
+
+    /** @param ssid null if the platform hides it; last-good is then kept */
+    private void finish(String ssid, boolean validated) {
+        stopConnecting();
+        if (ssid != null) lastGoodSsid = ssid;
+
+        long now = clock.uptimeMillis();
+        long latency = now - startMs;
+        Log.i(TAG, "Connected to WiFi: " + (ssid != null ? ssid : "(SSID hidden)") + " attempts=" + attempts
+                + " latency=" + latency + "ms (last attempt " + (attempts > 0 ? now - attemptMs : 0) + "ms)"
+                + " validated=" + validated);
+        Telemetry.event(Telemetry.Kind.LATENCY, Telemetry.Span.WIFI_CONNECT, latency);
+        KioskStatus.setWifi(ssid != null ? ssid : lastGoodSsid, true);
+
+        // Only the first connection is reported; reconnects are internal.
+        Listener l = listener;
+        listener = null;
+        if (l != null) l.onConnected(ssid, attempts, latency, validated);
+    }
+
+    private void onDropped() {
+        if (connecting || networks.isEmpty() || connectedOurs() != null) return;
+
+        Log.w(TAG, "WiFi dropped (last good: " + lastGoodSsid + "); reconnecting");
+        KioskStatus.setWifi(lastGoodSsid, false);
+        startConnecting();
+        attempt();
+    }
+
+    // =========================
+    // Network callback
+    // =========================
+
+    private void registerNetworkCallback() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) return;
+
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                .build();
+
+        networkCallback = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                ? new WifiCallback(ConnectivityManager.NetworkCallback.FLAG_INCLUDE_LOCATION_INFO)
+                : new WifiCallback();
+
+        try {
+            cm.registerNetworkCallback(request, networkCallback, handler);
+        } catch (Exception e) {
+            Log.w(TAG, "registerNetworkCallback failed; relying on retries: " + e.getMessage());
+            networkCallback = null;
+        }
+    }
+
+    private final class WifiCallback extends ConnectivityManager.NetworkCallback {
+
+        WifiCallback() {
+            super();
+        }
+
+        /** API 31+: with FLAG_INCLUDE_LOCATION_INFO the WifiInfo in the capabilities keeps its SSID. */
+        WifiCallback(int flags) {
+            super(flags);
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities caps) {
+            if (!connecting) return;
+            String ssid = ssidOf(caps);
+            boolean validated = caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+            if (ssid != null) {
+                if (find(networks, ssid) == null) return;
+            } else if (!validated || suggestions == null) {
+                // Hidden SSID: only a validated network joined through our suggestions
+                return;
+            }
+            ourNetwork = network;
+
+            if (validated) {
+                finish(ssid, true);
+            } else {
+                graceSsid = ssid;
+                handler.removeCallbacks(graceRunnable);
+                handler.postDelayed(graceRunnable, VALIDATION_GRACE_MS);
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            if (ourNetwork != null && !ourNetwork.equals(network)) return;
+            ourNetwork = null;
+            handler.removeCallbacks(graceRunnable);
+            onDropped();
+        }
+    }
+
+    private void unregisterNetworkCallback() {
+        ourNetwork = null;
+        if (networkCallback == null) return;
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        try {
+            if (cm != null) cm.unregisterNetworkCallback(networkCallback);
+        } catch (Exception ignored) {}
+        networkCallback = null;
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    /** SSID from the callback's WifiInfo (API 31+), else from WifiManager; null if hidden. */
+    private String ssidOf(NetworkCapabilities caps) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && caps.getTransportInfo() instanceof WifiInfo) {
+            String ssid = unquote(((WifiInfo) caps.getTransportInfo()).getSSID());
+            if (ssid != null) return ssid;
+        }
+        return connectedSsid();
+    }
+
+    /** Current SSID if it is one of ours, else null. */
+    private String connectedOurs() {
+        String ssid = connectedSsid();
+        return ssid != null && find(networks, ssid) != null ? ssid : null;
+    }
+
+    private static WifiNetwork find(List<WifiNetwork> list, String ssid) {
+        if (ssid == null) return null;
+        for (WifiNetwork n : list) {
+            if (n.ssid.equals(ssid)) return n;
+        }
+        return null;
+    }
+
+    private static String quote(String s) {
+        return "\"" + s + "\"";
+    }
+
+    /** "\"name\"" -> "name"; hex/unknown SSIDs -> null. */
+    private static String unquote(String s) {
+        if (s == null || s.length() < 2 || s.charAt(0) != '"' || s.charAt(s.length() - 1) != '"') return null;
+        return s.substring(1, s.length() - 1);
+    }
+
+    private static boolean equalsNullable(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private WifiManager wifiManager() {
+        return (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+    }
+}
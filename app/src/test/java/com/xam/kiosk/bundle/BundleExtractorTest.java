@@ -0,0 +1,350 @@
+package com.xam.kiosk.bundle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import com.xam.kiosk.config.ConfigRepository;
+import com.xam.kiosk.install.ApkCache;
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.telemetry.Telemetry;
+import com.xam.kiosk.util.Clock;
+import com.xam.kiosk.util.HexUtil;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * BundleExtractor on zips built by the test. The loose config directory is a
+ * temp folder, app storage is Robolectric's, and time is a field the test moves.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BundleExtractorTest {
+
+    private static final byte[] CONFIG = "{\"nodeapp_apk_path\": \"nodeapp.apk\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] APK = "not really an apk, but hashed like one".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ASSET = {0, 1, 2, 3, 4, 5, 6, 7};
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Context context;
+    private ConfigRepository repository;
+    private ApkCache apkCache;
+    private long nowMs = 1_000_000;
+    private final Clock clock = () -> nowMs;
+    private File bundle;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        repository = new ConfigRepository(new File(tmp.getRoot(), "config.json"));
+        apkCache = new ApkCache(context, clock);
+        bundle = new File(tmp.getRoot(), BundleExtractor.BUNDLE_NAME);
+    }
+
+    @Test
+    public void validBundleIsExtractedAndBecomesTheConfig() throws IOException {
+        new Zip().manifest().add("config.json", CONFIG).add("nodeapp.apk", APK).add("logo.bin", ASSET).writeSettled();
+        BundleExtractor x = extractor(null);
+
+        assertFalse(x.check());
+        Config c = repository.load();
+        assertNotNull(c);
+        assertEquals("nodeapp.apk", c.nodeappApkPath);
+
+        File apk = x.resolve("nodeapp.apk");
+        assertEquals(apkCache.get(sha256(APK)), apk);
+        assertArrayEquals(APK, Files.readAllBytes(apk.toPath()));
+        assertArrayEquals(ASSET, Files.readAllBytes(x.resolve("logo.bin").toPath()));
+        assertNull(x.resolve("other.bin"));
+    }
+
+    @Test
+    public void bundleStillBeingWrittenWaitsUntilSettled() throws IOException {
+        new Zip().manifest().add("config.json", CONFIG).write();
+        BundleExtractor x = extractor(null);
+
+        assertTrue(x.check());
+        nowMs += 1999;
+        assertTrue(x.check());
+        assertNull(x.resolve("config.json"));
+        nowMs += 1;
+        assertFalse(x.check());
+        assertNotNull(x.resolve("config.json"));
+    }
+
+    @Test
+    public void entryNotMatchingItsDigestRejectsTheBundle() throws IOException {
+        Zip zip = new Zip().add("config.json", CONFIG).add("nodeapp.apk", APK);
+        zip.manifestEntries.set(1, entryJson("nodeapp.apk", sha256(ASSET), APK.length));
+        zip.manifest().writeSettled();
+
+        assertRejected(extractor(null));
+        assertNull(apkCache.get(sha256(APK)));
+    }
+
+    @Test
+    public void entryLongerThanDeclaredRejectsTheBundle() throws IOException {
+        Zip zip = new Zip().add("config.json", CONFIG).add("logo.bin", ASSET);
+        zip.manifestEntries.set(1, entryJson("logo.bin", sha256(ASSET), ASSET.length - 1));
+        zip.manifest().writeSettled();
+        assertRejected(extractor(null));
+    }
+
+    @Test
+    public void malformedArchivesAreRejected() throws IOException {
+        // Unknown entry
+        new Zip().add("config.json", CONFIG).manifest().addUnlisted("extra.bin", ASSET).writeSettled();
+        assertRejected(extractor(null));
+
+        // Listed but missing
+        Zip missing = new Zip().add("config.json", CONFIG).add("logo.bin", ASSET);
+        missing.manifestOnly("logo.bin");
+        missing.manifest().writeSettled();
+        assertRejected(extractor(null));
+
+        // Manifest not first
+        new Zip().add("config.json", CONFIG).writeWithManifestLast();
+        assertRejected(extractor(null));
+    }
+
+    @Test
+    public void reservedNamesAreNotEntries() throws IOException {
+        for (String name : new String[] {"manifest.json", "manifest.sig", "source.stamp"}) {
+            assertFalse(name, BundleManifest.isSafeName(name));
+        }
+        new Zip().manifest().add("config.json", CONFIG).add("source.stamp", ASSET).writeSettled();
+        assertRejected(extractor(null));
+    }
+
+    @Test
+    public void bundleApksAreKeptByEviction() throws IOException {
+        new Zip().manifest().add("config.json", CONFIG).add("nodeapp.apk", APK).writeSettled();
+        BundleExtractor x = extractor(null);
+        x.check();
+        assertTrue(x.resolve("nodeapp.apk").setLastModified(1_000_000_000_000L));
+
+        // Enough newer APKs to push the bundle's out of the cache
+        List<File> staged = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            File f = tmp.newFile("other-" + i + ".apk");
+            Files.write(f.toPath(), new byte[] {(byte) i});
+            assertTrue(f.setLastModified(System.currentTimeMillis() - 60_000));
+            staged.add(apkCache.stage(f, null));
+        }
+        assertFalse(staged.contains(null));
+        List<File> inUse = new ArrayList<>(staged);
+        inUse.addAll(x.apkFiles());
+        apkCache.evict(inUse);
+
+        assertEquals(1, x.apkFiles().size());
+        assertArrayEquals(APK, Files.readAllBytes(x.resolve("nodeapp.apk").toPath()));
+    }
+
+    @Test
+    public void rejectedBundleIsNotReadAgainUntilItChanges() throws IOException {
+        new Zip().add("config.json", CONFIG).manifest().addUnlisted("extra.bin", ASSET).writeSettled();
+        BundleExtractor x = extractor(null);
+        long rejects = Telemetry.get(Telemetry.Counter.BUNDLE_REJECTS);
+
+        assertFalse(x.check());
+        assertFalse(x.check());
+        assertEquals(rejects + 1, Telemetry.get(Telemetry.Counter.BUNDLE_REJECTS));
+
+        new Zip().manifest().add("config.json", CONFIG).writeSettled();
+        assertFalse(x.check());
+        assertNotNull(x.resolve("config.json"));
+    }
+
+    @Test
+    public void signedBundleIsCheckedAgainstTrustedKey() throws Exception {
+        KeyPair trusted = ecKeyPair();
+        PublicKey key = BundleExtractor.parsePublicKey(
+                Base64.getEncoder().encodeToString(trusted.getPublic().getEncoded()));
+
+        new Zip().manifest().add("config.json", CONFIG).writeSettled();
+        assertRejected(extractor(key));                       // unsigned
+
+        new Zip().manifest().signWith(ecKeyPair()).add("config.json", CONFIG).writeSettled();
+        assertRejected(extractor(key));                       // wrong key
+
+        new Zip().manifest().signWith(trusted).add("config.json", CONFIG).writeSettled();
+        BundleExtractor x = extractor(key);
+        assertFalse(x.check());
+        assertNotNull(x.resolve("config.json"));
+    }
+
+    @Test
+    public void removingTheBundleFallsBackToTheLooseConfig() throws IOException {
+        Files.write(repository.getFile().toPath(), "{\"nodeapp_apk_path\": \"loose.apk\"}".getBytes(StandardCharsets.UTF_8));
+        new Zip().manifest().add("config.json", CONFIG).writeSettled();
+        BundleExtractor x = extractor(null);
+        x.check();
+        assertEquals("nodeapp.apk", repository.load().nodeappApkPath);
+
+        assertTrue(bundle.delete());
+        assertFalse(x.check());
+        assertNull(x.resolve("config.json"));
+        assertEquals("loose.apk", repository.load().nodeappApkPath);
+    }
+
+    @Test
+    public void acceptedBundleIsRestoredAfterRestart() throws IOException {
+        new Zip().manifest().add("config.json", CONFIG).add("nodeapp.apk", APK).writeSettled();
+        extractor(null).check();
+
+        ConfigRepository fresh = new ConfigRepository(repository.getFile());
+        BundleExtractor restarted = new BundleExtractor(context, fresh, apkCache, null, clock);
+        long rejects = Telemetry.get(Telemetry.Counter.BUNDLE_REJECTS);
+        assertFalse(restarted.check());
+        assertEquals(rejects, Telemetry.get(Telemetry.Counter.BUNDLE_REJECTS));
+        assertNotNull(restarted.resolve("nodeapp.apk"));
+        assertEquals("nodeapp.apk", fresh.load().nodeappApkPath);
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    private BundleExtractor extractor(PublicKey key) {
+        return new BundleExtractor(context, repository, apkCache, key, clock);
+    }
+
+    private void assertRejected(BundleExtractor x) {
+        long rejects = Telemetry.get(Telemetry.Counter.BUNDLE_REJECTS);
+        assertFalse(x.check());
+        assertEquals(rejects + 1, Telemetry.get(Telemetry.Counter.BUNDLE_REJECTS));
+        assertNull(x.resolve("config.json"));
+        assertFalse(new File(context.getFilesDir(), "bundle.staging").exists());
+    }
+
+    private static KeyPair ecKeyPair() throws Exception {
+        KeyPairGenerator g = KeyPairGenerator.getInstance("EC");
+        g.initialize(256);
+        return g.generateKeyPair();
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return HexUtil.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String entryJson(String name, String sha256, long size) {
+        return "{\"name\": \"" + name + "\", \"sha256\": \"" + sha256 + "\", \"size\": " + size + "}";
+    }
+
+    /**
+     * Archive under construction. Entries are written in the order they were
+     * added; manifest() marks where manifest.json (and signWith() its signature) go.
+     */
+    private final class Zip {
+        final List<String> manifestEntries = new ArrayList<>();
+        private final List<Object[]> parts = new ArrayList<>();   // {name, bytes} or {marker}
+
+        Zip add(String name, byte[] data) {
+            manifestEntries.add(entryJson(name, sha256(data), data.length));
+            parts.add(new Object[] {name, data});
+            return this;
+        }
+
+        /** In the archive, not in the manifest. */
+        Zip addUnlisted(String name, byte[] data) {
+            parts.add(new Object[] {name, data});
+            return this;
+        }
+
+        /** Listed in the manifest, not in the archive. */
+        Zip manifestOnly(String name) {
+            for (int i = parts.size() - 1; i >= 0; i--) {
+                if (name.equals(parts.get(i)[0])) parts.remove(i);
+            }
+            return this;
+        }
+
+        Zip manifest() {
+            parts.add(new Object[] {"manifest.json"});
+            return this;
+        }
+
+        Zip signWith(KeyPair pair) {
+            parts.add(new Object[] {"manifest.sig", pair});
+            return this;
+        }
+
+        void write() throws IOException {
+            byte[] manifest = ("{\"format\": 1, \"entries\": [" + String.join(", ", manifestEntries) + "]}")
+                    .getBytes(StandardCharsets.UTF_8);
+            // manifest.json first, then its signature, then the rest in order
+            List<Object[]> ordered = new ArrayList<>();
+            for (Object[] p : parts) if (p.length == 1) ordered.add(new Object[] {"manifest.json", manifest});
+            for (Object[] p : parts) if (p[0].equals("manifest.sig")) ordered.add(new Object[] {"manifest.sig", sign(manifest, (KeyPair) p[1])});
+            for (Object[] p : parts) if (p.length == 2 && !p[0].equals("manifest.sig")) ordered.add(p);
+            writeParts(ordered);
+        }
+
+        void writeSettled() throws IOException {
+            write();
+            assertTrue(bundle.setLastModified(System.currentTimeMillis() - 60_000));
+        }
+
+        void writeWithManifestLast() throws IOException {
+            byte[] manifest = ("{\"format\": 1, \"entries\": [" + String.join(", ", manifestEntries) + "]}")
+                    .getBytes(StandardCharsets.UTF_8);
+            List<Object[]> ordered = new ArrayList<>(parts);
+            ordered.add(new Object[] {"manifest.json", manifest});
+            writeParts(ordered);
+            assertTrue(bundle.setLastModified(System.currentTimeMillis() - 60_000));
+        }
+
+        private void writeParts(List<Object[]> ordered) throws IOException {
+            try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(bundle))) {
+                for (Object[] p : ordered) {
+                    zip.putNextEntry(new ZipEntry((String) p[0]));
+                    zip.write((byte[]) p[1]);
+                    zip.closeEntry();
+                }
+            }
+        }
+
+        private byte[] sign(byte[] manifest, KeyPair pair) {
+            try {
+                Signature s = Signature.getInstance("SHA256withECDSA");
+                s.initSign(pair.getPrivate());
+                s.update(manifest);
+                return s.sign();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.xam.kiosk.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.util.HexUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * ConfigParser on in-memory documents. Robolectric only supplies the real
+ * android.util.JsonReader.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConfigParserTest {
+
+    private static final String APK = "\"nodeapp_apk_path\": \"nodeapp.apk\"";
+
+    @Test
+    public void parsesMinimalDocumentAndHashesItsBytes() throws Exception {
+        String json = "{\"ssid\": \"Office\", " + APK + "}";
+        Config c = parse(json);
+        assertEquals("nodeapp.apk", c.nodeappApkPath);
+        assertEquals(-1, c.nodeappVersionCode);
+        assertEquals(0, c.version);
+        assertEquals(HexUtil.toHex(MessageDigest.getInstance("SHA-256")
+                .digest(json.getBytes(StandardCharsets.UTF_8))), c.hash);
+    }
+
+    @Test
+    public void nullCountsAreAbsent() throws Exception {
+        Config c = parse("{" + APK + ", \"nodeapp_version_code\": null, \"config_version\": null}");
+        assertEquals(-1, c.nodeappVersionCode);
+        assertEquals(0, c.version);
+    }
+
+    @Test
+    public void integralCountsInAnyNotationAreAccepted() throws Exception {
+        Config c = parse("{" + APK + ", \"nodeapp_version_code\": 4.2e1, \"config_version\": 7.0}");
+        assertEquals(42, c.nodeappVersionCode);
+        assertEquals(7, c.version);
+    }
+
+    @Test
+    public void negativeCountsAreFieldErrors() throws Exception {
+        for (String n : Arrays.asList("-1", "-2", "-1.0")) {
+            assertFieldError(ConfigParser.KEY_NODEAPP_VERSION_CODE,
+                    "{" + APK + ", \"nodeapp_version_code\": " + n + "}");
+            assertFieldError(ConfigParser.KEY_CONFIG_VERSION,
+                    "{" + APK + ", \"config_version\": " + n + "}");
+        }
+    }
+
+    @Test
+    public void nonIntegerCountsAreFieldErrors() throws Exception {
+        for (String n : Arrays.asList("1.5", "1e-3", "9223372036854775808", "1e400", "\"42\"", "true")) {
+            assertFieldError(ConfigParser.KEY_NODEAPP_VERSION_CODE,
+                    "{" + APK + ", \"nodeapp_version_code\": " + n + "}");
+            assertFieldError(ConfigParser.KEY_CONFIG_VERSION,
+                    "{" + APK + ", \"config_version\": " + n + "}");
+        }
+    }
+
+    @Test
+    public void wrongTypeAndMissingFieldsNameTheField() throws Exception {
+        assertFieldError(ConfigParser.KEY_NODEAPP_APK_PATH, "{\"ssid\": \"Office\"}");
+        assertFieldError(ConfigParser.KEY_SSID, "{\"ssid\": 5, " + APK + "}");
+        assertFieldError(ConfigParser.KEY_NODEAPP_APK_SHA256, "{" + APK + ", \"nodeapp_apk_sha256\": \"abc\"}");
+    }
+
+    @Test
+    public void declaredSizeOverLimitIsRejectedBeforeReading() {
+        InputStream never = new InputStream() {
+            @Override
+            public int read() {
+                throw new AssertionError("read past the size check");
+            }
+        };
+        assertDocumentError(() -> ConfigParser.parse(never, ConfigParser.MAX_CONFIG_BYTES + 1));
+    }
+
+    @Test
+    public void streamOverLimitIsRejectedWhileReading() {
+        StringBuilder json = new StringBuilder("{" + APK + ", \"pad\": \"");
+        while (json.length() <= ConfigParser.MAX_CONFIG_BYTES) json.append("0123456789abcdef");
+        json.append("\"}");
+        byte[] data = json.toString().getBytes(StandardCharsets.UTF_8);
+        assertDocumentError(() -> ConfigParser.parse(new ByteArrayInputStream(data), -1));
+    }
+
+    @Test
+    public void documentAtLimitIsAccepted() throws Exception {
+        String head = "{" + APK + ", \"pad\": \"";
+        String tail = "\"}";
+        char[] pad = new char[ConfigParser.MAX_CONFIG_BYTES - head.length() - tail.length()];
+        Arrays.fill(pad, 'x');
+        Config c = parse(head + new String(pad) + tail);
+        assertEquals("nodeapp.apk", c.nodeappApkPath);
+    }
+
+    @Test
+    public void truncatedDocumentsAreDocumentErrors() {
+        String json = "{\"ssid\": \"Office\", " + APK + ", \"wifi_networks\": [{\"ssid\": \"Guest\"}]}";
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        // Every proper prefix, as a push still in progress would leave it
+        for (int len = 0; len < data.length; len++) {
+            byte[] prefix = Arrays.copyOf(data, len);
+            assertDocumentError(() -> ConfigParser.parse(new ByteArrayInputStream(prefix), -1));
+        }
+    }
+
+    @Test
+    public void shortReadAgainstExpectedSizeIsDocumentError() {
+        byte[] data = ("{" + APK + "}").getBytes(StandardCharsets.UTF_8);
+        assertDocumentError(() -> ConfigParser.parse(new ByteArrayInputStream(data), data.length + 10));
+        assertDocumentError(() -> ConfigParser.parse(new ByteArrayInputStream(data), 0));
+    }
+
+    @Test
+    public void trailingDataAndNonObjectsAreDocumentErrors() {
+        for (String json : Arrays.asList("{" + APK + "} {}", "[]", "\"x\"", "{" + APK + ",}")) {
+            byte[] data = json.getBytes(StandardCharsets.UTF_8);
+            assertDocumentError(() -> ConfigParser.parse(new ByteArrayInputStream(data), data.length));
+        }
+    }
+
+    @Test
+    public void streamFailureStaysAnIOException() throws Exception {
+        IOException failure = new IOException("device removed");
+        InputStream broken = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw failure;
+            }
+        };
+        try {
+            ConfigParser.parse(broken, -1);
+            fail("parsed a failing stream");
+        } catch (IOException e) {
+            assertTrue(e == failure || e.getCause() == failure);
+        }
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    private interface Parse {
+        Config run() throws IOException, ConfigException;
+    }
+
+    private static Config parse(String json) throws IOException, ConfigException {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        return ConfigParser.parse(new ByteArrayInputStream(data), data.length);
+    }
+
+    private static void assertFieldError(String field, String json) throws IOException {
+        try {
+            parse(json);
+            fail("accepted " + json);
+        } catch (ConfigException e) {
+            assertEquals(json + " -> " + e.getMessage(), field, e.getField());
+        }
+    }
+
+    private static void assertDocumentError(Parse parse) {
+        try {
+            Config c = parse.run();
+            fail("accepted, apk path " + c.nodeappApkPath);
+        } catch (ConfigException e) {
+            assertEquals(e.getMessage(), ConfigException.DOCUMENT, e.getField());
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.xam.kiosk.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.xam.kiosk.model.Config;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ConfigRepository over a file in a temp folder and a fixed remote source.
+ * Rewriting a file with the same size and mtime shows whether it was read again.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConfigRepositoryTest {
+
+    // Same length, so only a fresh read tells them apart
+    private static final String A = config("a.apk");
+    private static final String B = config("b.apk");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file;
+    private ConfigRepository repository;
+
+    @Before
+    public void setUp() {
+        file = new File(tmp.getRoot(), "config.json");
+        repository = new ConfigRepository(file);
+    }
+
+    @Test
+    public void unchangedStatKeyIsNotReadAgain() throws Exception {
+        long mtime = writeSettled(A);
+        assertEquals("a.apk", repository.load().nodeappApkPath);
+
+        write(file, B);
+        assertTrue(file.setLastModified(mtime));
+        assertEquals("a.apk", repository.load().nodeappApkPath);
+    }
+
+    @Test
+    public void invalidFileKeepsTheLastGoodConfig() throws Exception {
+        write(file, A);
+        Config good = repository.load();
+
+        write(file, "{");
+        assertSame(good, repository.load());
+    }
+
+    @Test
+    public void removedFileLeavesTheSnapshot() throws Exception {
+        write(file, A);
+        Config loaded = repository.load();
+
+        assertTrue(file.delete());
+        assertSame(loaded, repository.load());
+        assertSame(loaded, repository.get());
+    }
+
+    @Test
+    public void removedFileNoLongerOutranksTheSources() throws Exception {
+        write(file, "{\"config_version\": 2, \"nodeapp_apk_path\": \"file.apk\"}");
+        repository.addSource(new FixedSource(parse("{\"config_version\": 1, \"nodeapp_apk_path\": \"remote.apk\"}")));
+        assertEquals("file.apk", repository.load().nodeappApkPath);
+
+        assertTrue(file.delete());
+        assertEquals("remote.apk", repository.load().nodeappApkPath);
+    }
+
+    @Test
+    public void fileRestoredWithTheSameStatKeyIsReadAgain() throws Exception {
+        long mtime = writeSettled(A);
+        repository.load();
+
+        assertTrue(file.delete());
+        repository.load();
+
+        write(file, B);
+        assertTrue(file.setLastModified(mtime));
+        assertEquals("b.apk", repository.load().nodeappApkPath);
+    }
+
+    private static final class FixedSource implements ConfigSource {
+        private final Config config;
+
+        FixedSource(Config config) {
+            this.config = config;
+        }
+
+        @Override
+        public String name() {
+            return "fixed";
+        }
+
+        @Override
+        public Config current() {
+            return config;
+        }
+
+        @Override
+        public void start(Listener listener) {}
+
+        @Override
+        public void stop() {}
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    private static String config(String apk) {
+        return "{\"ssid\": \"Office\", \"nodeapp_apk_path\": \"" + apk + "\"}";
+    }
+
+    private Config parse(String json) throws Exception {
+        File f = tmp.newFile();
+        write(f, json);
+        return ConfigParser.parse(f);
+    }
+
+    /** Writes the file with an mtime past the granularity, so its stat key is trusted. */
+    private long writeSettled(String json) throws IOException {
+        write(file, json);
+        long mtime = (System.currentTimeMillis() - 60_000) / 1000 * 1000;
+        assertTrue(file.setLastModified(mtime));
+        return mtime;
+    }
+
+    private static void write(File f, String s) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(s.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.xam.kiosk.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.telemetry.Telemetry;
+import com.xam.kiosk.util.ManualScheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HttpConfigSource against a loopback stand-in for the fleet server (the JDK's
+ * HttpServer). Fetches run on a {@link ManualScheduler}, so refresh and backoff
+ * timing is checked without waiting; only the HTTP round trips are real.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HttpConfigSourceTest {
+
+    private static final long REFRESH_MS = 900_000;
+
+    private static final String V1 = "{\"config_version\": 1, \"nodeapp_apk_path\": \"a.apk\"}";
+    private static final String V2 = "{\"config_version\": 2, \"nodeapp_apk_path\": \"b.apk\"}";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private StandInServer fleet;
+    private ManualScheduler scheduler;
+    private File cacheDir;
+    private HttpConfigSource source;
+    private int changes;
+
+    @Before
+    public void setUp() throws IOException {
+        fleet = new StandInServer();
+        scheduler = new ManualScheduler(1_000_000);
+        cacheDir = new File(tmp.getRoot(), "remote");
+        source = newSource();
+    }
+
+    @After
+    public void tearDown() {
+        source.stop();
+        scheduler.advance(0);
+        fleet.stop();
+    }
+
+    @Test
+    public void notModifiedKeepsCurrentConfigWithoutReparsing() throws IOException {
+        fleet.serve(200, V1, "\"v1\"");
+        startSource();
+        Config first = source.current();
+        assertNotNull(first);
+        assertEquals(1, first.version);
+        assertEquals(1, changes);
+        assertNull(fleet.lastIfNoneMatch());
+
+        long notModified = Telemetry.get(Telemetry.Counter.CONFIG_NOT_MODIFIED);
+        long cacheWritten = new File(cacheDir, "remote_config.json").lastModified();
+        scheduler.advance(REFRESH_MS);
+
+        assertEquals(2, fleet.requests());
+        assertEquals("\"v1\"", fleet.lastIfNoneMatch());
+        assertEquals(304, fleet.lastStatus());
+        assertSame(first, source.current());
+        assertEquals(1, changes);
+        assertEquals(notModified + 1, Telemetry.get(Telemetry.Counter.CONFIG_NOT_MODIFIED));
+        assertEquals(cacheWritten, new File(cacheDir, "remote_config.json").lastModified());
+    }
+
+    @Test
+    public void changedEtagReplacesConfigAndCache() throws IOException {
+        fleet.serve(200, V1, "\"v1\"");
+        startSource();
+
+        fleet.serve(200, V2, "\"v2\"");
+        fleet.gzip = true;
+        scheduler.advance(REFRESH_MS);
+
+        assertEquals("\"v1\"", fleet.lastIfNoneMatch());
+        assertEquals(200, fleet.lastStatus());
+        assertEquals(2, source.current().version);
+        assertEquals("b.apk", source.current().nodeappApkPath);
+        assertEquals(2, changes);
+        assertEquals(V2, read("remote_config.json"));
+        assertEquals("\"v2\"", read("remote_config.etag"));
+
+        scheduler.advance(REFRESH_MS);
+        assertEquals("\"v2\"", fleet.lastIfNoneMatch());
+        assertEquals(304, fleet.lastStatus());
+    }
+
+    @Test
+    public void sameBodyUnderNewEtagIsNotAChange() throws IOException {
+        fleet.serve(200, V1, "\"v1\"");
+        startSource();
+        Config first = source.current();
+
+        fleet.serve(200, V1, "\"v1-gzip\"");
+        scheduler.advance(REFRESH_MS);
+
+        assertSame(first, source.current());
+        assertEquals(1, changes);
+        assertEquals("\"v1-gzip\"", read("remote_config.etag"));
+    }
+
+    @Test
+    public void serverErrorsBackOffThenRefreshResumes() throws IOException {
+        fleet.serve(503, "busy", null);
+        startSource();
+        assertEquals(1, fleet.requests());
+        assertNull(source.current());
+
+        // Doubling from 5 s with up to 20% taken off: [4, 5] s, then [8, 10] s, then [16, 20] s
+        long[][] windows = {{4000, 5000}, {8000, 10_000}, {16_000, 20_000}};
+        for (long[] w : windows) {
+            long gap = untilNextRequest(w[1] + 1000);
+            assertTrue("retried after " + gap + " ms", gap >= w[0] && gap <= w[1]);
+        }
+        assertEquals(0, changes);
+
+        fleet.serve(200, V1, "\"v1\"");
+        untilNextRequest(40_000);
+        assertEquals(1, changes);
+
+        // Back on the refresh interval, not the backoff
+        assertEquals(REFRESH_MS, untilNextRequest(REFRESH_MS + 1000));
+    }
+
+    @Test
+    public void invalidBodyIsRejectedAndLastGoodKept() throws IOException {
+        fleet.serve(200, V1, "\"v1\"");
+        startSource();
+        Config good = source.current();
+
+        fleet.serve(200, "{\"config_version\": 3}", "\"v3\"");
+        scheduler.advance(REFRESH_MS);
+
+        assertSame(good, source.current());
+        assertEquals("\"v1\"", read("remote_config.etag"));
+        // Rejected: retried on the backoff, still offering the old ETag
+        scheduler.advance(5000);
+        assertEquals(3, fleet.requests());
+        assertEquals("\"v1\"", fleet.lastIfNoneMatch());
+    }
+
+    @Test
+    public void cachedConfigIsRestoredWithoutNetwork() throws IOException {
+        fleet.serve(200, V2, "\"v2\"");
+        startSource();
+        source.stop();
+        scheduler.advance(0);
+        fleet.stop();
+
+        source = newSource();
+        changes = 0;
+        startSource();
+        assertEquals(2, source.current().version);
+        assertEquals(1, changes);
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    private HttpConfigSource newSource() throws IOException {
+        URL url = new URL("http://127.0.0.1:" + fleet.port() + "/config.json");
+        return new HttpConfigSource(url, cacheDir, scheduler, scheduler, REFRESH_MS);
+    }
+
+    private void startSource() {
+        source.start(s -> changes++);
+        scheduler.advance(0);
+    }
+
+    /** Advances in 10 ms steps until the next request reaches the server; returns the time taken. */
+    private long untilNextRequest(long limitMs) {
+        int before = fleet.requests();
+        long waited = 0;
+        while (fleet.requests() == before && waited < limitMs) {
+            scheduler.advance(10);
+            waited += 10;
+        }
+        assertEquals("no request within " + limitMs + " ms", before + 1, fleet.requests());
+        return waited;
+    }
+
+    private String read(String name) throws IOException {
+        return new String(Files.readAllBytes(new File(cacheDir, name).toPath()), StandardCharsets.UTF_8);
+    }
+
+    /** Fleet server stand-in: one configurable response, honouring If-None-Match. */
+    private static final class StandInServer {
+
+        private final HttpServer http;
+        private final List<String> ifNoneMatch = Collections.synchronizedList(new ArrayList<>());
+        private final List<Integer> statuses = Collections.synchronizedList(new ArrayList<>());
+
+        private volatile int status;
+        private volatile String body;
+        private volatile String etag;
+        volatile boolean gzip;
+
+        StandInServer() throws IOException {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            http.createContext("/config.json", this::handle);
+            http.start();
+        }
+
+        void serve(int status, String body, String etag) {
+            this.status = status;
+            this.body = body;
+            this.etag = etag;
+        }
+
+        int port() {
+            return http.getAddress().getPort();
+        }
+
+        int requests() {
+            return statuses.size();
+        }
+
+        String lastIfNoneMatch() {
+            return ifNoneMatch.get(ifNoneMatch.size() - 1);
+        }
+
+        int lastStatus() {
+            return statuses.get(statuses.size() - 1);
+        }
+
+        void stop() {
+            http.stop(0);
+        }
+
+        private void handle(HttpExchange ex) throws IOException {
+            String sent = ex.getRequestHeaders().getFirst("If-None-Match");
+            ifNoneMatch.add(sent);
+            int code = status;
+            if (code == 200 && etag != null && etag.equals(sent)) code = 304;
+            statuses.add(code);
+
+            if (etag != null) ex.getResponseHeaders().set("ETag", etag);
+            if (code == 304) {
+                ex.sendResponseHeaders(304, -1);
+                ex.close();
+                return;
+            }
+            byte[] payload = body.getBytes(StandardCharsets.UTF_8);
+            String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+            if (gzip && accept != null && accept.contains("gzip")) {
+                ByteArrayOutputStream z = new ByteArrayOutputStream();
+                try (GZIPOutputStream out = new GZIPOutputStream(z)) {
+                    out.write(payload);
+                }
+                payload = z.toByteArray();
+                ex.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            ex.sendResponseHeaders(code, payload.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(payload);
+            }
+        }
+    }
+}
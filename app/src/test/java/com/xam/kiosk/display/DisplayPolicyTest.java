@@ -0,0 +1,126 @@
+package com.xam.kiosk.display;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.xam.kiosk.model.DisplayWindow;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** DisplayPolicy is a pure function of its inputs; no Android classes involved. */
+public class DisplayPolicyTest {
+
+    private static final List<DisplayWindow> NONE = Collections.emptyList();
+
+    // 22:00-06:00 off, 18:00-22:00 at half
+    private static final DisplayWindow NIGHT = new DisplayWindow(22 * 60, 6 * 60, 0f);
+    private static final DisplayWindow EVENING = new DisplayWindow(18 * 60, 22 * 60, 0.5f);
+    private static final List<DisplayWindow> SCHEDULE = Arrays.asList(NIGHT, EVENING);
+
+    private static final int NOON = 12 * 60;
+
+    @Test
+    public void coolAndPluggedIsFullBrightness() {
+        DisplayPolicy p = DisplayPolicy.of(0, true, 100, NONE, NOON);
+        assertEquals(1f, p.brightness, 0f);
+        assertTrue(p.screenOn);
+    }
+
+    @Test
+    public void thermalStatusStepsBrightnessDown() {
+        float[] expected = {1f, 0.85f, 0.6f, 0.4f, 0.25f, 0.1f, 0.1f};
+        for (int status = 0; status < expected.length; status++) {
+            assertEquals("status " + status, expected[status], DisplayPolicy.of(status, true, 100, NONE, NOON).brightness, 0f);
+        }
+        // Out-of-range statuses clamp instead of throwing
+        assertEquals(1f, DisplayPolicy.thermalCap(-1), 0f);
+        assertEquals(0.1f, DisplayPolicy.thermalCap(99), 0f);
+    }
+
+    @Test
+    public void batteryCapsOnlyApplyUnplugged() {
+        assertEquals(DisplayPolicy.BATTERY_CAP, DisplayPolicy.of(0, false, 80, NONE, NOON).brightness, 0f);
+        assertEquals(DisplayPolicy.BATTERY_CAP,
+                DisplayPolicy.of(0, false, DisplayPolicy.LOW_BATTERY_PERCENT, NONE, NOON).brightness, 0f);
+        assertEquals(DisplayPolicy.LOW_BATTERY_CAP,
+                DisplayPolicy.of(0, false, DisplayPolicy.LOW_BATTERY_PERCENT - 1, NONE, NOON).brightness, 0f);
+        assertEquals(1f, DisplayPolicy.of(0, true, 5, NONE, NOON).brightness, 0f);
+        // Unknown level: no battery cap
+        assertEquals(1f, DisplayPolicy.of(0, false, -1, NONE, NOON).brightness, 0f);
+    }
+
+    @Test
+    public void lowestCapWins() {
+        // Thermal 0.25 under battery 0.6
+        assertEquals(0.25f, DisplayPolicy.of(4, false, 80, NONE, NOON).brightness, 0f);
+        // Window 0.5 under thermal 0.85
+        assertEquals(0.5f, DisplayPolicy.of(1, true, 100, SCHEDULE, 19 * 60).brightness, 0f);
+        // Thermal 0.4 under window 0.5
+        assertEquals(0.4f, DisplayPolicy.of(3, true, 100, SCHEDULE, 19 * 60).brightness, 0f);
+    }
+
+    @Test
+    public void screenOffWindowOverridesEverything() {
+        DisplayPolicy p = DisplayPolicy.of(4, false, 10, SCHEDULE, 23 * 60);
+        assertFalse(p.screenOn);
+        assertEquals(0f, p.brightness, 0f);
+    }
+
+    @Test
+    public void windowsRunPastMidnightAndEndExclusive() {
+        assertFalse(DisplayPolicy.of(0, true, 100, SCHEDULE, 22 * 60).screenOn);
+        assertFalse(DisplayPolicy.of(0, true, 100, SCHEDULE, 0).screenOn);
+        assertFalse(DisplayPolicy.of(0, true, 100, SCHEDULE, 6 * 60 - 1).screenOn);
+        assertTrue(DisplayPolicy.of(0, true, 100, SCHEDULE, 6 * 60).screenOn);
+        assertEquals(0.5f, DisplayPolicy.of(0, true, 100, SCHEDULE, 22 * 60 - 1).brightness, 0f);
+    }
+
+    @Test
+    public void firstMatchingWindowApplies() {
+        DisplayWindow wide = new DisplayWindow(8 * 60, 20 * 60, 0.3f);
+        DisplayWindow inner = new DisplayWindow(11 * 60, 13 * 60, 0.8f);
+        assertSame(wide, DisplayPolicy.activeWindow(Arrays.asList(wide, inner), NOON));
+        assertSame(inner, DisplayPolicy.activeWindow(Arrays.asList(inner, wide), NOON));
+        assertNull(DisplayPolicy.activeWindow(Arrays.asList(inner, wide), 21 * 60));
+    }
+
+    @Test
+    public void minutesToNextEdge() {
+        assertEquals(6 * 60, DisplayPolicy.minutesToNextEdge(SCHEDULE, NOON));          // 18:00
+        assertEquals(1, DisplayPolicy.minutesToNextEdge(SCHEDULE, 22 * 60 - 1));        // 22:00
+        assertEquals(6 * 60, DisplayPolicy.minutesToNextEdge(SCHEDULE, 0));             // 06:00
+        // Standing on an edge: the next one, never 0
+        assertEquals(4 * 60, DisplayPolicy.minutesToNextEdge(SCHEDULE, 18 * 60));
+        List<DisplayWindow> oneMinute = Collections.singletonList(new DisplayWindow(NOON, NOON + 1, 0.5f));
+        assertEquals(24 * 60 - 1, DisplayPolicy.minutesToNextEdge(oneMinute, NOON + 1));
+        // An edge at the current minute counts as a day away
+        List<DisplayWindow> allDay = Collections.singletonList(new DisplayWindow(NOON, NOON, 0.5f));
+        assertEquals(24 * 60, DisplayPolicy.minutesToNextEdge(allDay, NOON));
+        assertEquals(24 * 60, DisplayPolicy.minutesToNextEdge(NONE, NOON));
+    }
+
+    @Test
+    public void batteryTemperatureStandsInForThermalStatus() {
+        assertEquals(0, DisplayPolicy.thermalFromBatteryTemp(399));
+        assertEquals(1, DisplayPolicy.thermalFromBatteryTemp(400));
+        assertEquals(2, DisplayPolicy.thermalFromBatteryTemp(450));
+        assertEquals(3, DisplayPolicy.thermalFromBatteryTemp(500));
+        assertEquals(3, DisplayPolicy.thermalFromBatteryTemp(700));
+    }
+
+    @Test
+    public void sameOutputIgnoresThermalStatusAlone() {
+        DisplayPolicy a = DisplayPolicy.of(0, true, 100, SCHEDULE, 19 * 60);  // window 0.5
+        DisplayPolicy b = DisplayPolicy.of(1, true, 100, SCHEDULE, 19 * 60);  // still 0.5
+        assertTrue(a.sameOutput(b));
+        assertFalse(a.sameOutput(DisplayPolicy.of(3, true, 100, SCHEDULE, 19 * 60)));
+        assertFalse(a.sameOutput(null));
+    }
+}
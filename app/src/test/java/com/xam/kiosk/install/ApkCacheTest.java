@@ -0,0 +1,123 @@
+package com.xam.kiosk.install;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.xam.kiosk.util.ManualScheduler;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ApkCache over app-private storage under Robolectric and sources in a temp
+ * folder standing in for /sdcard.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ApkCacheTest {
+
+    private static final int MAX_ENTRIES = 8;   // ApkCache.MAX_ENTRIES
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ManualScheduler clock;
+    private ApkCache cache;
+
+    @Before
+    public void setUp() {
+        clock = new ManualScheduler(10_000);
+        cache = new ApkCache(RuntimeEnvironment.getApplication(), clock);
+    }
+
+    @Test
+    public void settledSourceIsStagedUnderItsDigest() throws IOException {
+        File src = source("a.apk", 1);
+        File staged = cache.stage(src, null);
+        assertNotNull(staged);
+        assertNotNull(ApkCache.digestOf(staged));
+        assertEquals(staged, cache.stage(src, ApkCache.digestOf(staged)));
+    }
+
+    @Test
+    public void sourceStillChangingIsNotStaged() throws IOException {
+        File src = write(tmp.newFile("a.apk"), 1);   // mtime is now
+        assertNull(cache.stage(src, null));
+        clock.advance(2000);
+        assertNotNull(cache.stage(src, null));
+    }
+
+    @Test
+    public void removedOrChangedSourcesAreForgotten() throws IOException {
+        File a = source("a.apk", 1);
+        File b = source("b.apk", 2);
+        File c = source("c.apk", 3);
+        cache.stage(a, null);
+        cache.stage(b, null);
+        cache.stage(c, null);
+        assertEquals(3, cache.stampCount());
+
+        assertTrue(a.delete());
+        write(b, 4);
+        cache.evict(Collections.emptyList());
+        assertEquals(1, cache.stampCount());
+    }
+
+    @Test
+    public void stampsGoWithTheirEvictedEntries() throws IOException {
+        List<File> staged = new ArrayList<>();
+        for (int i = 0; i < MAX_ENTRIES + 4; i++) {
+            File f = cache.stage(source("nodeapp-" + i + ".apk", i), null);
+            // Distinct mtimes so the LRU order is the staging order
+            assertTrue(f.setLastModified(1_000_000_000_000L + i * 1000L));
+            staged.add(f);
+        }
+        assertEquals(MAX_ENTRIES + 4, cache.stampCount());
+
+        cache.evict(Collections.emptyList());
+        assertEquals(MAX_ENTRIES, cache.stampCount());
+        for (int i = 0; i < staged.size(); i++) {
+            assertEquals(staged.get(i).getName(), i >= 4, staged.get(i).exists());
+        }
+    }
+
+    @Test
+    public void missingSourceLeavesNoStamp() throws IOException {
+        assertNull(cache.stage(new File(tmp.getRoot(), "missing.apk"), null));
+        cache.evict(Collections.emptyList());
+        assertEquals(0, cache.stampCount());
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    /** A source written well before the cache looks at it. */
+    private File source(String name, int seed) throws IOException {
+        File f = write(tmp.newFile(name), seed);
+        assertTrue(f.setLastModified(System.currentTimeMillis() - 60_000));
+        return f;
+    }
+
+    private static File write(File f, int seed) throws IOException {
+        byte[] data = new byte[1024 + seed];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 31 + seed);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(data);
+        }
+        return f;
+    }
+}
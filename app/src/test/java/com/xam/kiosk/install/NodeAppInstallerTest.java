@@ -0,0 +1,208 @@
+package com.xam.kiosk.install;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.content.pm.PackageInstaller;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.xam.kiosk.util.Clock;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowPackageInstaller;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commit results, timeout and cancel over the shadowed PackageInstaller. Commits
+ * and uninstalls are held until the test delivers their result, as in
+ * ProvisioningReplayTest.
+ */
+@RunWith(RobolectricTestRunner.class)
+@org.robolectric.annotation.Config(shadows = {
+        NodeAppInstallerTest.HeldCommitSession.class, NodeAppInstallerTest.HeldUninstall.class})
+public class NodeAppInstallerTest {
+
+    private static final long COMMIT_TIMEOUT_MS = 120_000;   // NodeAppInstaller.COMMIT_TIMEOUT_MS
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Context context;
+    private PackageInstaller pi;
+    private NodeAppInstaller installer;
+    private final List<String> results = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        HeldCommitSession.committed.clear();
+        context = RuntimeEnvironment.getApplication();
+        pi = context.getPackageManager().getPackageInstaller();
+        installer = new NodeAppInstaller(context, new Handler(Looper.getMainLooper()), Clock.SYSTEM);
+    }
+
+    @Test
+    public void successResultCompletesTheInstall() throws IOException {
+        install();
+        assertTrue(installer.isInstalling());
+
+        deliver(0, PackageInstaller.STATUS_SUCCESS);
+        assertEquals(Collections.singletonList("true"), results);
+        assertFalse(installer.isInstalling());
+    }
+
+    @Test
+    public void timeoutAbandonsTheSessionAndIgnoresALateResult() throws IOException {
+        int sessionId = install();
+        assertNotNull(pi.getSessionInfo(sessionId));
+
+        advance(COMMIT_TIMEOUT_MS);
+        assertEquals(Collections.singletonList("false commit timeout"), results);
+        assertNull("session abandoned", pi.getSessionInfo(sessionId));
+
+        deliver(0, PackageInstaller.STATUS_SUCCESS);
+        assertEquals(1, results.size());
+    }
+
+    @Test
+    public void cancelAbandonsTheSessionWithoutACallback() throws IOException {
+        int sessionId = install();
+
+        installer.cancel();
+        assertFalse(installer.isInstalling());
+        assertNull("session abandoned", pi.getSessionInfo(sessionId));
+
+        deliver(0, PackageInstaller.STATUS_SUCCESS);
+        advance(COMMIT_TIMEOUT_MS);
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void staleResultDoesNotCompleteTheNextInstall() throws IOException {
+        install();
+        installer.cancel();
+        install();
+
+        // The cancelled session reports in while the second one is pending
+        deliver(0, PackageInstaller.STATUS_FAILURE);
+        assertTrue(results.isEmpty());
+        assertTrue(installer.isInstalling());
+
+        deliver(1, PackageInstaller.STATUS_SUCCESS);
+        assertEquals(Collections.singletonList("true"), results);
+    }
+
+    @Test
+    public void uninstallResultCompletesTheUninstall() {
+        uninstall();
+        assertTrue(installer.isInstalling());
+
+        deliver(0, PackageInstaller.STATUS_SUCCESS);
+        assertEquals(Collections.singletonList("true"), results);
+        assertFalse(installer.isInstalling());
+    }
+
+    @Test
+    public void uninstallTimeoutDoesNotBlockTheNextInstall() throws IOException {
+        uninstall();
+        advance(COMMIT_TIMEOUT_MS);
+        assertEquals(Collections.singletonList("false uninstall timeout"), results);
+
+        install();
+        deliver(0, PackageInstaller.STATUS_SUCCESS);
+        assertEquals("late uninstall result ignored", 1, results.size());
+
+        deliver(1, PackageInstaller.STATUS_SUCCESS);
+        assertEquals(List.of("false uninstall timeout", "true"), results);
+    }
+
+    /** Holds every commit until the test delivers its result. */
+    @Implements(PackageInstaller.Session.class)
+    public static class HeldCommitSession extends ShadowPackageInstaller.ShadowSession {
+
+        static final List<IntentSender> committed = new ArrayList<>();
+
+        @Implementation
+        @Override
+        protected void commit(IntentSender statusReceiver) {
+            committed.add(statusReceiver);
+        }
+    }
+
+    /** Holds every uninstall alongside the commits; not shadowed by Robolectric. */
+    @Implements(PackageInstaller.class)
+    public static class HeldUninstall extends ShadowPackageInstaller {
+
+        @Implementation
+        protected void uninstall(String packageName, IntentSender statusReceiver) {
+            HeldCommitSession.committed.add(statusReceiver);
+        }
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    private void uninstall() {
+        installer.uninstall("com.xam.nodeapp",
+                (success, message) -> results.add(success ? "true" : "false " + message));
+    }
+
+    /** @return the id of the session that was committed */
+    private int install() throws IOException {
+        File apk = tmp.newFile();
+        try (FileOutputStream out = new FileOutputStream(apk)) {
+            out.write(new byte[4096]);
+        }
+        List<Integer> before = sessionIds();
+        installer.install(new InstallRequest("com.xam.nodeapp",
+                        Collections.singletonList(new InstallRequest.Part(apk, null)), false),
+                (success, message) -> results.add(success ? "true" : "false " + message));
+        List<Integer> after = sessionIds();
+        after.removeAll(before);
+        assertEquals("one new session", 1, after.size());
+        return after.get(0);
+    }
+
+    private List<Integer> sessionIds() {
+        List<Integer> ids = new ArrayList<>();
+        for (PackageInstaller.SessionInfo s : pi.getAllSessions()) ids.add(s.getSessionId());
+        return ids;
+    }
+
+    private void deliver(int commit, int status) {
+        Intent result = new Intent().putExtra(PackageInstaller.EXTRA_STATUS, status);
+        try {
+            HeldCommitSession.committed.get(commit).sendIntent(context, 0, result, null, null, null);
+        } catch (IntentSender.SendIntentException e) {
+            throw new AssertionError(e);
+        }
+        advance(0);
+    }
+
+    private static void advance(long ms) {
+        ShadowLooper.idleMainLooper(ms, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,157 @@
+package com.xam.kiosk.policy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Bundle;
+import android.os.UserManager;
+
+import com.xam.kiosk.admin.KioskDeviceAdminReceiver;
+import com.xam.kiosk.ui.KioskActivity;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowDevicePolicyManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Device owner detection and policy diffing over the shadowed DevicePolicyManager,
+ * whose restrictions live in the shadowed UserManager. Every DPM write is recorded.
+ */
+@RunWith(RobolectricTestRunner.class)
+@org.robolectric.annotation.Config(shadows = PolicyEngineTest.RecordingDevicePolicyManager.class)
+public class PolicyEngineTest {
+
+    private Context context;
+    private ComponentName admin;
+    private PolicyEngine engine;
+
+    @Before
+    public void setUp() {
+        RecordingDevicePolicyManager.writes.clear();
+        context = RuntimeEnvironment.getApplication();
+        admin = new ComponentName(context, KioskDeviceAdminReceiver.class);
+        engine = new PolicyEngine(context, admin);
+    }
+
+    @Test
+    public void deviceOwnerSetWhileRunningIsNoticed() {
+        assertFalse(engine.isDeviceOwner());
+
+        // `dpm set-device-owner` after the app is already up
+        shadowOf(context.getSystemService(DevicePolicyManager.class)).setDeviceOwner(admin);
+        assertTrue(engine.isDeviceOwner());
+    }
+
+    @Test
+    public void unchangedPolicyMakesNoWrites() {
+        becomeDeviceOwner();
+        KioskPolicy policy = policy(UserManager.DISALLOW_ADJUST_VOLUME, UserManager.DISALLOW_CONFIG_BRIGHTNESS);
+        assertTrue(engine.apply(policy));
+        assertFalse(RecordingDevicePolicyManager.writes.isEmpty());
+
+        RecordingDevicePolicyManager.writes.clear();
+        assertTrue(engine.apply(policy(UserManager.DISALLOW_ADJUST_VOLUME, UserManager.DISALLOW_CONFIG_BRIGHTNESS)));
+        assertEquals(Collections.emptyList(), RecordingDevicePolicyManager.writes);
+    }
+
+    @Test
+    public void changedRestrictionWritesOnlyThatRestriction() {
+        becomeDeviceOwner();
+        assertTrue(engine.apply(policy(UserManager.DISALLOW_ADJUST_VOLUME, UserManager.DISALLOW_CONFIG_BRIGHTNESS)));
+
+        RecordingDevicePolicyManager.writes.clear();
+        assertTrue(engine.apply(policy(UserManager.DISALLOW_ADJUST_VOLUME, UserManager.DISALLOW_CONFIG_BRIGHTNESS,
+                UserManager.DISALLOW_USB_FILE_TRANSFER)));
+        assertEquals(Arrays.asList("+" + UserManager.DISALLOW_USB_FILE_TRANSFER), RecordingDevicePolicyManager.writes);
+
+        RecordingDevicePolicyManager.writes.clear();
+        assertTrue(engine.apply(policy(UserManager.DISALLOW_ADJUST_VOLUME, UserManager.DISALLOW_USB_FILE_TRANSFER)));
+        assertEquals(Arrays.asList("-" + UserManager.DISALLOW_CONFIG_BRIGHTNESS), RecordingDevicePolicyManager.writes);
+    }
+
+    /** Records writes; reads this admin's restrictions back from the shadowed UserManager. */
+    @Implements(DevicePolicyManager.class)
+    public static class RecordingDevicePolicyManager extends ShadowDevicePolicyManager {
+
+        static final List<String> writes = new ArrayList<>();
+
+        @Implementation
+        protected Bundle getUserRestrictions(ComponentName admin) {
+            return RuntimeEnvironment.getApplication().getSystemService(UserManager.class).getUserRestrictions();
+        }
+
+        @Implementation
+        @Override
+        protected void addUserRestriction(ComponentName admin, String key) {
+            writes.add("+" + key);
+            super.addUserRestriction(admin, key);
+        }
+
+        @Implementation
+        @Override
+        protected void clearUserRestriction(ComponentName admin, String key) {
+            writes.add("-" + key);
+            super.clearUserRestriction(admin, key);
+        }
+
+        @Implementation
+        @Override
+        protected void setLockTaskPackages(ComponentName admin, String[] packages) {
+            writes.add("lockTask");
+            super.setLockTaskPackages(admin, packages);
+        }
+
+        @Implementation
+        @Override
+        protected void addPersistentPreferredActivity(ComponentName admin, IntentFilter filter,
+                                                      ComponentName activity) {
+            writes.add("home");
+            super.addPersistentPreferredActivity(admin, filter, activity);
+            // As on a device, HOME now resolves to the persistent preferred activity
+            ResolveInfo ri = new ResolveInfo();
+            ri.activityInfo = new ActivityInfo();
+            ri.activityInfo.packageName = activity.getPackageName();
+            ri.activityInfo.name = activity.getClassName();
+            PackageManager pm = RuntimeEnvironment.getApplication().getPackageManager();
+            shadowOf(pm).addResolveInfoForIntent(
+                    new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_HOME), ri);
+        }
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    private void becomeDeviceOwner() {
+        DevicePolicyManager dpm = context.getSystemService(DevicePolicyManager.class);
+        shadowOf(dpm).setActiveAdmin(admin);
+        shadowOf(dpm).setDeviceOwner(admin);
+    }
+
+    private KioskPolicy policy(String... restrictions) {
+        return new KioskPolicy(new ComponentName(context, KioskActivity.class),
+                new TreeSet<>(Arrays.asList(context.getPackageName(), "com.xam.nodeapp")),
+                new TreeSet<>(Arrays.asList(restrictions)));
+    }
+}
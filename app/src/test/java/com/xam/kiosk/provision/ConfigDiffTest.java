@@ -0,0 +1,96 @@
+package com.xam.kiosk.provision;
+
+import static org.junit.Assert.assertEquals;
+
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.model.DisplayWindow;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/** Field-by-field mapping from a config change to the tasks it re-runs. */
+public class ConfigDiffTest {
+
+    private static Set<ProvisioningEngine.Task> diff(TestConfigs a, TestConfigs b) {
+        return ConfigDiff.affected(a.build(), b.build());
+    }
+
+    private static Set<ProvisioningEngine.Task> only(ProvisioningEngine.Task... t) {
+        Set<ProvisioningEngine.Task> s = EnumSet.noneOf(ProvisioningEngine.Task.class);
+        s.addAll(Arrays.asList(t));
+        return s;
+    }
+
+    @Test
+    public void identicalFieldsTouchNothing() {
+        TestConfigs c = TestConfigs.minimal().wifi("Office").userRestrictions("no_adjust_volume");
+        Config a = c.build();
+        Config b = c.build();
+        assertEquals(only(), ConfigDiff.affected(a, b));
+    }
+
+    @Test
+    public void unrelatedFieldsTouchNothing() {
+        TestConfigs b = TestConfigs.minimal();
+        b.version = 7;
+        b.displaySchedule = Collections.singletonList(new DisplayWindow(22 * 60, 6 * 60, 0f));
+        assertEquals(only(), diff(TestConfigs.minimal(), b));
+    }
+
+    @Test
+    public void networksRedoWifi() {
+        assertEquals(only(ProvisioningEngine.Task.WIFI),
+                diff(TestConfigs.minimal().wifi("Office"), TestConfigs.minimal().wifi("Office", "Guest")));
+        // Rank order matters: the best network is tried first
+        assertEquals(only(ProvisioningEngine.Task.WIFI),
+                diff(TestConfigs.minimal().wifi("A", "B"), TestConfigs.minimal().wifi("B", "A")));
+    }
+
+    @Test
+    public void policyKeysRedoPolicy() {
+        assertEquals(only(ProvisioningEngine.Task.POLICY),
+                diff(TestConfigs.minimal(), TestConfigs.minimal().userRestrictions("no_adjust_volume")));
+
+        TestConfigs lockdown = TestConfigs.minimal();
+        lockdown.lockdownRestrictions = Collections.singletonList("no_usb_file_transfer");
+        assertEquals(only(ProvisioningEngine.Task.POLICY), diff(TestConfigs.minimal(), lockdown));
+
+        TestConfigs packages = TestConfigs.minimal();
+        packages.lockTaskPackages = Collections.singletonList("com.example.helper");
+        assertEquals(only(ProvisioningEngine.Task.POLICY), diff(TestConfigs.minimal(), packages));
+
+        // An explicit empty list is not the built-in defaults (null)
+        assertEquals(only(ProvisioningEngine.Task.POLICY),
+                diff(TestConfigs.minimal(), TestConfigs.minimal().userRestrictions()));
+    }
+
+    @Test
+    public void everyNodeAppFieldRedoesInstall() {
+        TestConfigs path = TestConfigs.minimal();
+        path.apkPath = "other.apk";
+        TestConfigs sha = TestConfigs.minimal();
+        sha.apkSha256 = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+        TestConfigs version = TestConfigs.minimal();
+        version.versionCode = 42;
+        TestConfigs cert = TestConfigs.minimal();
+        cert.certSha256 = "60303ae22b998861bce3b28f33eec1be758a213c86c93c076dbe9f558c11c752";
+        TestConfigs splits = TestConfigs.minimal();
+        splits.splits = Collections.singletonList("split_config.xxhdpi.apk");
+
+        for (TestConfigs changed : Arrays.asList(path, sha, version, cert, splits)) {
+            assertEquals(only(ProvisioningEngine.Task.INSTALL), diff(TestConfigs.minimal(), changed));
+        }
+    }
+
+    @Test
+    public void changesCombine() {
+        TestConfigs b = TestConfigs.minimal().wifi("Office").userRestrictions("no_adjust_volume");
+        b.versionCode = 3;
+        assertEquals(only(ProvisioningEngine.Task.WIFI, ProvisioningEngine.Task.POLICY, ProvisioningEngine.Task.INSTALL),
+                diff(TestConfigs.minimal(), b));
+    }
+}
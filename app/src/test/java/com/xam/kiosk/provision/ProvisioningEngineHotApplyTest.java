@@ -0,0 +1,355 @@
+package com.xam.kiosk.provision;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.model.DisplayWindow;
+import com.xam.kiosk.model.WifiNetwork;
+import com.xam.kiosk.telemetry.KioskStatus;
+import com.xam.kiosk.util.ManualScheduler;
+import com.xam.kiosk.util.RetryScheduler;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * ProvisioningEngine after provisioning: a new config must re-run only the
+ * tasks {@link ConfigDiff} names. The host and UI are recording fakes, the
+ * worker is a {@link ManualScheduler} and the ui executor runs inline.
+ * Robolectric only supplies android.util.Log.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProvisioningEngineHotApplyTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ManualScheduler worker;
+    private FakeHost host;
+    private FakeUi ui;
+    private ProvisioningEngine engine;
+    private Config provisioned;
+
+    @Before
+    public void setUp() throws IOException {
+        worker = new ManualScheduler(0);
+        host = new FakeHost(tmp.newFile("nodeapp.apk"));
+        ui = new FakeUi();
+        engine = new ProvisioningEngine(worker, Runnable::run, worker,
+                new RetryScheduler(worker, worker, new Random(1)), host, ui);
+
+        engine.start();
+        worker.advance(0);
+        provisioned = TestConfigs.minimal().wifi("Office").build();
+        host.plan = ProvisioningEngine.NodeAppPlan.INSTALL;
+        deliver(provisioned);
+        host.finishInstall(true, 1);
+        host.wifi.onWifiConnected();
+        worker.advance(0);
+
+        assertEquals(ProvisioningEngine.Stage.DONE, engine.getStage());
+        assertEquals(provisioned.hash, host.checkpoint.configHash);
+        host.calls.clear();
+        ui.calls.clear();
+    }
+
+    @Test
+    public void sameConfigAgainDoesNothing() {
+        deliver(provisioned);
+        assertEquals(Collections.emptyList(), host.calls);
+        assertEquals(Collections.emptyList(), ui.calls);
+    }
+
+    @Test
+    public void unrelatedChangeOnlyRecordsTheNewConfig() {
+        TestConfigs c = TestConfigs.minimal().wifi("Office");
+        c.displaySchedule = Collections.singletonList(new DisplayWindow(22 * 60, 6 * 60, 0f));
+        Config next = c.build();
+        deliver(next);
+
+        assertEquals(List.of("saveCheckpoint"), host.calls);
+        assertEquals(next.hash, host.checkpoint.configHash);
+        assertEquals(Collections.emptyList(), ui.calls);
+        assertEquals(ProvisioningEngine.Stage.DONE, engine.getStage());
+    }
+
+    @Test
+    public void newNetworksOnlyReconnectWifi() {
+        Config next = TestConfigs.minimal().wifi("Office", "Guest").build();
+        deliver(next);
+
+        assertEquals(List.of("cancelWifi", "saveCheckpoint", "connectWifi"), host.calls);
+        assertEquals(next.wifiNetworks, host.wifiNetworks);
+        assertEquals(Collections.singleton(ProvisioningEngine.Task.WIFI), ui.pending);
+        assertEquals(Collections.emptyList(), nonPending(ui.calls));
+
+        host.wifi.onWifiConnected();
+        worker.advance(0);
+        assertEquals(Collections.emptySet(), ui.pending);
+    }
+
+    @Test
+    public void newPolicyOnlyReappliesPolicy() {
+        Config next = TestConfigs.minimal().wifi("Office").userRestrictions("no_adjust_volume").build();
+        deliver(next);
+
+        assertEquals(List.of("saveCheckpoint", "applyPolicy"), host.calls);
+        assertSame(next, host.policyConfig);
+        assertTrue("lockdown kept", host.policyLockdown);
+        assertEquals(Collections.emptyList(), ui.calls);
+    }
+
+    @Test
+    public void sameNodeAppVersionRelaunchesWithoutInstall() {
+        TestConfigs c = TestConfigs.minimal().wifi("Office");
+        c.apkSha256 = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+        Config next = c.build();
+        host.plan = ProvisioningEngine.NodeAppPlan.NONE;
+        deliver(next);
+
+        assertEquals(List.of("installedNodeAppVersion", "resolveNodeApk", "planNodeApp", "saveCheckpoint"),
+                host.calls);
+        assertEquals(List.of("startKioskLockTask", "launchNodeApp"), nonPending(ui.calls));
+        assertEquals(next.hash, host.checkpoint.configHash);
+    }
+
+    @Test
+    public void newerNodeAppIsUpdatedThenLaunched() {
+        TestConfigs c = TestConfigs.minimal().wifi("Office");
+        c.versionCode = 2;
+        Config next = c.build();
+        host.plan = ProvisioningEngine.NodeAppPlan.UPDATE;
+        deliver(next);
+
+        assertEquals(List.of("installedNodeAppVersion", "resolveNodeApk", "planNodeApp", "installPlannedNodeApp"),
+                host.calls);
+        assertEquals(List.of("onNodeAppUpdating"), nonPending(ui.calls));
+        assertEquals(provisioned.hash, host.checkpoint.configHash);
+
+        host.finishInstall(true, 2);
+        worker.advance(0);
+        assertEquals(List.of("onNodeAppUpdating", "startKioskLockTask", "launchNodeApp"), nonPending(ui.calls));
+        assertEquals(next.hash, host.checkpoint.configHash);
+        assertEquals(2, host.checkpoint.nodeAppVersion);
+    }
+
+    @Test
+    public void changeDuringInstallIsPlannedAgainBeforeLaunch() {
+        TestConfigs first = TestConfigs.minimal().wifi("Office");
+        first.versionCode = 2;
+        host.plan = ProvisioningEngine.NodeAppPlan.UPDATE;
+        deliver(first.build());
+
+        TestConfigs second = TestConfigs.minimal().wifi("Office");
+        second.versionCode = 3;
+        Config latest = second.build();
+        deliver(latest);
+        assertEquals(1, count(host.calls, "installPlannedNodeApp"));
+
+        host.calls.clear();
+        host.finishInstall(true, 2);
+        worker.advance(0);
+        assertEquals(List.of("installedNodeAppVersion", "installedNodeAppVersion", "resolveNodeApk",
+                "planNodeApp", "installPlannedNodeApp"), host.calls);
+        assertSame(latest, host.plannedFor);
+
+        host.finishInstall(true, 3);
+        worker.advance(0);
+        assertEquals(latest.hash, host.checkpoint.configHash);
+        assertEquals(3, host.checkpoint.nodeAppVersion);
+    }
+
+    @Test
+    public void rolledBackNodeAppIsCheckpointed() {
+        Config next = crashLoopingUpdate();
+
+        host.finishInstall(true, 1);
+        worker.advance(0);
+        assertFalse(KioskStatus.nodeAppRollbackFailed);
+        assertTrue(host.checkpoint.has(Checkpoint.Step.PROVISIONED));
+        assertEquals(next.hash, host.checkpoint.configHash);
+        assertEquals(1, host.checkpoint.nodeAppVersion);
+    }
+
+    @Test
+    public void failedRollbackIsNotCheckpointedAsProvisioned() {
+        crashLoopingUpdate();
+
+        host.finishInstall(false, 0);
+        worker.advance(0);
+        assertTrue(KioskStatus.nodeAppRollbackFailed);
+        assertFalse(host.checkpoint.has(Checkpoint.Step.PROVISIONED));
+        assertEquals(List.of("onNodeAppUpdating", "startKioskLockTask", "launchNodeApp"),
+                nonPending(ui.calls));
+    }
+
+    // =========================
+    // Fakes
+    // =========================
+
+    private void deliver(Config c) {
+        worker.post(() -> host.configs.onConfig(c));
+        worker.advance(0);
+    }
+
+    /** Updates NodeApp to version 2, which the watchdog then reports as crash-looping. */
+    private Config crashLoopingUpdate() {
+        TestConfigs c = TestConfigs.minimal().wifi("Office");
+        c.versionCode = 2;
+        Config next = c.build();
+        host.plan = ProvisioningEngine.NodeAppPlan.UPDATE;
+        deliver(next);
+        host.finishInstall(true, 2);
+        worker.advance(0);
+
+        host.calls.clear();
+        ui.calls.clear();
+        engine.reportNodeAppHealth(false);
+        worker.advance(0);
+        assertEquals(List.of("rollbackNodeApp"), host.calls);
+        return next;
+    }
+
+    private static List<String> nonPending(List<String> calls) {
+        List<String> out = new ArrayList<>(calls);
+        out.removeIf(s -> s.equals("onPendingChanged") || s.equals("onStageChanged"));
+        return out;
+    }
+
+    private static int count(List<String> calls, String name) {
+        int n = 0;
+        for (String c : calls) if (c.equals(name)) n++;
+        return n;
+    }
+
+    private final class FakeHost implements ProvisioningEngine.Host {
+        final List<String> calls = new ArrayList<>();
+        final File apk;
+        ConfigCallback configs;
+        WifiCallback wifi;
+        List<WifiNetwork> wifiNetworks;
+        Checkpoint checkpoint = Checkpoint.EMPTY;
+        Config policyConfig;
+        boolean policyLockdown;
+        long installed = -1;
+        ProvisioningEngine.NodeAppPlan plan = ProvisioningEngine.NodeAppPlan.NONE;
+        Config plannedFor;
+        InstallCallback install;
+
+        FakeHost(File apk) {
+            this.apk = apk;
+        }
+
+        void finishInstall(boolean success, long version) {
+            assertNotNull("no install running", install);
+            if (success) installed = version;
+            InstallCallback cb = install;
+            install = null;
+            worker.post(() -> cb.onInstallResult(success));
+            worker.advance(0);
+        }
+
+        @Override public void startConfigWatch(ConfigCallback callback) { configs = callback; }
+        @Override public void stopConfigWatch() { calls.add("stopConfigWatch"); }
+
+        @Override
+        public void connectWifi(List<WifiNetwork> networks, WifiCallback callback) {
+            calls.add("connectWifi");
+            wifiNetworks = networks;
+            wifi = () -> worker.post(callback::onWifiConnected);
+        }
+
+        @Override public void cancelWifi() { calls.add("cancelWifi"); }
+        @Override public Checkpoint loadCheckpoint() { return checkpoint; }
+
+        @Override
+        public void saveCheckpoint(Checkpoint c) {
+            calls.add("saveCheckpoint");
+            checkpoint = c;
+        }
+
+        @Override
+        public boolean applyPolicy(Config config, boolean lockdown) {
+            calls.add("applyPolicy");
+            policyConfig = config;
+            policyLockdown = lockdown;
+            return true;
+        }
+
+        @Override
+        public long installedNodeAppVersion() {
+            calls.add("installedNodeAppVersion");
+            return installed;
+        }
+
+        @Override
+        public File resolveNodeApk(String path) {
+            calls.add("resolveNodeApk");
+            return apk;
+        }
+
+        @Override
+        public ProvisioningEngine.NodeAppPlan planNodeApp(Config config) {
+            calls.add("planNodeApp");
+            plannedFor = config;
+            return plan;
+        }
+
+        @Override
+        public void installPlannedNodeApp(InstallCallback callback) {
+            calls.add("installPlannedNodeApp");
+            install = callback;
+        }
+
+        @Override public void cancelInstall() { calls.add("cancelInstall"); }
+        @Override
+        public void rollbackNodeApp(InstallCallback callback) {
+            calls.add("rollbackNodeApp");
+            install = callback;
+        }
+
+        @Override public void commitNodeAppUpdate() { calls.add("commitNodeAppUpdate"); }
+    }
+
+    private static final class FakeUi implements ProvisioningEngine.Ui {
+        final List<String> calls = new ArrayList<>();
+        Set<ProvisioningEngine.Task> pending = Collections.emptySet();
+
+        @Override
+        public void onStageChanged(ProvisioningEngine.Stage stage) {
+            calls.add("onStageChanged");
+        }
+
+        @Override
+        public void onPendingChanged(Set<ProvisioningEngine.Task> p) {
+            calls.add("onPendingChanged");
+            pending = p;
+        }
+
+        @Override public void startKioskLockTask() { calls.add("startKioskLockTask"); }
+
+        @Override
+        public boolean launchNodeApp(boolean inLockTask) {
+            calls.add("launchNodeApp");
+            return true;
+        }
+
+        @Override public void onNodeAppUpdating() { calls.add("onNodeAppUpdating"); }
+    }
+}
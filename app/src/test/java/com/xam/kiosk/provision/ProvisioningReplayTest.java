@@ -0,0 +1,503 @@
+package com.xam.kiosk.provision;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Application;
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageInstaller;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.net.Uri;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.os.storage.StorageManager;
+
+import com.xam.kiosk.admin.KioskDeviceAdminReceiver;
+import com.xam.kiosk.boot.BootCompletedReceiver;
+import com.xam.kiosk.boot.BootLaunchService;
+import com.xam.kiosk.boot.BootTimeline;
+import com.xam.kiosk.config.ConfigRepository;
+import com.xam.kiosk.install.InstallRequest;
+import com.xam.kiosk.install.NodeAppInstaller;
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.model.WifiNetwork;
+import com.xam.kiosk.policy.KioskPolicy;
+import com.xam.kiosk.policy.PolicyEngine;
+import com.xam.kiosk.telemetry.Telemetry;
+import com.xam.kiosk.ui.KioskActivity;
+import com.xam.kiosk.util.Clock;
+import com.xam.kiosk.util.HandlerScheduler;
+import com.xam.kiosk.util.RetryScheduler;
+import com.xam.kiosk.wifi.WifiProvisioner;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetwork;
+import org.robolectric.shadows.ShadowNetworkCapabilities;
+import org.robolectric.shadows.ShadowPackageInstaller;
+import org.robolectric.shadows.ShadowWifiInfo;
+import org.robolectric.shadows.StorageVolumeBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays boot -> config -> WiFi -> install -> launch on Robolectric's paused
+ * main looper, whose clock only moves when the test advances it. The device side
+ * is the real code (BootLaunchService, ConfigRepository, WifiProvisioner,
+ * NodeAppInstaller, PolicyEngine) over shadowed UserManager, StorageManager,
+ * WifiManager/ConnectivityManager, PackageManager/PackageInstaller and
+ * DevicePolicyManager. A {@link Trace} says when the outside world reacts.
+ *
+ * Every span recorded during the replay must stay within its {@link Telemetry}
+ * budget, and the flow must record all of them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+@org.robolectric.annotation.Config(shadows = ProvisioningReplayTest.HeldCommitSession.class)
+public class ProvisioningReplayTest {
+
+    private static final String NODE_APP_PACKAGE = "com.xam.nodeapp";
+    private static final long NODE_APP_VERSION = 7;
+
+    /** When the world outside the kiosk reacts, in ms. */
+    private static final class Trace {
+        final long storageMountMs;   // BootLaunchService started -> shared storage mounted
+        final long kioskShownMs;     // kiosk launched -> its window has focus
+        final long configPushMs;     // kiosk shown -> config.json pushed over MTP
+        final long wifiAssociateMs;  // association requested -> AP associated and validated
+        final long installCommitMs;  // session committed -> PackageInstaller result
+
+        Trace(long storageMountMs, long kioskShownMs, long configPushMs, long wifiAssociateMs, long installCommitMs) {
+            this.storageMountMs = storageMountMs;
+            this.kioskShownMs = kioskShownMs;
+            this.configPushMs = configPushMs;
+            this.wifiAssociateMs = wifiAssociateMs;
+            this.installCommitMs = installCommitMs;
+        }
+    }
+
+    // Field timings of a first boot on a slow tablet
+    private static final Trace FIELD = new Trace(6000, 1500, 20_000, 9000, 12_000);
+
+    // Same, but PackageInstaller takes longer than INSTALL_COMMIT allows
+    private static final Trace SLOW_COMMIT = new Trace(6000, 1500, 20_000, 9000, 45_000);
+
+    private static final String CONFIG_JSON = "{\n"
+            + "  \"wifi_networks\": [{\"ssid\": \"Office\", \"security\": \"WPA2\", \"password\": \"correcthorse\"}],\n"
+            + "  \"nodeapp_apk_path\": \"nodeapp.apk\",\n"
+            + "  \"nodeapp_version_code\": 7\n"
+            + "}\n";
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private Application context;
+    private ComponentName admin;
+    private File configFile;
+    private File apk;
+
+    @Before
+    public void setUp() throws IOException {
+        HeldCommitSession.committed.clear();
+        context = RuntimeEnvironment.getApplication();
+        admin = new ComponentName(context, KioskDeviceAdminReceiver.class);
+        shadowOf(context.getSystemService(DevicePolicyManager.class)).setDeviceOwner(admin);
+        shadowOf(context.getSystemService(UserManager.class)).setUserUnlocked(true);
+
+        configFile = new File(tmp.getRoot(), "config.json");
+        apk = tmp.newFile("nodeapp.apk");
+        try (FileOutputStream out = new FileOutputStream(apk)) {
+            out.write(new byte[512 * 1024]);
+        }
+
+        // First calls pay for class loading in the sandbox, not for the code under test.
+        File warm = tmp.newFile("warm.json");
+        write(warm, CONFIG_JSON);
+        new ConfigRepository(warm).load();
+        ReplayHost warmHost = new ReplayHost(new Handler(Looper.getMainLooper()), null);
+        warmHost.installedNodeAppVersion();
+        installNodeApp();
+        warmHost.installedNodeAppVersion();
+        shadowOf(context.getPackageManager()).deletePackage(NODE_APP_PACKAGE);
+    }
+
+    @Test
+    public void firstBootStaysWithinBudgets() throws IOException {
+        Snapshot before = new Snapshot();
+
+        // Boot: the broadcast starts the service, which waits for storage.
+        new BootCompletedReceiver().onReceive(context, new Intent(Intent.ACTION_BOOT_COMPLETED));
+        Intent service = shadowOf(context).getNextStartedService();
+        assertNotNull("boot receiver starts BootLaunchService", service);
+        Robolectric.buildService(BootLaunchService.class, service).create().startCommand(0, 1);
+
+        advance(FIELD.storageMountMs);
+        mountSharedStorage();
+        Intent kiosk = shadowOf(context).getNextStartedActivity();
+        assertNotNull("kiosk launched once storage is ready", kiosk);
+        assertEquals(KioskActivity.class.getName(), kiosk.getComponent().getClassName());
+
+        advance(FIELD.kioskShownMs);
+        BootTimeline.mark(BootTimeline.Phase.ACTIVITY_SHOWN);
+
+        Replay replay = provision(FIELD);
+
+        assertEquals(ProvisioningEngine.Stage.DONE, replay.engine.getStage());
+        assertTrue("NodeApp launched in lock task", replay.ui.launchedInLockTask);
+
+        Snapshot after = new Snapshot();
+        after.assertWithinBudgets(before);
+        after.assertRecorded(before,
+                Telemetry.Kind.LATENCY, Telemetry.Span.BOOT_READY,
+                Telemetry.Kind.LATENCY, Telemetry.Span.BOOT_TO_KIOSK,
+                Telemetry.Kind.CALL, Telemetry.Span.CONFIG_PARSE,
+                Telemetry.Kind.CALL, Telemetry.Span.DPM_POLICIES,
+                Telemetry.Kind.CALL, Telemetry.Span.DPM_LOCKDOWN,
+                Telemetry.Kind.CALL, Telemetry.Span.PM_PACKAGE_INFO,
+                Telemetry.Kind.LATENCY, Telemetry.Span.WIFI_CONNECT,
+                Telemetry.Kind.STAGE_END, Telemetry.Span.STAGE_CONNECTING_WIFI,
+                Telemetry.Kind.LATENCY, Telemetry.Span.INSTALL_COMMIT,
+                Telemetry.Kind.STAGE_END, Telemetry.Span.STAGE_INSTALLING,
+                Telemetry.Kind.STAGE_END, Telemetry.Span.STAGE_LAUNCHING,
+                Telemetry.Kind.LATENCY, Telemetry.Span.PROVISION);
+    }
+
+    @Test
+    public void slowCommitIsReportedAsOverrun() throws IOException {
+        Snapshot before = new Snapshot();
+
+        Replay replay = provision(SLOW_COMMIT);
+
+        assertEquals(ProvisioningEngine.Stage.DONE, replay.engine.getStage());
+        Snapshot after = new Snapshot();
+        assertEquals(1, after.overrunsSince(before, Telemetry.Kind.LATENCY, Telemetry.Span.INSTALL_COMMIT));
+    }
+
+    // =========================
+    // Replay
+    // =========================
+
+    private static final class Replay {
+        ProvisioningEngine engine;
+        RecordingUi ui;
+    }
+
+    /** Config -> WiFi -> install -> launch, with the outside world reacting per {@code trace}. */
+    private Replay provision(Trace trace) throws IOException {
+        Handler main = new Handler(Looper.getMainLooper());
+        HandlerScheduler worker = new HandlerScheduler(main);
+        RetryScheduler retries = new RetryScheduler(worker, Clock.SYSTEM);
+        ReplayHost host = new ReplayHost(main, retries);
+
+        Replay replay = new Replay();
+        replay.ui = new RecordingUi();
+        replay.engine = new ProvisioningEngine(worker, main::post, Clock.SYSTEM, retries, host, replay.ui);
+        replay.engine.start();
+        advance(0);
+        assertEquals(ProvisioningEngine.Stage.WAITING_CONFIG, replay.engine.getStage());
+
+        advance(trace.configPushMs);
+        write(configFile, CONFIG_JSON);
+        host.onConfigPushed();
+        advance(0);
+        assertEquals(ProvisioningEngine.Stage.INSTALLING, replay.engine.getStage());
+
+        // WiFi and the install run side by side; the earlier one lands first.
+        long wifiAt = trace.wifiAssociateMs;
+        long commitAt = trace.installCommitMs;
+        advance(Math.min(wifiAt, commitAt));
+        if (wifiAt <= commitAt) associateWifi("Office");
+        else finishInstall();
+        advance(Math.abs(wifiAt - commitAt));
+        if (wifiAt <= commitAt) finishInstall();
+        else associateWifi("Office");
+        advance(0);
+        return replay;
+    }
+
+    private void mountSharedStorage() throws IOException {
+        File dir = tmp.newFolder("emulated0");
+        shadowOf(context.getSystemService(StorageManager.class)).addStorageVolume(
+                new StorageVolumeBuilder("emulated;0", dir, "Internal shared storage",
+                        UserHandle.getUserHandleForUid(0), "mounted")
+                        .setIsPrimary(true)
+                        .setIsEmulated(true)
+                        .build());
+        context.sendBroadcast(new Intent(Intent.ACTION_MEDIA_MOUNTED, Uri.fromFile(dir)));
+        advance(0);
+    }
+
+    private void associateWifi(String ssid) {
+        WifiInfo info = ShadowWifiInfo.newInstance();
+        shadowOf(info).setSSID(ssid);  // quoted by the shadow, as the framework does
+        shadowOf(context.getSystemService(WifiManager.class)).setConnectionInfo(info);
+
+        NetworkCapabilities caps = ShadowNetworkCapabilities.newInstance();
+        shadowOf(caps).addTransportType(NetworkCapabilities.TRANSPORT_WIFI);
+        shadowOf(caps).addCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+        ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
+        for (ConnectivityManager.NetworkCallback cb : new ArrayList<>(shadowOf(cm).getNetworkCallbacks())) {
+            cb.onCapabilitiesChanged(ShadowNetwork.newInstance(100), caps);
+        }
+        advance(0);
+    }
+
+    private void finishInstall() {
+        installNodeApp();
+        assertEquals("one install committed", 1, HeldCommitSession.committed.size());
+        Intent result = new Intent().putExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_SUCCESS);
+        try {
+            HeldCommitSession.committed.remove(0).sendIntent(context, 0, result, null, null, null);
+        } catch (IntentSender.SendIntentException e) {
+            throw new AssertionError(e);
+        }
+        advance(0);
+    }
+
+    /**
+     * The stock session shadow reports every commit the moment it is made, with
+     * no status. This one holds the result until the replay delivers it.
+     */
+    @Implements(PackageInstaller.Session.class)
+    public static class HeldCommitSession extends ShadowPackageInstaller.ShadowSession {
+
+        static final List<IntentSender> committed = new ArrayList<>();
+
+        @Implementation
+        @Override
+        protected void commit(IntentSender statusReceiver) {
+            committed.add(statusReceiver);
+        }
+    }
+
+    private void installNodeApp() {
+        PackageInfo info = new PackageInfo();
+        info.packageName = NODE_APP_PACKAGE;
+        info.setLongVersionCode(NODE_APP_VERSION);
+        shadowOf(context.getPackageManager()).installPackage(info);
+    }
+
+    private static void advance(long ms) {
+        ShadowLooper.idleMainLooper(ms, TimeUnit.MILLISECONDS);
+    }
+
+    private static void write(File f, String s) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(s.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Host over the shadowed services. Only what the replay cannot drive through
+     * a shadow is stubbed: the config arrives when the test pushes it (no
+     * FileObserver under Robolectric), and the plan is a plain install.
+     */
+    private final class ReplayHost implements ProvisioningEngine.Host {
+
+        private final ConfigRepository repository = new ConfigRepository(configFile);
+        private final WifiProvisioner wifi;
+        private final NodeAppInstaller installer;
+        private final PolicyEngine policy = new PolicyEngine(context, admin);
+        private Checkpoint checkpoint = Checkpoint.EMPTY;
+        private ConfigCallback configCallback;
+
+        ReplayHost(Handler worker, RetryScheduler retries) {
+            wifi = new WifiProvisioner(context, worker, Clock.SYSTEM, retries);
+            installer = new NodeAppInstaller(context, worker, Clock.SYSTEM);
+        }
+
+        void onConfigPushed() {
+            Config c = repository.load();
+            if (c != null && configCallback != null) configCallback.onConfig(c);
+        }
+
+        @Override
+        public void startConfigWatch(ConfigCallback callback) {
+            configCallback = callback;
+        }
+
+        @Override
+        public void stopConfigWatch() {
+            configCallback = null;
+        }
+
+        @Override
+        public void connectWifi(List<WifiNetwork> networks, WifiCallback callback) {
+            wifi.connect(networks, (ssid, attempts, latencyMs, validated) -> callback.onWifiConnected());
+        }
+
+        @Override
+        public void cancelWifi() {
+            wifi.cancel();
+        }
+
+        @Override
+        public Checkpoint loadCheckpoint() {
+            return checkpoint;
+        }
+
+        @Override
+        public void saveCheckpoint(Checkpoint c) {
+            checkpoint = c;
+        }
+
+        @Override
+        public boolean applyPolicy(Config config, boolean lockdown) {
+            long t0 = Telemetry.startCall();
+            try {
+                ComponentName home = new ComponentName(context.getPackageName(), KioskActivity.class.getName());
+                return policy.apply(KioskPolicy.of(home, NODE_APP_PACKAGE, config, lockdown));
+            } finally {
+                Telemetry.call(lockdown ? Telemetry.Span.DPM_LOCKDOWN : Telemetry.Span.DPM_POLICIES, t0);
+            }
+        }
+
+        @Override
+        public long installedNodeAppVersion() {
+            long t0 = Telemetry.startCall();
+            try {
+                return context.getPackageManager().getPackageInfo(NODE_APP_PACKAGE, 0).getLongVersionCode();
+            } catch (PackageManager.NameNotFoundException e) {
+                return -1;
+            } finally {
+                Telemetry.call(Telemetry.Span.PM_PACKAGE_INFO, t0);
+            }
+        }
+
+        @Override
+        public File resolveNodeApk(String nodeappApkPath) {
+            return new File(tmp.getRoot(), nodeappApkPath);
+        }
+
+        @Override
+        public ProvisioningEngine.NodeAppPlan planNodeApp(Config config) {
+            return installedNodeAppVersion() < 0 ? ProvisioningEngine.NodeAppPlan.INSTALL
+                    : ProvisioningEngine.NodeAppPlan.NONE;
+        }
+
+        @Override
+        public void installPlannedNodeApp(InstallCallback callback) {
+            InstallRequest request = new InstallRequest(NODE_APP_PACKAGE,
+                    Collections.singletonList(new InstallRequest.Part(apk, null)), false);
+            installer.install(request, (success, message) -> callback.onInstallResult(success));
+        }
+
+        @Override
+        public void cancelInstall() {
+            installer.cancel();
+        }
+
+        @Override
+        public void rollbackNodeApp(InstallCallback callback) {
+            callback.onInstallResult(false);
+        }
+
+        @Override
+        public void commitNodeAppUpdate() {}
+    }
+
+    private static final class RecordingUi implements ProvisioningEngine.Ui {
+
+        boolean lockTaskStarted;
+        boolean launchedInLockTask;
+
+        @Override
+        public void onStageChanged(ProvisioningEngine.Stage stage) {}
+
+        @Override
+        public void onPendingChanged(Set<ProvisioningEngine.Task> pending) {}
+
+        @Override
+        public void startKioskLockTask() {
+            lockTaskStarted = true;
+        }
+
+        @Override
+        public boolean launchNodeApp(boolean inLockTask) {
+            launchedInLockTask = inLockTask && lockTaskStarted;
+            return true;
+        }
+
+        @Override
+        public void onNodeAppUpdating() {}
+    }
+
+    // =========================
+    // Telemetry
+    // =========================
+
+    /** Event and overrun counts per kind/span. Telemetry is process-wide, so tests compare two snapshots. */
+    private static final class Snapshot {
+
+        private final long[] counts = new long[Telemetry.Kind.values().length * Telemetry.Span.values().length];
+        private final long[] overruns = new long[counts.length];
+
+        Snapshot() {
+            for (Telemetry.Kind k : Telemetry.Kind.values()) {
+                for (Telemetry.Span s : Telemetry.Span.values()) {
+                    long n = 0;
+                    for (int b = 0; b < Telemetry.bucketCount(); b++) n += Telemetry.bucket(k, s, b);
+                    counts[index(k, s)] = n;
+                    overruns[index(k, s)] = Telemetry.overruns(k, s);
+                }
+            }
+        }
+
+        private static int index(Telemetry.Kind k, Telemetry.Span s) {
+            return k.ordinal() * Telemetry.Span.values().length + s.ordinal();
+        }
+
+        long overrunsSince(Snapshot before, Telemetry.Kind k, Telemetry.Span s) {
+            return overruns[index(k, s)] - before.overruns[index(k, s)];
+        }
+
+        void assertWithinBudgets(Snapshot before) {
+            for (Telemetry.Kind k : Telemetry.Kind.values()) {
+                for (Telemetry.Span s : Telemetry.Span.values()) {
+                    assertEquals(k + " " + s + " over its budget of " + Telemetry.budgetOf(k, s),
+                            0, overrunsSince(before, k, s));
+                }
+            }
+        }
+
+        /** @param pairs kind, span, kind, span, ... */
+        void assertRecorded(Snapshot before, Object... pairs) {
+            for (int i = 0; i < pairs.length; i += 2) {
+                Telemetry.Kind k = (Telemetry.Kind) pairs[i];
+                Telemetry.Span s = (Telemetry.Span) pairs[i + 1];
+                assertTrue(k + " " + s + " not recorded", counts[index(k, s)] > before.counts[index(k, s)]);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.xam.kiosk.provision;
+
+import com.xam.kiosk.model.Config;
+import com.xam.kiosk.model.DisplayWindow;
+import com.xam.kiosk.model.WifiNetwork;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Config builder for tests; every field starts at what the parser produces for a minimal file. */
+final class TestConfigs {
+
+    String ssid;
+    List<WifiNetwork> wifiNetworks = new ArrayList<>();
+    String apkPath = "nodeapp.apk";
+    String apkSha256;
+    long versionCode = -1;
+    String certSha256;
+    List<String> splits = Collections.emptyList();
+    List<String> userRestrictions;
+    List<String> lockdownRestrictions;
+    List<String> lockTaskPackages = Collections.emptyList();
+    List<DisplayWindow> displaySchedule = Collections.emptyList();
+    long version;
+
+    private static int hashes;
+
+    static TestConfigs minimal() {
+        return new TestConfigs();
+    }
+
+    TestConfigs wifi(String... ssids) {
+        wifiNetworks = new ArrayList<>();
+        for (String s : ssids) wifiNetworks.add(new WifiNetwork(s, WifiNetwork.Security.WPA2, "password-" + s));
+        return this;
+    }
+
+    TestConfigs userRestrictions(String... keys) {
+        userRestrictions = Arrays.asList(keys);
+        return this;
+    }
+
+    /** Distinct hash per build, as for distinct file contents. */
+    Config build() {
+        return new Config(ssid, new ArrayList<>(wifiNetworks), apkPath, apkSha256, versionCode, certSha256,
+                new ArrayList<>(splits),
+                userRestrictions != null ? new ArrayList<>(userRestrictions) : null,
+                lockdownRestrictions != null ? new ArrayList<>(lockdownRestrictions) : null,
+                new ArrayList<>(lockTaskPackages), new ArrayList<>(displaySchedule), version,
+                String.format("%064x", ++hashes));
+    }
+}
@@ -0,0 +1,208 @@
+package com.xam.kiosk.telemetry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * MetricsServer on a loopback port, scraped over real sockets. Robolectric
+ * supplies Log and a SystemClock that stands still, so /metrics renders the
+ * same text as a direct {@link MetricsServer#render} call.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MetricsServerTest {
+
+    private static final int MAX_CONNECTIONS = 16;
+    private static final int TIMEOUT_MS = 5000;
+
+    private MetricsServer server;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MetricsServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        for (Socket s : sockets) {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+        server.stop();
+    }
+
+    @Test
+    public void scrapeReturnsRenderedExposition() throws IOException {
+        Response r = get("/metrics");
+        assertEquals(200, r.code);
+        assertEquals("text/plain; version=0.0.4; charset=utf-8", r.header("Content-Type"));
+        assertEquals(r.body.getBytes(StandardCharsets.UTF_8).length, Integer.parseInt(r.header("Content-Length")));
+
+        StringBuilder expected = new StringBuilder();
+        MetricsServer.render(expected, SystemClock.uptimeMillis());
+        assertEquals(expected.toString(), r.body);
+        assertTrue(r.body.contains("# TYPE kiosk_config_reads_total counter\n"));
+        assertTrue(r.body.contains("# TYPE kiosk_budget_overruns_total counter\n"));
+    }
+
+    @Test
+    public void namesDoNotDependOnTheDefaultLocale() {
+        Locale saved = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));   // lower-cases I to a dotless i
+        try {
+            StringBuilder sb = new StringBuilder();
+            MetricsServer.render(sb, SystemClock.uptimeMillis());
+            assertTrue(sb.toString().contains("# TYPE kiosk_config_reads_total counter\n"));
+            assertTrue(sb.toString().contains("kiosk_budget{kind=\"call\",span=\"pm_package_info\"} "));
+            assertTrue(sb.toString().indexOf('\u0131') < 0);
+        } finally {
+            Locale.setDefault(saved);
+        }
+    }
+
+    @Test
+    public void requestArrivingInPiecesIsServed() throws Exception {
+        Socket s = connect();
+        OutputStream out = s.getOutputStream();
+        for (String part : new String[] {"GE", "T /metr", "ics?x=1 HTTP/1.1\r\nHost: kiosk\r", "\n", "\r\n"}) {
+            out.write(part.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            Thread.sleep(50);
+        }
+        Response r = Response.read(s.getInputStream());
+        assertEquals(200, r.code);
+        assertTrue(r.body.startsWith("# HELP kiosk_provisioning_stage "));
+    }
+
+    @Test
+    public void otherPathsAndMethods() throws IOException {
+        assertEquals("ok\n", get("/healthz").body);
+        assertEquals(404, get("/").code);
+        assertEquals(405, request("POST /metrics HTTP/1.1\r\n\r\n").code);
+    }
+
+    @Test
+    public void oversizedRequestIsRejected() throws IOException {
+        StringBuilder req = new StringBuilder("GET /metrics HTTP/1.1\r\n");
+        while (req.length() < 4096) req.append("X-Pad: 0123456789abcdef0123456789abcdef\r\n");
+        assertEquals(431, request(req.toString()).code);
+    }
+
+    @Test
+    public void connectionsOverCapAreClosedAndSlotsAreReused() throws Exception {
+        List<Socket> idle = new ArrayList<>();
+        for (int i = 0; i < MAX_CONNECTIONS; i++) idle.add(connect());
+        // Accepted in order: the cap is reached before the next one is seen.
+        assertHealthz(idle.get(0));
+        idle.set(0, connect());
+
+        Socket extra = connect();
+        assertClosedByServer(extra);
+
+        idle.get(1).close();
+        // The server notices the close on its next read; retry until the slot is free.
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            Socket s = connect();
+            try {
+                assertHealthz(s);
+                break;
+            } catch (AssertionError | IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    // =========================
+    // Client
+    // =========================
+
+    private Socket connect() throws IOException {
+        Socket s = new Socket();
+        sockets.add(s);
+        s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()), TIMEOUT_MS);
+        s.setSoTimeout(TIMEOUT_MS);
+        return s;
+    }
+
+    private Response get(String path) throws IOException {
+        return request("GET " + path + " HTTP/1.1\r\nHost: kiosk\r\n\r\n");
+    }
+
+    private Response request(String raw) throws IOException {
+        Socket s = connect();
+        s.getOutputStream().write(raw.getBytes(StandardCharsets.US_ASCII));
+        return Response.read(s.getInputStream());
+    }
+
+    private static void assertHealthz(Socket s) throws IOException {
+        s.getOutputStream().write("GET /healthz HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        Response r = Response.read(s.getInputStream());
+        assertEquals(200, r.code);
+    }
+
+    private static void assertClosedByServer(Socket s) {
+        try {
+            s.getOutputStream().write("GET /healthz HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            int b = s.getInputStream().read();
+            assertEquals("expected EOF", -1, b);
+        } catch (IOException e) {
+            // Reset by peer: closed as well
+        }
+    }
+
+    private static final class Response {
+        int code;
+        final List<String> headers = new ArrayList<>();
+        String body;
+
+        String header(String name) {
+            for (String h : headers) {
+                int colon = h.indexOf(':');
+                if (h.substring(0, colon).equalsIgnoreCase(name)) return h.substring(colon + 1).trim();
+            }
+            return null;
+        }
+
+        /** Reads to EOF; the server closes after every response. */
+        static Response read(InputStream in) throws IOException {
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            byte[] buf = new byte[512];
+            int n;
+            while ((n = in.read(buf)) >= 0) all.write(buf, 0, n);
+
+            String text = all.toString(StandardCharsets.UTF_8.name());
+            int split = text.indexOf("\r\n\r\n");
+            if (split < 0) fail("no header end in: " + text);
+
+            Response r = new Response();
+            String[] lines = text.substring(0, split).split("\r\n");
+            r.code = Integer.parseInt(lines[0].split(" ")[1]);
+            for (int i = 1; i < lines.length; i++) r.headers.add(lines[i]);
+            r.body = text.substring(split + 4);
+            return r;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.xam.kiosk.telemetry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Telemetry's counters, histograms, budgets and ring buffer. The state is
+ * process-wide and other tests record into it too, so every check compares
+ * against a reading taken just before, and the ring is drained first.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TelemetryTest {
+
+    private static final int CAPACITY = 1024;   // Telemetry.CAPACITY
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File out;
+
+    @Before
+    public void setUp() throws IOException {
+        Telemetry.flush(tmp.newFile("drain.jsonl"));
+        out = new File(tmp.getRoot(), "events.jsonl");
+    }
+
+    @Test
+    public void countersCount() {
+        long before = Telemetry.get(Telemetry.Counter.USB_EVENTS);
+        Telemetry.count(Telemetry.Counter.USB_EVENTS);
+        Telemetry.count(Telemetry.Counter.USB_EVENTS);
+        assertEquals(before + 2, Telemetry.get(Telemetry.Counter.USB_EVENTS));
+    }
+
+    @Test
+    public void valuesLandInTheirBucketsInclusiveOfBound() {
+        Telemetry.Kind k = Telemetry.Kind.RETRY;
+        Telemetry.Span s = Telemetry.Span.NODEAPP_RECOVER;
+        long[] before = buckets(k, s);
+        long sumBefore = Telemetry.sum(k, s);
+
+        for (long v : new long[] {0, 1, 2, 5, 6, 300_000, 300_001, Long.MAX_VALUE / 2}) {
+            Telemetry.event(k, s, v);
+        }
+
+        long[] delta = buckets(k, s);
+        for (int b = 0; b < delta.length; b++) delta[b] -= before[b];
+        long[] expected = new long[Telemetry.bucketCount()];
+        expected[0] = 2;                              // 0, 1  (le 1)
+        expected[1] = 2;                              // 2, 5  (le 5)
+        expected[2] = 1;                              // 6     (le 10)
+        expected[Telemetry.bucketCount() - 2] = 1;    // 300_000 (le 300_000)
+        expected[Telemetry.bucketCount() - 1] = 2;    // +Inf
+        assertEquals(Arrays.toString(expected), Arrays.toString(delta));
+        assertEquals(Long.MAX_VALUE, Telemetry.bucketBound(Telemetry.bucketCount() - 1));
+        assertEquals(0 + 1 + 2 + 5 + 6 + 300_000 + 300_001 + Long.MAX_VALUE / 2,
+                Telemetry.sum(k, s) - sumBefore);
+    }
+
+    @Test
+    public void onlyEventsOverBudgetCountAsOverruns() {
+        Telemetry.Kind k = Telemetry.Kind.LATENCY;
+        Telemetry.Span s = Telemetry.Span.NODEAPP_FIRST_FRAME;
+        long budget = Telemetry.budgetOf(k, s);
+        assertTrue(budget > 0);
+        long before = Telemetry.overruns(k, s);
+
+        Telemetry.event(k, s, budget);
+        assertEquals(before, Telemetry.overruns(k, s));
+        Telemetry.event(k, s, budget + 1);
+        assertEquals(before + 1, Telemetry.overruns(k, s));
+
+        // No budget, never an overrun
+        assertEquals(-1, Telemetry.budgetOf(Telemetry.Kind.RETRY, Telemetry.Span.USB_SWITCH));
+        Telemetry.event(Telemetry.Kind.RETRY, Telemetry.Span.USB_SWITCH, Long.MAX_VALUE / 2);
+        assertEquals(0, Telemetry.overruns(Telemetry.Kind.RETRY, Telemetry.Span.USB_SWITCH));
+    }
+
+    @Test
+    public void flushWritesEventsSinceLastFlushThenCounters() throws IOException {
+        Telemetry.event(Telemetry.Kind.STAGE_START, Telemetry.Span.STAGE_INSTALLING, 0);
+        Telemetry.event(Telemetry.Kind.RETRY, Telemetry.Span.WIFI_CONNECT, 4000);
+        Telemetry.flush(out);
+
+        List<String> lines = lines(out);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith(",\"k\":\"STAGE_START\",\"s\":\"STAGE_INSTALLING\",\"v\":0}"));
+        assertTrue(lines.get(1), lines.get(1).endsWith(",\"k\":\"RETRY\",\"s\":\"WIFI_CONNECT\",\"v\":4000}"));
+        assertTrue(lines.get(2), lines.get(2).contains(",\"counters\":{\"CONFIG_READS\":"));
+        assertTrue(lines.get(2), !lines.get(2).contains("dropped"));
+
+        // Nothing new: only the counters line is appended
+        Telemetry.flush(out);
+        assertEquals(4, lines(out).size());
+    }
+
+    @Test
+    public void ringKeepsNewestEventsAndReportsDropped() throws IOException {
+        int extra = 10;
+        for (int i = 0; i < CAPACITY + extra; i++) {
+            Telemetry.event(Telemetry.Kind.RETRY, Telemetry.Span.USB_SWITCH, i);
+        }
+        Telemetry.flush(out);
+
+        List<String> lines = lines(out);
+        assertEquals(CAPACITY + 1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith("\"v\":" + extra + "}"));
+        assertTrue(lines.get(CAPACITY - 1).endsWith("\"v\":" + (CAPACITY + extra - 1) + "}"));
+        assertTrue(lines.get(CAPACITY), lines.get(CAPACITY).contains(",\"dropped\":" + extra + ","));
+    }
+
+    @Test
+    public void fileIsRotatedPastItsLimit() throws IOException {
+        byte[] filler = new byte[256 * 1024 + 1];
+        Arrays.fill(filler, (byte) '\n');
+        try (FileOutputStream f = new FileOutputStream(out)) {
+            f.write(filler);
+        }
+        Telemetry.event(Telemetry.Kind.RETRY, Telemetry.Span.USB_SWITCH, 1);
+        Telemetry.flush(out);
+
+        assertEquals(filler.length, new File(out.getPath() + ".1").length());
+        assertEquals(2, lines(out).size());
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws InterruptedException {
+        Telemetry.Kind k = Telemetry.Kind.RETRY;
+        Telemetry.Span s = Telemetry.Span.NODEAPP_RECOVER;
+        long countBefore = total(k, s);
+        long counterBefore = Telemetry.get(Telemetry.Counter.LAUNCH_RETRIES);
+
+        int threads = 4;
+        int perThread = 10_000;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread w = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    Telemetry.event(k, s, i & 63);
+                    Telemetry.count(Telemetry.Counter.LAUNCH_RETRIES);
+                }
+            });
+            workers.add(w);
+            w.start();
+        }
+        for (Thread w : workers) w.join();
+
+        assertEquals(countBefore + threads * perThread, total(k, s));
+        assertEquals(counterBefore + threads * perThread, Telemetry.get(Telemetry.Counter.LAUNCH_RETRIES));
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    private static long[] buckets(Telemetry.Kind k, Telemetry.Span s) {
+        long[] out = new long[Telemetry.bucketCount()];
+        for (int b = 0; b < out.length; b++) out[b] = Telemetry.bucket(k, s, b);
+        return out;
+    }
+
+    private static long total(Telemetry.Kind k, Telemetry.Span s) {
+        long n = 0;
+        for (long c : buckets(k, s)) n += c;
+        return n;
+    }
+
+    private static List<String> lines(File f) throws IOException {
+        List<String> out = new ArrayList<>();
+        for (String line : new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) out.add(line);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,83 @@
+package com.xam.kiosk.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Scheduler} and {@link Clock} in one, driven by the test: nothing runs
+ * and no time passes until {@link #advance} is called. Same semantics as a
+ * Handler: postDelayed() queues another run, cancel() drops all of them.
+ */
+public final class ManualScheduler implements Scheduler, Clock {
+
+    private static final class Pending {
+        final Runnable r;
+        final long atMs;
+        final long seq;
+
+        Pending(Runnable r, long atMs, long seq) {
+            this.r = r;
+            this.atMs = atMs;
+            this.seq = seq;
+        }
+    }
+
+    private final List<Pending> queue = new ArrayList<>();
+    private long nowMs;
+    private long seq;
+    private int posts;
+
+    public ManualScheduler(long startMs) {
+        this.nowMs = startMs;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return nowMs;
+    }
+
+    @Override
+    public void post(Runnable r) {
+        postDelayed(r, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable r, long delayMs) {
+        queue.add(new Pending(r, nowMs + Math.max(0, delayMs), seq++));
+        posts++;
+    }
+
+    @Override
+    public void cancel(Runnable r) {
+        queue.removeIf(p -> p.r == r);
+    }
+
+    /** Moves the clock forward, running everything that falls due on the way in order. */
+    public void advance(long ms) {
+        long until = nowMs + ms;
+        while (true) {
+            Pending next = null;
+            for (Pending p : queue) {
+                if (p.atMs <= until && (next == null || p.atMs < next.atMs
+                        || (p.atMs == next.atMs && p.seq < next.seq))) {
+                    next = p;
+                }
+            }
+            if (next == null) break;
+            queue.remove(next);
+            nowMs = Math.max(nowMs, next.atMs);
+            next.r.run();
+        }
+        nowMs = until;
+    }
+
+    /** Runs still queued. */
+    public int queued() {
+        return queue.size();
+    }
+
+    /** postDelayed() calls so far, i.e. wakeups requested. */
+    public int posts() {
+        return posts;
+    }
+}
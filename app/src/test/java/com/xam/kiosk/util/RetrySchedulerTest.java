@@ -0,0 +1,186 @@
+package com.xam.kiosk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * RetryScheduler on a {@link ManualScheduler}: time only moves when the test
+ * advances it and jitter comes from a seeded Random.
+ */
+public class RetrySchedulerTest {
+
+    private static final RetryScheduler.Policy NO_JITTER =
+            new RetryScheduler.Policy(100, 1000, 2.0, 0, 0);
+
+    private ManualScheduler scheduler;
+    private RetryScheduler retries;
+    private final List<String> ran = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        scheduler = new ManualScheduler(10_000);
+        retries = new RetryScheduler(scheduler, scheduler, new Random(42));
+    }
+
+    private Runnable task(String name) {
+        return () -> ran.add(name);
+    }
+
+    @Test
+    public void backoffGrowsByMultiplierUpToCap() {
+        Runnable t = task("t");
+        long[] expected = {100, 200, 400, 800, 1000, 1000};
+        for (long delay : expected) {
+            assertEquals(delay, retries.retry(t, NO_JITTER));
+            scheduler.advance(delay - 1);
+            assertTrue(ran.isEmpty());
+            scheduler.advance(1);
+            assertEquals(1, ran.size());
+            ran.clear();
+        }
+        assertEquals(expected.length, retries.attempts(t));
+    }
+
+    @Test
+    public void jitterOnlyShortensWithinBounds() {
+        RetryScheduler.Policy p = RetryScheduler.Policy.exponential(1000, 8000);
+        Runnable t = task("t");
+        boolean shortened = false;
+        for (int i = 0; i < 500; i++) {
+            long first = retries.retry(t, p);
+            assertTrue("first " + first, first >= 800 && first <= 1000);
+            retries.cancel(t);
+            long second = retries.retry(t, p);
+            assertTrue("second " + second, second >= 1600 && second <= 2000);
+            shortened |= first < 1000;
+            retries.reset(t);
+        }
+        assertTrue(shortened);
+    }
+
+    @Test
+    public void retryWhilePendingIsIgnored() {
+        Runnable t = task("t");
+        assertEquals(100, retries.retry(t, NO_JITTER));
+        assertEquals(-1, retries.retry(t, NO_JITTER));
+        assertEquals(1, retries.attempts(t));
+
+        scheduler.advance(1000);
+        assertEquals(1, ran.size());
+        assertFalse(retries.isPending(t));
+    }
+
+    @Test
+    public void maxAttemptsStopsRetrying() {
+        RetryScheduler.Policy p = new RetryScheduler.Policy(100, 1000, 2.0, 0, 2);
+        Runnable t = task("t");
+        assertEquals(100, retries.retry(t, p));
+        scheduler.advance(100);
+        assertEquals(200, retries.retry(t, p));
+        scheduler.advance(200);
+        assertEquals(-1, retries.retry(t, p));
+
+        retries.reset(t);
+        assertEquals(100, retries.retry(t, p));
+    }
+
+    @Test
+    public void tasksDueCloseTogetherShareOneWakeup() {
+        RetryScheduler.Policy a = new RetryScheduler.Policy(1000, 1000, 1, 0, 0);
+        RetryScheduler.Policy b = new RetryScheduler.Policy(1000 + RetryScheduler.ALIGN_MS, 10_000, 1, 0, 0);
+        RetryScheduler.Policy c = new RetryScheduler.Policy(1000 + RetryScheduler.ALIGN_MS + 1, 10_000, 1, 0, 0);
+        retries.retry(task("a"), a);
+        retries.retry(task("b"), b);
+        retries.retry(task("c"), c);
+        assertEquals(1, scheduler.queued());
+
+        scheduler.advance(1000);
+        assertEquals(List.of("a", "b"), ran);
+        assertEquals(1, scheduler.queued());
+
+        scheduler.advance(RetryScheduler.ALIGN_MS + 1);
+        assertEquals(List.of("a", "b", "c"), ran);
+        assertEquals(0, scheduler.queued());
+        assertEquals(2, scheduler.posts());
+    }
+
+    @Test
+    public void earlierWakeupReplacesLaterOne() {
+        retries.retry(task("late"), new RetryScheduler.Policy(5000, 5000, 1, 0, 0));
+        retries.retry(task("early"), NO_JITTER);
+        assertEquals(1, scheduler.queued());
+
+        scheduler.advance(100);
+        assertEquals(List.of("early"), ran);
+        assertEquals(1, scheduler.queued());
+        scheduler.advance(4900);
+        assertEquals(List.of("early", "late"), ran);
+    }
+
+    @Test
+    public void taskCancelledEarlierInSamePassDoesNotRun() {
+        Runnable victim = task("victim");
+        Runnable reset = task("reset");
+        Runnable cancelling = () -> {
+            ran.add("cancelling");
+            retries.cancel(victim);
+            retries.reset(reset);
+        };
+        RetryScheduler.Policy now = new RetryScheduler.Policy(100, 100, 1, 0, 0);
+        retries.retry(cancelling, now);
+        retries.retry(victim, now);
+        retries.retry(reset, now);
+
+        scheduler.advance(100);
+        assertEquals(List.of("cancelling"), ran);
+        assertFalse(retries.isPending(victim));
+        assertEquals(1, retries.attempts(victim));
+        assertEquals(0, retries.attempts(reset));
+        assertEquals(0, scheduler.queued());
+    }
+
+    @Test
+    public void taskRescheduledEarlierInSamePassWaitsForNewTime() {
+        Runnable later = task("later");
+        Runnable rescheduling = () -> {
+            ran.add("rescheduling");
+            retries.reset(later);
+            retries.retry(later, new RetryScheduler.Policy(2000, 2000, 1, 0, 0));
+        };
+        RetryScheduler.Policy now = new RetryScheduler.Policy(100, 100, 1, 0, 0);
+        retries.retry(rescheduling, now);
+        retries.retry(later, now);
+
+        scheduler.advance(100);
+        assertEquals(List.of("rescheduling"), ran);
+        assertTrue(retries.isPending(later));
+
+        scheduler.advance(2000);
+        assertEquals(List.of("rescheduling", "later"), ran);
+    }
+
+    @Test
+    public void taskRetryingItselfIsArmedOnce() {
+        Runnable[] self = new Runnable[1];
+        self[0] = () -> {
+            ran.add("self");
+            if (ran.size() < 3) retries.retry(self[0], NO_JITTER);
+        };
+        retries.retry(self[0], NO_JITTER);
+        scheduler.advance(100);
+        assertEquals(1, scheduler.queued());
+        scheduler.advance(200);
+        scheduler.advance(400);
+        assertEquals(3, ran.size());
+        assertEquals(0, scheduler.queued());
+        assertEquals(3, scheduler.posts());
+    }
+}
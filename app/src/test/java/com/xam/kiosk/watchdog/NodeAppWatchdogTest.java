@@ -0,0 +1,200 @@
+package com.xam.kiosk.watchdog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.xam.kiosk.util.ManualScheduler;
+import com.xam.kiosk.util.RetryScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Relaunch, crash-loop backoff and health reporting on a {@link ManualScheduler}.
+ * Every resume of the kiosk is a NodeApp death; a run shorter than 30 s is a short run.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NodeAppWatchdogTest {
+
+    private static final long MAX_BACKOFF_MS = 60_000;
+    private static final long STABLE_RUN_MS = 30_000;
+
+    private ManualScheduler scheduler;
+    private NodeAppWatchdog watchdog;
+    private final List<Boolean> health = new ArrayList<>();
+    private boolean launchSucceeds = true;
+    private int launches;
+
+    @Before
+    public void setUp() {
+        scheduler = new ManualScheduler(10_000);
+        RetryScheduler retries = new RetryScheduler(scheduler, scheduler, new Random(42));
+        watchdog = new NodeAppWatchdog(scheduler, scheduler, retries, () -> {
+            launches++;
+            return launchSucceeds;
+        }, health::add);
+        watchdog.onLaunched();
+    }
+
+    @Test
+    public void deathAfterAStableRunRelaunchesAtOnce() {
+        scheduler.advance(STABLE_RUN_MS);
+        watchdog.onKioskForeground();
+        assertEquals(1, launches);
+        assertEquals(1, watchdog.getRestarts());
+    }
+
+    @Test
+    public void shortRunsBackOff() {
+        long previous = 0;
+        for (int i = 0; i < 4; i++) {
+            watchdog.onKioskForeground();
+            long delay = untilRelaunch();
+            assertTrue(delay + " after " + previous, delay > previous);
+            previous = delay;
+            watchdog.onKioskBackground();
+        }
+        assertEquals(4, watchdog.getRestarts());
+    }
+
+    @Test
+    public void stableRunResetsTheBackoff() {
+        watchdog.onKioskForeground();
+        long first = untilRelaunch();
+        watchdog.onKioskBackground();
+        watchdog.onKioskForeground();
+        untilRelaunch();
+        watchdog.onKioskBackground();
+
+        scheduler.advance(STABLE_RUN_MS);
+        watchdog.onKioskForeground();
+        watchdog.onKioskBackground();
+        watchdog.onKioskForeground();
+        assertTrue(untilRelaunch() <= first + first / 4);
+    }
+
+    @Test
+    public void failedRelaunchIsRetried() {
+        launchSucceeds = false;
+        watchdog.onKioskForeground();
+        untilRelaunch();
+        untilRelaunch();
+        assertEquals(2, launches);
+        assertEquals(0, watchdog.getRestarts());
+
+        launchSucceeds = true;
+        untilRelaunch();
+        assertEquals(1, watchdog.getRestarts());
+    }
+
+    @Test
+    public void stopCancelsAPendingRelaunch() {
+        watchdog.onKioskForeground();
+        watchdog.stop();
+        scheduler.advance(MAX_BACKOFF_MS);
+        assertEquals(0, launches);
+    }
+
+    @Test
+    public void unhealthyReportedOnceAtThirdShortRun() {
+        shortRun();
+        shortRun();
+        assertTrue(health.isEmpty());
+        shortRun();
+        assertEquals(Arrays.asList(false), health);
+
+        shortRun();
+        shortRun();
+        assertEquals(Arrays.asList(false), health);
+        assertEquals(5, watchdog.getRestarts());
+    }
+
+    @Test
+    public void failedRelaunchAfterTheReportDoesNotRepeatIt() {
+        shortRun();
+        shortRun();
+
+        // Third death: the first relaunch attempt fails and counts as another attempt
+        launchSucceeds = false;
+        watchdog.onKioskForeground();
+        assertEquals(Arrays.asList(false), health);
+        scheduler.advance(MAX_BACKOFF_MS);
+        launchSucceeds = true;
+        scheduler.advance(MAX_BACKOFF_MS);
+        watchdog.onKioskBackground();
+        assertEquals(Arrays.asList(false), health);
+
+        // Fourth death lands past the threshold: still only the one report
+        shortRun();
+        assertEquals(Arrays.asList(false), health);
+    }
+
+    @Test
+    public void failedRelaunchesBeforeTheThirdDeathStillReport() {
+        shortRun();
+
+        // Second death: one failed launch pushes the count to 3 before the next death
+        launchSucceeds = false;
+        watchdog.onKioskForeground();
+        scheduler.advance(MAX_BACKOFF_MS);
+        launchSucceeds = true;
+        scheduler.advance(MAX_BACKOFF_MS);
+        watchdog.onKioskBackground();
+        assertTrue(health.isEmpty());
+
+        // Next death is attempt 4: reported even though 3 was never seen on a death
+        shortRun();
+        assertEquals(Arrays.asList(false), health);
+    }
+
+    @Test
+    public void stableRunClearsTheReport() {
+        shortRun();
+        shortRun();
+        shortRun();
+        assertEquals(Arrays.asList(false), health);
+
+        scheduler.advance(STABLE_RUN_MS);
+        assertEquals(Arrays.asList(false, true), health);
+
+        // Dies after the long run: relaunched straight away, the count starts over
+        watchdog.onKioskForeground();
+        watchdog.onKioskBackground();
+        shortRun();
+        shortRun();
+        assertEquals(Arrays.asList(false, true), health);
+        shortRun();
+        assertEquals(Arrays.asList(false, true, false), health);
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    /** Advances until the next launch attempt; returns how long that took. */
+    private long untilRelaunch() {
+        int before = launches;
+        long start = scheduler.uptimeMillis();
+        while (launches == before) {
+            assertTrue("no relaunch", scheduler.uptimeMillis() - start <= MAX_BACKOFF_MS);
+            scheduler.advance(10);
+        }
+        return scheduler.uptimeMillis() - start;
+    }
+
+    /** NodeApp dies right after coming back, then the backoff relaunches it. */
+    private void shortRun() {
+        int before = launches;
+        watchdog.onKioskForeground();
+        scheduler.advance(MAX_BACKOFF_MS);
+        assertEquals("relaunched", before + 1, launches);
+        watchdog.onKioskBackground();
+    }
+}
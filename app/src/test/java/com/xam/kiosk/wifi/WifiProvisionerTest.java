@@ -0,0 +1,132 @@
+package com.xam.kiosk.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.xam.kiosk.model.WifiNetwork;
+import com.xam.kiosk.util.ManualScheduler;
+import com.xam.kiosk.util.RetryScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetwork;
+import org.robolectric.shadows.ShadowNetworkCapabilities;
+import org.robolectric.shadows.ShadowWifiInfo;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which networks WifiProvisioner takes as connected on API 34, where
+ * WifiManager.getConnectionInfo() reports {@code <unknown ssid>} without
+ * location. Callbacks are driven by hand over the shadowed ConnectivityManager.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class WifiProvisionerTest {
+
+    private static final long VALIDATION_GRACE_MS = 3000;   // WifiProvisioner.VALIDATION_GRACE_MS
+
+    private Context context;
+    private WifiProvisioner wifi;
+    private final List<String> connected = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        // Redacted, as for an app without location
+        shadowOf(context.getSystemService(WifiManager.class)).setConnectionInfo(ShadowWifiInfo.newInstance());
+
+        ManualScheduler scheduler = new ManualScheduler(10_000);
+        wifi = new WifiProvisioner(context, new Handler(Looper.getMainLooper()), scheduler,
+                new RetryScheduler(scheduler, scheduler, new Random(42)));
+        wifi.connect(Arrays.asList(new WifiNetwork("Office", WifiNetwork.Security.WPA2, "correcthorse")),
+                (ssid, attempts, latencyMs, validated) -> connected.add(ssid + "/" + validated));
+    }
+
+    @Test
+    public void callbackAsksForLocationInfo() {
+        for (ConnectivityManager.NetworkCallback cb : callbacks()) {
+            int flags = ReflectionHelpers.getField(cb, "mFlags");
+            assertEquals(ConnectivityManager.NetworkCallback.FLAG_INCLUDE_LOCATION_INFO, flags);
+        }
+    }
+
+    @Test
+    public void ssidComesFromTheCallbackWifiInfo() {
+        assertNull(wifi.connectedSsid());
+        deliver(caps("Office", true));
+        assertEquals(Arrays.asList("Office/true"), connected);
+    }
+
+    @Test
+    public void otherSsidIsNotOurs() {
+        deliver(caps("Guest", true));
+        ShadowLooper.idleMainLooper(VALIDATION_GRACE_MS, TimeUnit.MILLISECONDS);
+        assertTrue(connected.isEmpty());
+    }
+
+    @Test
+    public void unvalidatedNetworkIsAcceptedAfterTheGrace() {
+        deliver(caps("Office", false));
+        assertTrue(connected.isEmpty());
+        ShadowLooper.idleMainLooper(VALIDATION_GRACE_MS, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList("Office/false"), connected);
+    }
+
+    @Test
+    public void hiddenSsidIsAcceptedOnceValidatedThroughOurSuggestions() {
+        deliver(caps(null, false));
+        ShadowLooper.idleMainLooper(VALIDATION_GRACE_MS, TimeUnit.MILLISECONDS);
+        assertTrue(connected.isEmpty());
+
+        deliver(caps(null, true));
+        assertEquals(Arrays.asList("null/true"), connected);
+    }
+
+    // =========================
+    // Helpers
+    // =========================
+
+    /** WiFi capabilities whose WifiInfo names {@code ssid}, or hides it when null. */
+    private static NetworkCapabilities caps(String ssid, boolean validated) {
+        WifiInfo info = ShadowWifiInfo.newInstance();
+        if (ssid != null) shadowOf(info).setSSID(ssid);  // quoted by the shadow, as the framework does
+        NetworkCapabilities caps = ShadowNetworkCapabilities.newInstance();
+        shadowOf(caps).addTransportType(NetworkCapabilities.TRANSPORT_WIFI);
+        shadowOf(caps).setTransportInfo(info);
+        if (validated) shadowOf(caps).addCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+        return caps;
+    }
+
+    private void deliver(NetworkCapabilities caps) {
+        for (ConnectivityManager.NetworkCallback cb : callbacks()) {
+            cb.onCapabilitiesChanged(ShadowNetwork.newInstance(100), caps);
+        }
+        ShadowLooper.idleMainLooper();
+    }
+
+    private List<ConnectivityManager.NetworkCallback> callbacks() {
+        ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
+        List<ConnectivityManager.NetworkCallback> list = new ArrayList<>(shadowOf(cm).getNetworkCallbacks());
+        assertEquals(1, list.size());
+        return list;
+    }
+}
@@ -0,0 +1,107 @@
+package com.xam.kiosk.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every benchmark and exits non-zero when one is over its budget, so
+ * {@code ./gradlew :benchmark:jmh} fails on a regression.
+ *
+ * Budgets are in ns/op, about five times the score measured when each was set
+ * (noted next to it): loose enough for CI noise, tight enough that e.g.
+ * compiling a regex per call trips them. A benchmark without a budget fails
+ * too. Allocation per op comes from the GC profiler and is checked for the
+ * pairs in ALLOCATES_LESS.
+ */
+public final class BenchmarkGate {
+
+    private static final Map<String, Double> BUDGETS_NS = new LinkedHashMap<>();
+
+    static {
+        budget("config.ConfigParserBenchmark.parseMinimal", 30_000);       // ~5.5 us
+        budget("config.ConfigParserBenchmark.parseFull", 100_000);         // ~19 us
+        budget("config.ConfigParserBenchmark.parseLarge", 2_500_000);      // ~450 us
+        budget("config.ConfigParserBenchmark.jsonObjectMinimal", 5_000);   // ~0.9 us
+        budget("config.ConfigParserBenchmark.jsonObjectFull", 30_000);     // ~6 us
+        budget("config.ConfigParserBenchmark.jsonObjectLarge", 1_500_000); // ~300 us
+        budget("bundle.PathResolutionBenchmark.sharedRelative", 300);      // ~55 ns
+        budget("bundle.PathResolutionBenchmark.sharedAbsolute", 300);      // ~17 ns
+        budget("bundle.PathResolutionBenchmark.bundleEntry", 150);         // ~25 ns
+        budget("bundle.PathResolutionBenchmark.parseManifest", 80_000);    // ~15 us
+    }
+
+    // {benchmark, baseline}: the first must allocate less per op than the second.
+    // The streaming parser costs more than JSONObject on a small file (reader and
+    // decoder set-up), but must keep its memory advantage on a large one.
+    private static final String[][] ALLOCATES_LESS = {
+            {"config.ConfigParserBenchmark.parseLarge", "config.ConfigParserBenchmark.jsonObjectLarge"},
+    };
+
+    private BenchmarkGate() {}
+
+    private static void budget(String benchmark, double ns) {
+        BUDGETS_NS.put("com.xam.kiosk." + benchmark, ns);
+    }
+
+    /** @param args optional path for the JSON results */
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include("com\\.xam\\.kiosk\\..*Benchmark")
+                .mode(Mode.AverageTime)
+                .timeUnit(TimeUnit.NANOSECONDS)
+                .forks(1)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(5)
+                .measurementTime(TimeValue.seconds(1))
+                .addProfiler(GCProfiler.class);
+        if (args.length > 0) options.result(args[0]).resultFormat(ResultFormatType.JSON);
+
+        Collection<RunResult> results = new Runner(options.build()).run();
+
+        List<String> failures = new ArrayList<>();
+        Map<String, Double> allocBytes = new LinkedHashMap<>();
+        for (RunResult r : results) {
+            String name = r.getParams().getBenchmark();
+            Result<?> alloc = r.getSecondaryResults().get("gc.alloc.rate.norm");
+            if (alloc != null) allocBytes.put(name, alloc.getScore());
+            double score = r.getPrimaryResult().getScore();
+            Double budget = BUDGETS_NS.get(name);
+            if (budget == null) {
+                failures.add(name + ": no budget");
+            } else if (score > budget) {
+                failures.add(String.format("%s: %.0f ns/op > budget %.0f", name, score, budget));
+            }
+        }
+        if (results.isEmpty()) failures.add("no benchmarks ran");
+
+        for (String[] pair : ALLOCATES_LESS) {
+            Double mine = allocBytes.get("com.xam.kiosk." + pair[0]);
+            Double base = allocBytes.get("com.xam.kiosk." + pair[1]);
+            if (mine == null || base == null) continue;   // filtered out of this run
+            System.out.printf("%s: %.0f B/op vs %.0f B/op for %s%n", pair[0], mine, base, pair[1]);
+            if (mine >= base) failures.add(String.format("%s: %.0f B/op, not below %s", pair[0], mine, pair[1]));
+        }
+
+        if (!failures.isEmpty()) {
+            for (String f : failures) System.err.println("Over budget: " + f);
+            System.exit(1);
+        }
+        System.out.println("All " + results.size() + " benchmarks within budget");
+    }
+}
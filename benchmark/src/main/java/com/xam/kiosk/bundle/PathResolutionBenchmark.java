@@ -0,0 +1,61 @@
+package com.xam.kiosk.bundle;
+
+import com.xam.kiosk.util.StoragePaths;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What resolving nodeapp_apk_path costs: shared-storage paths, and bundle
+ * entries looked up in a parsed manifest.
+ */
+@State(Scope.Benchmark)
+public class PathResolutionBenchmark {
+
+    private static final String SHA = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    private final File root = new File("/storage/emulated/0");
+    private byte[] manifestJson;
+    private BundleManifest manifest;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder sb = new StringBuilder("{\"format\": 1, \"entries\": [");
+        sb.append("{\"name\": \"config.json\", \"sha256\": \"").append(SHA).append("\", \"size\": 1200}");
+        sb.append(", {\"name\": \"nodeapp.apk\", \"sha256\": \"").append(SHA).append("\", \"size\": 48000000}");
+        for (int i = 0; i < 8; i++) {
+            sb.append(", {\"name\": \"split_").append(i).append(".apk\", \"sha256\": \"")
+                    .append(SHA).append("\", \"size\": 2000000}");
+        }
+        sb.append("]}");
+        manifestJson = sb.toString().getBytes(StandardCharsets.UTF_8);
+        manifest = BundleManifest.parse(manifestJson);
+    }
+
+    @Benchmark
+    public File sharedRelative() {
+        return StoragePaths.resolve(" builds/nodeapp-release.apk ", root);
+    }
+
+    @Benchmark
+    public File sharedAbsolute() {
+        return StoragePaths.resolve("/sdcard/builds/nodeapp-release.apk", root);
+    }
+
+    @Benchmark
+    public BundleManifest.Entry bundleEntry() {
+        String name = "split_7.apk";
+        return BundleManifest.isSafeName(name) ? manifest.entries.get(name) : null;
+    }
+
+    @Benchmark
+    public BundleManifest parseManifest() throws IOException {
+        return BundleManifest.parse(manifestJson);
+    }
+}
@@ -0,0 +1,141 @@
+package com.xam.kiosk.config;
+
+import com.xam.kiosk.model.Config;
+
+import com.xam.kiosk.util.HexUtil;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Streaming parse of an in-memory config.json, from bytes to {@link Config},
+ * next to the JSONObject path it replaced: copy the whole file, hash the copy,
+ * build the tree, then pick the keys out of it.
+ */
+@State(Scope.Benchmark)
+public class ConfigParserBenchmark {
+
+    static final String MINIMAL = "{\"ssid\": \"Office\", \"nodeapp_apk_path\": \"nodeapp.apk\"}";
+
+    // Every key the parser knows, plus one it skips
+    static final String FULL = "{\n"
+            + "  \"config_version\": 12,\n"
+            + "  \"wifi_networks\": [\n"
+            + "    {\"ssid\": \"Office_WiFi_5G\", \"security\": \"WPA3\", \"password\": \"correct horse battery\"},\n"
+            + "    {\"ssid\": \"Office_WiFi\", \"security\": \"WPA2\", \"password\": \"correct horse battery\"},\n"
+            + "    {\"ssid\": \"Guest\"}\n"
+            + "  ],\n"
+            + "  \"nodeapp_apk_path\": \"/sdcard/builds/nodeapp-release.apk\",\n"
+            + "  \"nodeapp_apk_sha256\": \"9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08\",\n"
+            + "  \"nodeapp_version_code\": 42,\n"
+            + "  \"nodeapp_cert_sha256\": \"60303ae22b998861bce3b28f33eec1be758a213c86c93c076dbe9f558c11c752\",\n"
+            + "  \"nodeapp_splits\": [\"builds/split_config.xxhdpi.apk\", \"builds/split_config.arm64_v8a.apk\"],\n"
+            + "  \"policy_user_restrictions\": [\"no_adjust_volume\", \"no_config_brightness\"],\n"
+            + "  \"policy_lockdown_restrictions\": [\"no_usb_file_transfer\"],\n"
+            + "  \"policy_lock_task_packages\": [\"com.example.helper\"],\n"
+            + "  \"display_schedule\": [\n"
+            + "    {\"start\": \"22:00\", \"end\": \"06:00\", \"brightness\": 0},\n"
+            + "    {\"start\": \"18:00\", \"end\": \"22:00\", \"brightness\": 0.5}\n"
+            + "  ],\n"
+            + "  \"comment\": {\"owner\": \"ops\", \"tags\": [\"lobby\", \"floor-2\"]}\n"
+            + "}\n";
+
+    // FULL plus ~48 KiB of keys the parser does not know, e.g. fleet annotations
+    static final String LARGE = largeConfig(48 * 1024);
+
+    private final byte[] minimal = MINIMAL.getBytes(StandardCharsets.UTF_8);
+    private final byte[] full = FULL.getBytes(StandardCharsets.UTF_8);
+    private final byte[] large = LARGE.getBytes(StandardCharsets.UTF_8);
+
+    private static String largeConfig(int extraBytes) {
+        StringBuilder sb = new StringBuilder(FULL.substring(0, FULL.lastIndexOf('}')));
+        for (int i = 0; sb.length() < FULL.length() + extraBytes; i++) {
+            sb.append(",\n  \"annotation_").append(i).append("\": {\"note\": \"")
+                    .append("lobby kiosk, second floor, east wing").append("\", \"rev\": ").append(i).append('}');
+        }
+        return sb.append("\n}\n").toString();
+    }
+
+    @Benchmark
+    public Config parseMinimal() throws IOException, ConfigException {
+        return ConfigParser.parse(new ByteArrayInputStream(minimal), minimal.length);
+    }
+
+    @Benchmark
+    public Config parseFull() throws IOException, ConfigException {
+        return ConfigParser.parse(new ByteArrayInputStream(full), full.length);
+    }
+
+    @Benchmark
+    public Config parseLarge() throws IOException, ConfigException {
+        return ConfigParser.parse(new ByteArrayInputStream(large), large.length);
+    }
+
+    @Benchmark
+    public Object jsonObjectMinimal() throws Exception {
+        return viaJsonObject(new ByteArrayInputStream(minimal), minimal.length);
+    }
+
+    @Benchmark
+    public Object jsonObjectFull() throws Exception {
+        return viaJsonObject(new ByteArrayInputStream(full), full.length);
+    }
+
+    @Benchmark
+    public Object jsonObjectLarge() throws Exception {
+        return viaJsonObject(new ByteArrayInputStream(large), large.length);
+    }
+
+    // =========================
+    // Baseline
+    // =========================
+
+    // Same reads as the streaming parser, without its validation.
+    private static Object[] viaJsonObject(InputStream in, int length)
+            throws IOException, JSONException, NoSuchAlgorithmException {
+        byte[] data = new byte[length];
+        int off = 0;
+        while (off < length) {
+            int n = in.read(data, off, length - off);
+            if (n < 0) throw new IOException("short read: " + off + "/" + length);
+            off += n;
+        }
+        String hash = HexUtil.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+
+        JSONObject obj = new JSONObject(new String(data, StandardCharsets.UTF_8));
+        JSONArray networks = obj.optJSONArray("wifi_networks");
+        int networkCount = networks != null ? networks.length() : 0;
+        for (int i = 0; i < networkCount; i++) {
+            JSONObject n = networks.getJSONObject(i);
+            n.optString("ssid", null);
+            n.optString("security", null);
+            n.optString("password", null);
+        }
+        return new Object[] {
+                hash,
+                obj.optString("ssid", null),
+                obj.optString("nodeapp_apk_path", null),
+                obj.optString("nodeapp_apk_sha256", null),
+                obj.optLong("nodeapp_version_code", -1),
+                obj.optString("nodeapp_cert_sha256", null),
+                obj.optJSONArray("nodeapp_splits"),
+                obj.optJSONArray("policy_user_restrictions"),
+                obj.optJSONArray("policy_lockdown_restrictions"),
+                obj.optJSONArray("policy_lock_task_packages"),
+                obj.optJSONArray("display_schedule"),
+                obj.optLong("config_version", 0),
+                networkCount,
+        };
+    }
+}